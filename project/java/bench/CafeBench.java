@@ -0,0 +1,191 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks the Cafe query helpers and order flows against a seeded
+ * database at several Orders table sizes.
+ *
+ * The database is first seeded with the users and menu from project/data,
+ * then, for every size, Orders is topped up (see Seeder) and each
+ * benchmark is warmed up and measured by Harness. Benchmarks can be picked
+ * with -Dbench.include=login,place_order,...
+ *
+ *   login           Cafe.authenticate with a sampled user
+ *   menu_cached     the full menu through the menu cache
+ *   menu_sql        the full menu straight from the database
+ *   menu_render     the full menu formatted for printing
+ *   menu_rendered   the full menu as cached, pre-rendered text
+ *   search_by_name  one item through the menu cache
+ *   menu_search     a fuzzy search for a misspelled item prefix
+ *   place_order     a two item order, one transaction
+ *   update_status   the status of a recently placed order
+ *   order_history   the five latest orders of a sampled user
+ *   sales_rollup    revenue per day of the last year, from the rollups
+ *   sales_scan      the same report summed over Orders
+ *
+ * The benchmark writes to the database it is pointed at, so run it against
+ * a scratch database only.
+ *
+ */
+public class CafeBench {
+
+   static final String[] BENCHMARKS = {
+      "login", "menu_cached", "menu_sql", "menu_render", "menu_rendered", "search_by_name", "menu_search",
+      "place_order", "update_status", "order_history", "sales_rollup", "sales_scan"
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            CafeBench.class.getName () +
+            " <dbname> <port> <user> [orders...]");
+         return;
+      }//end if
+
+      long[] sizes = { 10000L, 100000L, 1000000L };
+      if (args.length > 3){
+         sizes = new long[args.length - 3];
+         for (int i = 3; i < args.length; ++i)
+            sizes[i - 3] = Long.parseLong(args[i]);
+      }//end if
+
+      Set<String> include = new HashSet<String>(Arrays.asList(
+         System.getProperty("bench.include", join(BENCHMARKS)).split(",")));
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      final Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         Seeder.loadMenu(esql);
+         Seeder.loadUsers(esql);
+         final List<String[]> users = Seeder.sampleUsers(1000);
+         final List<MenuItem> menu = esql.menu().all();
+         final Random random = new Random(42);
+         // orders placed by place_order, updated by update_status
+         final List<Integer> placed = new ArrayList<Integer>();
+
+         Harness harness = new Harness();
+         Harness.header();
+         for (long size : sizes){
+            Seeder.growOrders(esql, size);
+            String param = Long.toString(size);
+
+            if (include.contains("login"))
+               harness.run("login", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     String[] user = users.get(random.nextInt(users.size()));
+                     if (esql.authenticate(user[0], user[1]) == null)
+                        throw new IllegalStateException("login failed for " + user[0]);
+                  }
+               });
+            if (include.contains("menu_cached"))
+               harness.run("menu_cached", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     esql.menu().all();
+                  }
+               });
+            if (include.contains("menu_sql"))
+               harness.run("menu_sql", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     esql.query("SELECT itemName, type, price, description, imageURL FROM MENU ORDER BY type, itemName");
+                  }
+               });
+            if (include.contains("menu_render"))
+               harness.run("menu_render", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     MenuCache.render(esql.menu().all(), true).getBytes();
+                  }
+               });
+            if (include.contains("menu_rendered"))
+               harness.run("menu_rendered", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     esql.menu().rendered(null);
+                  }
+               });
+            if (include.contains("search_by_name"))
+               harness.run("search_by_name", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     esql.menu().byName(menu.get(random.nextInt(menu.size())).itemName);
+                  }
+               });
+            if (include.contains("menu_search"))
+               harness.run("menu_search", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     String name = menu.get(random.nextInt(menu.size())).itemName.toLowerCase();
+                     // drop one letter and keep a prefix: "chiken noo"
+                     int cut = name.length() > 2 ? 1 + random.nextInt(name.length() - 2) : 0;
+                     String query = name.substring(0, cut) + name.substring(Math.min(name.length(), cut + 1));
+                     esql.menu().search(query.substring(0, Math.min(query.length(), 10)), Cafe.SEARCH_LIMIT);
+                  }
+               });
+            if (include.contains("place_order") || include.contains("update_status"))
+               harness.run("place_order", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     int a = random.nextInt(menu.size());
+                     int b = (a + 1 + random.nextInt(menu.size() - 1)) % menu.size();
+                     String login = users.get(random.nextInt(users.size()))[0];
+                     placed.add(esql.placeOrder(login,
+                        Arrays.asList(menu.get(a).itemName, menu.get(b).itemName)).orderId);
+                  }
+               });
+            if (include.contains("update_status") && !placed.isEmpty())
+               harness.run("update_status", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     int orderId = placed.get(random.nextInt(placed.size()));
+                     esql.updateOrderStatus(orderId,
+                        Cafe.ITEM_STATUSES.get(random.nextInt(Cafe.ITEM_STATUSES.size())));
+                  }
+               });
+            if (include.contains("order_history"))
+               harness.run("order_history", param, new Harness.Op() {
+                  public void run() throws Exception {
+                     esql.orderHistory(users.get(random.nextInt(users.size()))[0], null,
+                        OrderHistory.DEFAULT_PAGE_SIZE).latest();
+                  }
+               });
+            if (include.contains("sales_rollup") || include.contains("sales_scan")){
+               // Seeder writes around the rollups
+               final SalesRollup sales = new SalesRollup(esql);
+               sales.rebuildAll(30);
+               final Timestamp from = SalesRollup.daysAgo(365);
+               final Timestamp to = SalesRollup.daysAgo(-1);
+               if (include.contains("sales_rollup"))
+                  harness.run("sales_rollup", param, new Harness.Op() {
+                     public void run() throws Exception {
+                        sales.revenueByDay(from, to);
+                     }
+                  });
+               if (include.contains("sales_scan"))
+                  harness.run("sales_scan", param, new Harness.Op() {
+                     public void run() throws Exception {
+                        esql.query("SELECT CAST(timeStampRecieved AS date) AS day, count(*), SUM(total), " +
+                                   "SUM(CASE WHEN paid THEN total ELSE 0 END) FROM Orders " +
+                                   "WHERE timeStampRecieved >= ? AND timeStampRecieved < ? GROUP BY 1 ORDER BY 1",
+                                   from, to);
+                     }
+                  });
+            }//end if
+            placed.clear();
+         }//end for
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static String join(String[] names) {
+      StringBuilder sb = new StringBuilder();
+      for (String name : names){
+         if (sb.length() > 0)
+            sb.append(',');
+         sb.append(name);
+      }//end for
+      return sb.toString();
+   }//end join
+
+}//end CafeBench
@@ -0,0 +1,82 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Checks the execution helpers of Cafe against the bundled JDBC driver and
+ * a real database, for what the driver does not implement or gets wrong:
+ *
+ *   print    executeQueryAndPrintResult streams a result longer than one
+ *            cursor batch (Cafe.FETCH_SIZE), with bound parameters;
+ *   handle   executeQueryAndHandleResult hands over every row, in order;
+ *   utility  LOCK, SET and ANALYZE run through executeStatement, and also
+ *            through executeUpdate after more executions on one connection
+ *            than the statement cache's prepare threshold, which
+ *            StatementCache.preparable keeps them from server-preparing.
+ *
+ * Run it with bench.sh DriverCheck; it only reads, and exits with status 1
+ * on the first failed check.
+ *
+ */
+public class DriverCheck {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DriverCheck.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      System.setProperty("cafe.notify.enabled", "false");
+      // one connection, so every repetition runs on the same statement cache
+      System.setProperty("cafe.pool.max", "1");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      final Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         final int rows = Cafe.FETCH_SIZE * 2 + 1;
+         int printed = esql.executeQueryAndPrintResult(
+            "SELECT g AS n, CAST(? AS text) AS label FROM generate_series(1, ?) g", "row", rows);
+         check("print", printed == rows, "printed " + printed + " rows, expected " + rows);
+
+         final int[] next = { 1 };
+         int handled = esql.executeQueryAndHandleResult(
+            "SELECT g FROM generate_series(1, ?) g ORDER BY g", new RowHandler() {
+               public void row(ResultSet rs) throws SQLException {
+                  if (rs.getInt(1) != next[0])
+                     throw new SQLException("row " + rs.getInt(1) + " where " + next[0] + " was expected");
+                  ++next[0];
+               }
+            }, rows);
+         check("handle", handled == rows, "handled " + handled + " rows, expected " + rows);
+
+         for (int run = 0; run < 10; ++run){
+            esql.beginTransaction();
+            try{
+               esql.executeStatement("SET LOCAL lock_timeout = '5s'");
+               esql.executeStatement("LOCK TABLE Menu IN ACCESS SHARE MODE");
+               esql.executeUpdate("SET LOCAL lock_timeout = '5s'");
+               esql.executeUpdate("LOCK TABLE Menu IN ACCESS SHARE MODE");
+               esql.commit();
+            }catch (SQLException e){
+               esql.rollback();
+               throw e;
+            }//end try
+            esql.executeStatement("ANALYZE Menu");
+            esql.executeUpdate("ANALYZE Menu");
+         }//end for
+         System.out.println("DriverCheck: all checks passed");
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static void check(String name, boolean ok, String message) {
+      if (ok)
+         return;
+      System.err.println("DriverCheck " + name + " failed: " + message);
+      System.exit(1);
+   }//end check
+
+}//end DriverCheck
@@ -0,0 +1,77 @@
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for the Cafe benchmarks.
+ *
+ * Each benchmark is an operation that is first run for a warmup period, so
+ * the JIT, the statement caches and the server-side plans settle, and then
+ * run for a measurement period with every call recorded in a
+ * LatencyHistogram. Periods are taken from the bench.warmupMs and
+ * bench.measureMs system properties.
+ *
+ */
+public class Harness {
+
+   /**
+    * One benchmarked call.
+    */
+   public interface Op {
+      void run() throws Exception;
+   }//end Op
+
+   private final long warmupMillis;
+   private final long measureMillis;
+
+   public Harness() {
+      this(Long.getLong("bench.warmupMs", 2000L), Long.getLong("bench.measureMs", 5000L));
+   }
+
+   public Harness(long warmupMillis, long measureMillis) {
+      this.warmupMillis = warmupMillis;
+      this.measureMillis = measureMillis;
+   }//end Harness
+
+   /**
+    * Warms op up, measures it and prints one result line.
+    *
+    * @param name the benchmark name
+    * @param param the parameter the run was made with, e.g. the table size
+    * @param op the operation to time
+    * @return the recorded latencies
+    * @throws java.lang.Exception when op fails
+    */
+   public LatencyHistogram run(String name, String param, Op op) throws Exception {
+      long end = System.nanoTime() + this.warmupMillis * 1000000L;
+      while (System.nanoTime() < end)
+         op.run();
+
+      LatencyHistogram h = new LatencyHistogram();
+      long start = System.nanoTime();
+      end = start + this.measureMillis * 1000000L;
+      long now = start;
+      while (now < end){
+         op.run();
+         long t = System.nanoTime();
+         h.record(t - now);
+         now = t;
+      }//end while
+      report(name, param, h, now - start);
+      return h;
+   }//end run
+
+   /**
+    * Prints the column header matching report().
+    */
+   public static void header() {
+      System.out.println(String.format(Locale.ROOT, "%-20s %10s %10s %12s %10s %10s %10s %10s",
+         "benchmark", "param", "ops", "ops/s", "mean_ms", "p50_ms", "p99_ms", "p999_ms"));
+   }//end header
+
+   public static void report(String name, String param, LatencyHistogram h, long elapsedNanos) {
+      System.out.println(String.format(Locale.ROOT, "%-20s %10s %10d %12.1f %10.3f %10.3f %10.3f %10.3f",
+         name, param, h.getCount(), h.getCount() / (elapsedNanos / 1e9),
+         h.getMean() / 1e6, h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6,
+         h.percentile(0.999) / 1e6));
+   }//end report
+
+}//end Harness
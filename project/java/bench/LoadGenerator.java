@@ -0,0 +1,315 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a rush of customers and staff against one Cafe instance.
+ *
+ * Every simulated user is a thread that logs in with an account sampled
+ * from users.csv and then issues operations at random (Poisson) intervals,
+ * picking each one from a weighted mix:
+ *
+ *   customers  menu           browse one menu category          (Menu)
+ *              search         look one item up by name          (Menu)
+ *              place_order    order one to four menu items      (PlaceOrder)
+ *              replace_order  delete an own unpaid order and
+ *                             place it again                    (UpdateOrder 1)
+ *   staff      update_status  set the status of a recent order  (UpdateOrder 3)
+ *              mark_paid      mark a recent order paid          (UpdateOrder 2)
+ *              menu           as above
+ *
+ * Latency is measured from the time an operation was due, not from the
+ * time it started, so a stalled server shows up in the tail rather than
+ * as a quietly lower arrival rate. Operations due during the warmup are run
+ * but not recorded. At the end throughput, latency percentiles and errors
+ * are printed per operation.
+ *
+ * Settings are given as key=value arguments after the connection:
+ *
+ *   customers=20  employees=2  rate=1.0 (operations per second per user)
+ *   warmup=10  duration=60 (seconds)  seed=42
+ *   customerMix=menu:50,search:10,place_order:30,replace_order:10
+ *   staffMix=update_status:60,mark_paid:30,menu:10
+ *
+ * The generator writes to the database it is pointed at, so run it against
+ * a scratch database only.
+ *
+ */
+public class LoadGenerator {
+
+   // recently placed orders shared with the staff threads
+   static final int RECENT = 4096;
+
+   private final Cafe esql;
+   private final List<String[]> customers = new ArrayList<String[]>();
+   private final List<String[]> staff = new ArrayList<String[]>();
+   private final List<MenuItem> menu;
+   private final List<String> types;
+   private final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+   private final AtomicIntegerArray recent = new AtomicIntegerArray(RECENT);
+   private final AtomicLong placed = new AtomicLong();
+
+   private long warmupEnd;
+   private long runEnd;
+
+   /*
+    * Counters of one operation.
+    */
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      volatile String lastError = null;
+   }//end Stats
+
+   LoadGenerator(Cafe esql) throws Exception {
+      this.esql = esql;
+      for (String[] f : Seeder.readCsv(new File(Seeder.dataDir(), "users.csv"))){
+         String[] user = { f[0], f[2] };
+         if (f[4].trim().equals("Customer"))
+            this.customers.add(user);
+         else
+            this.staff.add(user);
+      }//end for
+      this.menu = esql.menu().all();
+      this.types = new ArrayList<String>();
+      for (MenuItem item : this.menu)
+         if (!this.types.contains(item.type))
+            this.types.add(item.type);
+      for (String op : Arrays.asList("login", "menu", "search", "place_order", "replace_order",
+                                     "update_status", "mark_paid"))
+         this.stats.put(op, new Stats());
+   }//end LoadGenerator
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadGenerator.class.getName () +
+            " <dbname> <port> <user> [key=value ...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("customers", "20");
+      opts.put("employees", "2");
+      opts.put("rate", "1.0");
+      opts.put("warmup", "10");
+      opts.put("duration", "60");
+      opts.put("seed", "42");
+      opts.put("customerMix", "menu:50,search:10,place_order:30,replace_order:10");
+      opts.put("staffMix", "update_status:60,mark_paid:30,menu:10");
+      for (int i = 3; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq < 0 || !opts.containsKey(args[i].substring(0, eq)))
+            throw new IllegalArgumentException("unknown setting " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         Seeder.loadMenu(esql);
+         Seeder.loadUsers(esql);
+         LoadGenerator load = new LoadGenerator(esql);
+         load.run(Integer.parseInt(opts.get("customers")), Integer.parseInt(opts.get("employees")),
+                  Double.parseDouble(opts.get("rate")), Long.parseLong(opts.get("warmup")),
+                  Long.parseLong(opts.get("duration")), Long.parseLong(opts.get("seed")),
+                  parseMix(opts.get("customerMix")), parseMix(opts.get("staffMix")));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Starts every simulated user, waits for the run to end and prints the
+    * report.
+    */
+   void run(int customerCount, int staffCount, final double rate, long warmupSeconds,
+            long durationSeconds, long seed, final Map<String, Integer> customerMix,
+            final Map<String, Integer> staffMix) throws InterruptedException {
+      Random random = new Random(seed);
+      long start = System.nanoTime();
+      this.warmupEnd = start + warmupSeconds * 1000000000L;
+      this.runEnd = this.warmupEnd + durationSeconds * 1000000000L;
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < customerCount + staffCount; ++i){
+         final boolean isStaff = i >= customerCount;
+         List<String[]> pool = isStaff ? this.staff : this.customers;
+         final String[] user = pool.get(random.nextInt(pool.size()));
+         final long userSeed = random.nextLong();
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               simulate(user, rate, isStaff ? staffMix : customerMix, new Random(userSeed));
+            }
+         }, (isStaff ? "staff-" : "customer-") + i);
+         threads.add(t);
+         t.start();
+      }//end for
+      for (Thread t : threads)
+         t.join();
+      report(durationSeconds, customerCount, staffCount, rate);
+   }//end run
+
+   /*
+    * The life of one simulated user: log in, then issue operations until
+    * the run ends.
+    */
+   private void simulate(String[] user, double rate, Map<String, Integer> mix, Random random) {
+      // orders this user placed and may still replace
+      List<Integer> own = new ArrayList<Integer>();
+      long due = System.nanoTime();
+      if (!timed("login", due, user, own, random))
+         return;
+      while (true){
+         due += (long) (-Math.log(1.0 - random.nextDouble()) / rate * 1e9);
+         if (due >= this.runEnd)
+            return;
+         long wait = due - System.nanoTime();
+         if (wait > 0){
+            try{
+               Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }catch (InterruptedException e){
+               return;
+            }//end try
+         }//end if
+         timed(pick(mix, random), due, user, own, random);
+      }//end while
+   }//end simulate
+
+   private boolean timed(String op, long due, String[] user, List<Integer> own, Random random) {
+      Stats s = this.stats.get(op);
+      // logins all happen at the start, they are recorded regardless
+      boolean measured = due >= this.warmupEnd || op.equals("login");
+      boolean ok = true;
+      try{
+         execute(op, user, own, random);
+      }catch (Exception e){
+         ok = false;
+         if (measured){
+            s.errors.incrementAndGet();
+            s.lastError = e.getMessage() == null ? e.toString() : e.getMessage();
+         }//end if
+      }//end try
+      if (measured)
+         s.latency.record(System.nanoTime() - due);
+      return ok;
+   }//end timed
+
+   private void execute(String op, String[] user, List<Integer> own, Random random) throws Exception {
+      if (op.equals("login")){
+         if (this.esql.authenticate(user[0], user[1]) == null)
+            throw new IllegalStateException("login failed for " + user[0]);
+      }else if (op.equals("menu")){
+         this.esql.menu().byType(this.types.get(random.nextInt(this.types.size())));
+      }else if (op.equals("search")){
+         this.esql.menu().byName(this.menu.get(random.nextInt(this.menu.size())).itemName);
+      }else if (op.equals("place_order")){
+         own.add(place(user[0], random));
+      }else if (op.equals("replace_order")){
+         if (own.isEmpty()){
+            own.add(place(user[0], random));
+            return;
+         }//end if
+         Integer orderId = own.remove(random.nextInt(own.size()));
+         if (this.esql.exists("SELECT 1 FROM ORDERS WHERE orderid = ? AND paid = ?", orderId, false)){
+            this.esql.executeUpdate("DELETE FROM ItemStatus WHERE orderid = ?", orderId);
+            this.esql.executeUpdate("DELETE FROM ORDERS WHERE orderid = ?", orderId);
+         }//end if
+         own.add(place(user[0], random));
+      }else if (op.equals("update_status")){
+         int orderId = recentOrder(random);
+         if (orderId > 0)
+            this.esql.updateOrderStatus(orderId,
+               Cafe.ITEM_STATUSES.get(random.nextInt(Cafe.ITEM_STATUSES.size())));
+      }else if (op.equals("mark_paid")){
+         int orderId = recentOrder(random);
+         if (orderId > 0)
+            this.esql.markOrderPaid(orderId);
+      }else{
+         throw new IllegalArgumentException("unknown operation " + op);
+      }//end if
+   }//end execute
+
+   /*
+    * Places an order of one to four distinct items and shares its id with
+    * the staff threads.
+    */
+   private int place(String login, Random random) throws Exception {
+      List<MenuItem> shuffled = new ArrayList<MenuItem>(this.menu);
+      int n = 1 + random.nextInt(Math.min(4, shuffled.size()));
+      List<String> basket = new ArrayList<String>(n);
+      for (int i = 0; i < n; ++i)
+         basket.add(shuffled.remove(random.nextInt(shuffled.size())).itemName);
+      int orderId = this.esql.placeOrder(login, basket).orderId;
+      this.recent.set((int) (this.placed.getAndIncrement() % RECENT), orderId);
+      return orderId;
+   }//end place
+
+   private int recentOrder(Random random) {
+      long n = Math.min(this.placed.get(), RECENT);
+      return n == 0 ? 0 : this.recent.get(random.nextInt((int) n));
+   }//end recentOrder
+
+   private static String pick(Map<String, Integer> mix, Random random) {
+      int total = 0;
+      for (int weight : mix.values())
+         total += weight;
+      int r = random.nextInt(total);
+      for (Map.Entry<String, Integer> e : mix.entrySet()){
+         r -= e.getValue();
+         if (r < 0)
+            return e.getKey();
+      }//end for
+      throw new IllegalStateException("empty mix");
+   }//end pick
+
+   /*
+    * Parses op:weight,op:weight,...
+    */
+   static Map<String, Integer> parseMix(String spec) {
+      Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+      for (String part : spec.split(",")){
+         String[] kv = part.trim().split(":");
+         if (kv.length != 2)
+            throw new IllegalArgumentException("bad mix entry " + part);
+         int weight = Integer.parseInt(kv[1].trim());
+         if (weight > 0)
+            mix.put(kv[0].trim(), weight);
+      }//end for
+      if (mix.isEmpty())
+         throw new IllegalArgumentException("empty mix " + spec);
+      return mix;
+   }//end parseMix
+
+   private void report(long durationSeconds, int customerCount, int staffCount, double rate) {
+      System.out.println(String.format(Locale.ROOT,
+         "%d customers, %d staff, %.2f ops/s per user, %ds measured",
+         customerCount, staffCount, rate, durationSeconds));
+      System.out.println(String.format(Locale.ROOT, "%-14s %9s %7s %10s %10s %10s %10s %10s",
+         "operation", "ops", "errors", "ops/s", "p50_ms", "p99_ms", "p999_ms", "max_ms"));
+      for (Map.Entry<String, Stats> e : this.stats.entrySet()){
+         LatencyHistogram h = e.getValue().latency;
+         if (h.getCount() == 0)
+            continue;
+         System.out.println(String.format(Locale.ROOT, "%-14s %9d %7d %10.1f %10.3f %10.3f %10.3f %10.3f",
+            e.getKey(), h.getCount(), e.getValue().errors.get(),
+            h.getCount() / (double) durationSeconds, h.percentile(0.50) / 1e6,
+            h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.getMax() / 1e6));
+      }//end for
+      for (Map.Entry<String, Stats> e : this.stats.entrySet())
+         if (e.getValue().lastError != null)
+            System.out.println(e.getKey() + " last error: " + e.getValue().lastError);
+      System.out.println("pool: " + this.esql.getPoolStats());
+   }//end report
+
+}//end LoadGenerator
@@ -0,0 +1,79 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures order history paging as the Orders table grows.
+ *
+ * For every target size the table is topped up (see Seeder) and three ways
+ * of reading one user's history are timed: the latest page, a walk ten
+ * pages deep through keyset pagination, and the tenth page reached with
+ * OFFSET for comparison. Keyset pages should stay flat across sizes and
+ * depths while OFFSET grows with the depth.
+ *
+ * The benchmark writes to the database it is pointed at, so run it against
+ * a scratch database only.
+ *
+ */
+public class OrderHistoryBench {
+
+   static final int DEPTH = 10;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderHistoryBench.class.getName () +
+            " <dbname> <port> <user> [orders...]");
+         return;
+      }//end if
+
+      long[] sizes = { 1000000L, 5000000L, 10000000L };
+      if (args.length > 3){
+         sizes = new long[args.length - 3];
+         for (int i = 3; i < args.length; ++i)
+            sizes[i - 3] = Long.parseLong(args[i]);
+      }//end if
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      final Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         Seeder.loadMenu(esql);
+         Seeder.loadUsers(esql);
+         final List<String[]> users = Seeder.sampleUsers(1000);
+         final Random random = new Random(42);
+         final int size = OrderHistory.DEFAULT_PAGE_SIZE;
+
+         Harness harness = new Harness();
+         Harness.header();
+         for (long orders : sizes){
+            Seeder.growOrders(esql, orders);
+            String param = Long.toString(orders);
+
+            harness.run("latest_page", param, new Harness.Op() {
+               public void run() throws Exception {
+                  esql.orderHistory(users.get(random.nextInt(users.size()))[0], null, size).latest();
+               }
+            });
+            harness.run("keyset_" + DEPTH + "_pages", param, new Harness.Op() {
+               public void run() throws Exception {
+                  OrderHistory history = esql.orderHistory(users.get(random.nextInt(users.size()))[0], null, size);
+                  OrderHistory.Page page = history.latest();
+                  for (int i = 1; i < DEPTH && page.hasOlder; ++i)
+                     page = history.older(page);
+               }
+            });
+            harness.run("offset_page_" + DEPTH, param, new Harness.Op() {
+               public void run() throws Exception {
+                  esql.query("SELECT orderid, login, paid, timeStampRecieved, total FROM ORDERS WHERE login = ? " +
+                             "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ? OFFSET ?",
+                             users.get(random.nextInt(users.size()))[0], size, size * (DEPTH - 1));
+               }
+            });
+         }//end for
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end OrderHistoryBench
@@ -0,0 +1,87 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures Cafe.placeOrder latency as the Orders table grows.
+ *
+ * For every target size the table is topped up with synthetic orders (login
+ * 'bench') and a fixed number of orders is then placed and timed. Flat
+ * latency across sizes shows that order placement no longer depends on the
+ * number of existing orders.
+ *
+ * The benchmark writes to the database it is pointed at, so run it against
+ * a scratch database only.
+ *
+ */
+public class OrderPlacementBench {
+
+   static final int WARMUP = 50;
+   static final int MEASURED = 500;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderPlacementBench.class.getName () +
+            " <dbname> <port> <user> [orders...]");
+         return;
+      }//end if
+
+      long[] sizes = { 10000L, 100000L, 1000000L, 10000000L };
+      if (args.length > 3){
+         sizes = new long[args.length - 3];
+         for (int i = 3; i < args.length; ++i)
+            sizes[i - 3] = Long.parseLong(args[i]);
+      }//end if
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         List<String> basket = esql.queryForList("SELECT itemName FROM Menu ORDER BY itemName LIMIT 3", Cafe.STRING_COLUMN);
+
+         System.out.println("orders\tmean_ms\tp50_ms\tp99_ms");
+         for (long size : sizes){
+            grow(esql, size);
+            for (int i = 0; i < WARMUP; ++i)
+               esql.placeOrder("bench", basket);
+
+            long[] samples = new long[MEASURED];
+            for (int i = 0; i < MEASURED; ++i){
+               long start = System.nanoTime();
+               esql.placeOrder("bench", basket);
+               samples[i] = System.nanoTime() - start;
+            }//end for
+            report(size, samples);
+         }//end for
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /*
+    * Tops Orders up to at least size rows with synthetic paid orders.
+    */
+   static void grow(Cafe esql, long size) throws Exception {
+      long current = esql.queryForLong("SELECT count(*) FROM Orders");
+      if (current >= size)
+         return;
+      esql.executeUpdate(
+         "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+         "SELECT 'bench', true, NOW() - (g % 365) * '1 day'::INTERVAL, 0 FROM generate_series(1, ?) g",
+         (int) (size - current));
+      esql.executeStatement("ANALYZE Orders");
+   }//end grow
+
+   static void report(long size, long[] samples) {
+      Arrays.sort(samples);
+      long sum = 0;
+      for (long s : samples)
+         sum += s;
+      System.out.println(String.format("%d\t%.3f\t%.3f\t%.3f", size,
+         sum / 1e6 / samples.length,
+         samples[samples.length / 2] / 1e6,
+         samples[(int) (samples.length * 0.99)] / 1e6));
+   }//end report
+
+}//end OrderPlacementBench
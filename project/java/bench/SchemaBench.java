@@ -0,0 +1,147 @@
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares table size, index size and query latency before and after the
+ * char(n) to varchar/text migration (SchemaMigrator version 1).
+ *
+ * Orders is topped up to the given size (see Seeder). A database already
+ * migrated is first put back on the char(n) columns of the original
+ * schema, so the benchmark can be run again on the same database. Both
+ * sides are measured on freshly rewritten tables, so the sizes compare the
+ * column types and not leftover dead rows:
+ *
+ *   sizes, then login, order_history, user_items, staff_items and menu_sql
+ *   on char(n); migrate; rewrite; the same on varchar/text.
+ *
+ * The benchmark writes to the database it is pointed at, so run it against
+ * a scratch database only.
+ *
+ */
+public class SchemaBench {
+
+   // the original column types, { table, column, type }
+   static final String[][] CHAR_COLUMNS = {
+      { "users", "login", "char(50)" },
+      { "users", "phonenum", "char(16)" },
+      { "users", "password", "char(50)" },
+      { "users", "favitems", "char(400)" },
+      { "users", "type", "char(8)" },
+      { "menu", "itemname", "char(50)" },
+      { "menu", "type", "char(20)" },
+      { "menu", "description", "char(400)" },
+      { "menu", "imageurl", "char(256)" },
+      { "orders", "login", "char(50)" },
+      { "itemstatus", "itemname", "char(50)" },
+      { "itemstatus", "status", "char(20)" },
+      { "itemstatus", "comments", "char(130)" },
+      { "userfavorites", "login", "char(50)" },
+      { "userfavorites", "itemname", "char(50)" }
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SchemaBench.class.getName () +
+            " <dbname> <port> <user> [orders]");
+         return;
+      }//end if
+      long orders = args.length > 3 ? Long.parseLong(args[3]) : 1000000L;
+      System.setProperty("cafe.notify.enabled", "false");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      final Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         Seeder.loadMenu(esql);
+         Seeder.loadUsers(esql);
+         Seeder.growOrders(esql, orders);
+         SchemaMigrator migrator = new SchemaMigrator(esql, 50000, 0);
+         migrator.currentVersion();
+         if (esql.exists("SELECT 1 FROM schema_version WHERE version = 1"))
+            revert(esql);
+         migrator.compact();
+
+         final List<String[]> users = Seeder.sampleUsers(1000);
+         Harness harness = new Harness();
+         SchemaMigrator.printSizes(esql);
+         Harness.header();
+         measure(esql, harness, users, "char");
+
+         migrator.migrate();
+         migrator.compact();
+
+         SchemaMigrator.printSizes(esql);
+         Harness.header();
+         measure(esql, harness, users, "varchar");
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   static void measure(final Cafe esql, Harness harness, final List<String[]> users, String param) throws Exception {
+      final Random random = new Random(42);
+      harness.run("login", param, new Harness.Op() {
+         public void run() throws Exception {
+            String[] user = users.get(random.nextInt(users.size()));
+            esql.authenticate(user[0], user[1]);
+         }
+      });
+      harness.run("order_history", param, new Harness.Op() {
+         public void run() throws Exception {
+            esql.orderHistory(users.get(random.nextInt(users.size()))[0], null, OrderHistory.DEFAULT_PAGE_SIZE).latest();
+         }
+      });
+      harness.run("user_items", param, new Harness.Op() {
+         public void run() throws Exception {
+            ItemStatusHistory.forUser(esql, users.get(random.nextInt(users.size()))[0],
+                                      ItemStatusHistory.DEFAULT_PAGE_SIZE).latest();
+         }
+      });
+      harness.run("staff_items", param, new Harness.Op() {
+         public void run() throws Exception {
+            long now = System.currentTimeMillis();
+            ItemStatusHistory.forStaff(esql, "Finished", new Timestamp(now - 24L * 60 * 60 * 1000),
+                                       new Timestamp(now), ItemStatusHistory.DEFAULT_PAGE_SIZE).latest();
+         }
+      });
+      harness.run("menu_sql", param, new Harness.Op() {
+         public void run() throws Exception {
+            esql.query("SELECT itemName, type, price, description, imageURL FROM MENU ORDER BY type, itemName");
+         }
+      });
+   }//end measure
+
+   /*
+    * Puts the columns back on char(n) and forgets version 1.
+    */
+   static void revert(Cafe esql) throws Exception {
+      System.err.println("Reverting to char(n) columns...");
+      esql.beginTransaction();
+      try{
+         String table = null;
+         StringBuilder sql = new StringBuilder();
+         for (String[] c : CHAR_COLUMNS){
+            if (!c[0].equals(table)){
+               if (table != null)
+                  esql.executeUpdate(sql.toString());
+               table = c[0];
+               sql.setLength(0);
+               sql.append("ALTER TABLE ").append(table);
+            }else{
+               sql.append(",");
+            }//end if
+            sql.append(" ALTER COLUMN ").append(c[1]).append(" TYPE ").append(c[2]);
+         }//end for
+         esql.executeUpdate(sql.toString());
+         esql.executeUpdate("DELETE FROM schema_version WHERE version = 1");
+         esql.commit();
+      }catch (Exception e){
+         esql.rollback();
+         throw e;
+      }//end try
+   }//end revert
+
+}//end SchemaBench
@@ -0,0 +1,160 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seeds a benchmark database from the files in project/data and grows the
+ * Orders/ItemStatus tables to a requested size.
+ *
+ * Rows already present are left alone, so seeding can be repeated and
+ * sizes only ever grow. The data directory is taken from the cafe.data
+ * system property.
+ *
+ */
+public class Seeder {
+
+   static final int BATCH = 1000;
+
+   /**
+    * @return the directory holding menu.csv and users.csv
+    */
+   static File dataDir() {
+      return new File(System.getProperty("cafe.data", "../data"));
+   }//end dataDir
+
+   /**
+    * Reads a semicolon delimited file as used by load_data.sql.
+    *
+    * @param file the file to read
+    * @return one array of fields per line, empty fields kept
+    * @throws java.io.IOException when the file cannot be read
+    */
+   static List<String[]> readCsv(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null){
+            if (!line.isEmpty())
+               rows.add(line.split(";", -1));
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      return rows;
+   }//end readCsv
+
+   /**
+    * Inserts the rows of menu.csv that are not in Menu yet.
+    */
+   static void loadMenu(Cafe esql) throws IOException, SQLException {
+      List<Object[]> rows = new ArrayList<Object[]>();
+      for (String[] f : readCsv(new File(dataDir(), "menu.csv")))
+         rows.add(new Object[] { f[0], f[1], Money.toNumeric(Money.parse(f[2])), f[3], f[4], f[0] });
+      insert(esql,
+         "INSERT INTO Menu (itemName, type, price, description, imageURL) " +
+         "SELECT ?,?,?,?,? WHERE NOT EXISTS (SELECT 1 FROM Menu WHERE itemName = ?)", rows);
+      esql.menu().invalidate();
+   }//end loadMenu
+
+   /**
+    * Inserts the rows of users.csv that are not in Users yet.
+    */
+   static void loadUsers(Cafe esql) throws IOException, SQLException {
+      List<Object[]> rows = new ArrayList<Object[]>();
+      for (String[] f : readCsv(new File(dataDir(), "users.csv")))
+         rows.add(new Object[] { f[0], f[1], f[2], f[3], f[4], f[0] });
+      insert(esql,
+         "INSERT INTO Users (login, phoneNum, password, favItems, type) " +
+         "SELECT ?,?,?,?,? WHERE NOT EXISTS (SELECT 1 FROM Users WHERE login = ?)", rows);
+   }//end loadUsers
+
+   /**
+    * @param limit the maximum number of users returned
+    * @return { login, password, type } of the first users in users.csv
+    */
+   static List<String[]> sampleUsers(int limit) throws IOException {
+      List<String[]> users = new ArrayList<String[]>();
+      for (String[] f : readCsv(new File(dataDir(), "users.csv"))){
+         if (users.size() == limit)
+            break;
+         users.add(new String[] { f[0], f[2], f[4] });
+      }//end for
+      return users;
+   }//end sampleUsers
+
+   /**
+    * Tops Orders up to at least size rows. New orders are spread over every
+    * user and the past year, and each gets one ItemStatus row and a total.
+    */
+   static void growOrders(Cafe esql, long size) throws SQLException {
+      long current = esql.queryForLong("SELECT count(*) FROM Orders");
+      if (current >= size)
+         return;
+      long maxId = esql.queryForLong("SELECT COALESCE(MAX(orderid), 0) FROM Orders");
+      System.err.println("Seeding " + (size - current) + " orders...");
+
+      esql.beginTransaction();
+      try{
+         // the orders span the last 8760 hours
+         esql.queryForInt("SELECT create_month_partitions(now() - interval '8761 hours', now() + interval '1 month')");
+         esql.executeUpdate(
+            "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+            "SELECT u.login, g % 3 <> 0, NOW() - (g % 8760) * '1 hour'::INTERVAL, 0 " +
+            "FROM generate_series(1, ?) g " +
+            "JOIN (SELECT login, row_number() OVER (ORDER BY login) - 1 AS k FROM Users) u " +
+            "ON u.k = g % (SELECT count(*) FROM Users)",
+            (int) (size - current));
+         esql.executeUpdate(
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, unitPrice, orderTime) " +
+            "SELECT o.orderid, m.itemName, o.timeStampRecieved, 'Finished', '', m.price, o.timeStampRecieved " +
+            "FROM Orders o " +
+            "JOIN (SELECT itemName, price, row_number() OVER (ORDER BY itemName) - 1 AS k FROM Menu) m " +
+            "ON m.k = o.orderid % (SELECT count(*) FROM Menu) WHERE o.orderid > ?",
+            (int) maxId);
+         esql.executeUpdate(
+            "UPDATE Orders o SET total = s.unitPrice * s.quantity - s.discount FROM ItemStatus s " +
+            "WHERE o.orderid > ? AND s.orderid = o.orderid AND s.orderTime = o.timeStampRecieved",
+            (int) maxId);
+         esql.commit();
+      }catch (SQLException e){
+         esql.rollback();
+         throw e;
+      }//end try
+      esql.executeStatement("ANALYZE Orders");
+      esql.executeStatement("ANALYZE ItemStatus");
+   }//end growOrders
+
+   /*
+    * Runs sql once per row in JDBC batches inside one transaction.
+    */
+   private static void insert(Cafe esql, String sql, List<Object[]> rows) throws SQLException {
+      esql.beginTransaction();
+      try{
+         PooledConnection conn = esql.borrow();
+         PreparedStatement stmt = conn.getStatements().prepare(sql);
+         int pending = 0;
+         for (Object[] row : rows){
+            for (int i = 0; i < row.length; ++i)
+               stmt.setObject(i + 1, row[i]);
+            stmt.addBatch();
+            if (++pending == BATCH){
+               stmt.executeBatch();
+               pending = 0;
+            }//end if
+         }//end for
+         if (pending > 0)
+            stmt.executeBatch();
+         esql.commit();
+      }catch (SQLException e){
+         esql.rollback();
+         throw e;
+      }//end try
+   }//end insert
+
+}//end Seeder
@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+if [ $# -lt 1 ]; then
+   echo "Usage: $0 <benchmark class> [args...]"
+   exit 1
+fi
+BENCH=$1
+shift
+
+# compile the java program together with the benchmarks
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java $DIR/../bench/*.java
+
+#run the benchmark against a scratch database, it writes synthetic rows
+java $JAVA_OPTS -Dcafe.data=$DIR/../../data -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar $BENCH $USER"_DB" $PGPORT $USER "$@"
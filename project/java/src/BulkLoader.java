@@ -0,0 +1,505 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads the semicolon delimited data files of project/data from the client
+ * side, replacing the server-side COPY ... FROM 'file' of load_data.sql.
+ *
+ * Each file is read once and cut into chunks of rows that a set of worker
+ * threads writes concurrently, each on its own pooled connection. A chunk is
+ * sent with COPY ... FROM STDIN when the JDBC driver offers a CopyManager,
+ * and otherwise as multi-row INSERTs in one transaction. Files follow the
+ * COPY text format: \N is NULL and backslash escapes are honoured.
+ *
+ * Secondary indexes of a table can be dropped before its load and rebuilt
+ * once afterwards, independent tables can be loaded at the same time, and
+ * orders_orderid_seq is moved past the largest loaded orderid. Orders and
+ * ItemStatus are partitioned by month, so their files go into unlogged
+ * staging tables first: the partitions for the months of the orders are
+ * created, and every item takes the time of its order as its partition key
+ * on the way into ItemStatus. Favorite
+ * lists of loaded users are moved into UserFavorites, and the sales
+ * rollups are rebuilt when orders were loaded. Missing files are skipped. Rows per second are reported per table.
+ *
+ */
+public class BulkLoader {
+
+   // rows per multi-row INSERT statement when COPY is not available
+   static final int ROWS_PER_INSERT = 200;
+
+   /**
+    * A table and the data file it is loaded from, columns in file order.
+    */
+   static class Table {
+      final String name;
+      final String file;
+      final String[] columns;
+      // column definitions of the staging table the file is loaded into,
+      // and the INSERT ... SELECT moving its rows into the table; null when
+      // the file is loaded into the table itself
+      final String staging;
+      final String move;
+
+      Table(String name, String file, String... columns) {
+         this(name, file, null, null, columns);
+      }
+
+      Table(String name, String file, String staging, String move, String[] columns) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.staging = staging;
+         this.move = move;
+      }
+
+      /**
+       * @return the table the file is written into
+       */
+      String target() {
+         return this.staging == null ? this.name : this.name.toLowerCase(Locale.ROOT) + "_load";
+      }
+   }//end Table
+
+   // in dependency order: ItemStatus references Orders and Menu
+   static final Table MENU = new Table("Menu", "menu.csv",
+      "itemName", "type", "price", "description", "imageURL");
+   static final Table USERS = new Table("Users", "users.csv",
+      "login", "phoneNum", "password", "favItems", "type");
+   static final Table ORDERS = new Table("Orders", "orders.csv",
+      "orderid integer, login varchar(50), paid boolean, timeStampRecieved timestamp, total numeric(10,2)",
+      "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) " +
+      "SELECT orderid, login, paid, timeStampRecieved, total FROM orders_load",
+      new String[] { "orderid", "login", "paid", "timeStampRecieved", "total" });
+   // an item without its order gets no orderTime and fails the NOT NULL
+   static final Table ITEM_STATUS = new Table("ItemStatus", "itemStatus.csv",
+      "orderid integer, itemName varchar(50), lastUpdated timestamp, status varchar(20), comments varchar(130)",
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, orderTime) " +
+      "SELECT s.orderid, s.itemName, s.lastUpdated, s.status, s.comments, o.timeStampRecieved " +
+      "FROM itemstatus_load s LEFT JOIN Orders o ON o.orderid = s.orderid",
+      new String[] { "orderid", "itemName", "lastUpdated", "status", "comments" });
+
+   private final Cafe esql;
+   private final File dataDir;
+   private final int threads;
+   private final int chunkRows;
+   private final boolean deferIndexes;
+   // CopyManager(BaseConnection) and copyIn(String, Reader), null when the
+   // driver has no COPY support
+   private final Constructor<?> copyManager;
+   private final Method copyIn;
+
+   public BulkLoader(Cafe esql, File dataDir, int threads, int chunkRows,
+                     boolean deferIndexes, boolean useCopy) {
+      this.esql = esql;
+      this.dataDir = dataDir;
+      this.threads = threads;
+      this.chunkRows = chunkRows;
+      this.deferIndexes = deferIndexes;
+      Constructor<?> ctor = null;
+      Method method = null;
+      if (useCopy){
+         try{
+            Class<?> manager = Class.forName("org.postgresql.copy.CopyManager");
+            ctor = manager.getConstructor(Class.forName("org.postgresql.core.BaseConnection"));
+            method = manager.getMethod("copyIn", String.class, Reader.class);
+         }catch (Exception e){
+            ctor = null;
+            method = null;
+         }//end try
+      }//end if
+      this.copyManager = ctor;
+      this.copyIn = method;
+   }//end BulkLoader
+
+   /**
+    * @return true when chunks are sent with COPY, false for INSERTs
+    */
+   public boolean usesCopy() {
+      return this.copyIn != null;
+   }
+
+   /**
+    * Loads every table whose file exists. With parallel set, Menu, Users
+    * and Orders are loaded at the same time and ItemStatus after them.
+    *
+    * @return rows loaded per table
+    * @throws java.lang.Exception when a table failed to load
+    */
+   public Map<String, Long> loadAll(boolean parallel) throws Exception {
+      Map<String, Long> loaded = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+      if (parallel){
+         loadConcurrently(loaded, MENU, USERS, ORDERS);
+         loadConcurrently(loaded, ITEM_STATUS);
+      }else{
+         for (Table t : new Table[] { MENU, USERS, ORDERS, ITEM_STATUS })
+            loadConcurrently(loaded, t);
+      }//end if
+      if (loaded.containsKey(USERS.name))
+         System.out.println("UserFavorites: " + this.esql.migrateFavorites() + " favorites migrated from Users.favItems");
+      if (loaded.containsKey(ORDERS.name) || loaded.containsKey(ITEM_STATUS.name))
+         System.out.println("Sales rollups: rebuilt in " + new SalesRollup(this.esql).rebuildAll(7) + " step(s)");
+      return loaded;
+   }//end loadAll
+
+   private void loadConcurrently(final Map<String, Long> loaded, Table... tables) throws Exception {
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      List<Thread> running = new ArrayList<Thread>();
+      for (final Table t : tables){
+         Thread thread = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  long rows = load(t);
+                  if (rows >= 0)
+                     loaded.put(t.name, rows);
+               }catch (Exception e){
+                  failure.compareAndSet(null, e);
+               }//end try
+            }
+         }, "load-" + t.name);
+         running.add(thread);
+         thread.start();
+      }//end for
+      for (Thread thread : running)
+         thread.join();
+      if (failure.get() != null)
+         throw failure.get();
+   }//end loadConcurrently
+
+   /**
+    * Loads one table from its file.
+    *
+    * @return the number of rows loaded, -1 when the file does not exist
+    * @throws java.lang.Exception when reading the file or writing a chunk failed
+    */
+   public long load(final Table table) throws Exception {
+      File file = new File(this.dataDir, table.file);
+      if (!file.isFile()){
+         System.out.println(table.name + ": " + file + " not found, skipped");
+         return -1;
+      }//end if
+
+      if (table.staging != null){
+         this.esql.executeStatement("DROP TABLE IF EXISTS " + table.target());
+         this.esql.executeStatement("CREATE UNLOGGED TABLE " + table.target() + " (" + table.staging + ")");
+      }//end if
+      Map<String, String> indexes = this.deferIndexes ? dropIndexes(table) : new HashMap<String, String>();
+      long start = System.nanoTime();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      final BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<List<String>>(this.threads * 2);
+      final List<String> done = new ArrayList<String>();
+      try{
+         List<Thread> workers = new ArrayList<Thread>();
+         for (int i = 0; i < this.threads; ++i){
+            Thread worker = new Thread(new Runnable() {
+               public void run() {
+                  try{
+                     List<String> chunk;
+                     while ((chunk = chunks.take()) != done){
+                        if (failure.get() == null){
+                           write(table, chunk);
+                           rows.addAndGet(chunk.size());
+                        }//end if
+                     }//end while
+                  }catch (Exception e){
+                     failure.compareAndSet(null, e);
+                     // keep draining so the reader never blocks
+                     try{
+                        while (chunks.take() != done);
+                     }catch (InterruptedException ie){
+                        Thread.currentThread().interrupt();
+                     }//end try
+                  }//end try
+               }
+            }, "load-" + table.name + "-" + i);
+            workers.add(worker);
+            worker.start();
+         }//end for
+
+         BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+         try{
+            List<String> chunk = new ArrayList<String>(this.chunkRows);
+            String line;
+            while ((line = reader.readLine()) != null && failure.get() == null){
+               if (line.isEmpty())
+                  continue;
+               chunk.add(line);
+               if (chunk.size() == this.chunkRows){
+                  chunks.put(chunk);
+                  chunk = new ArrayList<String>(this.chunkRows);
+               }//end if
+            }//end while
+            if (!chunk.isEmpty())
+               chunks.put(chunk);
+         }finally{
+            reader.close();
+            for (int i = 0; i < this.threads; ++i)
+               chunks.put(done);
+            for (Thread worker : workers)
+               worker.join();
+         }//end try
+         if (failure.get() != null)
+            throw failure.get();
+         if (table.staging != null)
+            rows.set(moveStaged(table));
+      }finally{
+         if (table.staging != null)
+            this.esql.executeStatement("DROP TABLE IF EXISTS " + table.target());
+         restoreIndexes(indexes);
+      }//end try
+
+      if (table == ORDERS)
+         this.esql.queryForLong(
+            "SELECT setval('orders_orderid_seq', (SELECT COALESCE(MAX(orderid), 0) + 1 FROM Orders), false)");
+      this.esql.executeStatement("ANALYZE " + table.name);
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format(Locale.ROOT, "%s: %d rows in %.1fs, %.0f rows/s (%s%s)",
+         table.name, rows.get(), seconds, rows.get() / seconds, usesCopy() ? "COPY" : "INSERT",
+         indexes.isEmpty() ? "" : ", " + indexes.size() + " index(es) rebuilt"));
+      return rows.get();
+   }//end load
+
+   /*
+    * Writes one chunk of file lines on a connection of its own.
+    */
+   private void write(Table table, List<String> lines) throws Exception {
+      if (usesCopy()){
+         PooledConnection conn = this.esql.borrow();
+         try{
+            StringBuilder data = new StringBuilder(lines.size() * 64);
+            for (String line : lines)
+               data.append(line).append('\n');
+            Object manager = this.copyManager.newInstance(conn.getConnection());
+            this.copyIn.invoke(manager, "COPY " + table.target() + " (" + join(table.columns) +
+               ") FROM STDIN WITH DELIMITER ';'", new StringReader(data.toString()));
+         }catch (InvocationTargetException e){
+            conn.markBroken();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+         }finally{
+            this.esql.release(conn);
+         }//end try
+         return;
+      }//end if
+
+      this.esql.beginTransaction();
+      try{
+         Connection conn = this.esql.borrow().getConnection();
+         PreparedStatement full = null;
+         try{
+            int n = table.columns.length;
+            for (int from = 0; from < lines.size(); from += ROWS_PER_INSERT){
+               int count = Math.min(ROWS_PER_INSERT, lines.size() - from);
+               PreparedStatement stmt;
+               if (count == ROWS_PER_INSERT){
+                  if (full == null)
+                     full = conn.prepareStatement(insertSql(table, ROWS_PER_INSERT));
+                  stmt = full;
+               }else{
+                  stmt = conn.prepareStatement(insertSql(table, count));
+               }//end if
+               try{
+                  for (int r = 0; r < count; ++r){
+                     String line = lines.get(from + r);
+                     List<String> fields = split(line);
+                     if (fields.size() != n)
+                        throw new SQLException(table.file + ": expected " + n + " fields, got " +
+                                               fields.size() + " in: " + line);
+                     for (int c = 0; c < n; ++c){
+                        String v = fields.get(c);
+                        if (v == null)
+                           stmt.setNull(r * n + c + 1, Types.VARCHAR);
+                        else
+                           stmt.setString(r * n + c + 1, v);
+                     }//end for
+                  }//end for
+                  stmt.executeUpdate();
+               }finally{
+                  if (stmt != full)
+                     ConnectionPool.closeQuietly(stmt);
+               }//end try
+            }//end for
+         }finally{
+            ConnectionPool.closeQuietly(full);
+         }//end try
+         this.esql.commit();
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+   }//end write
+
+   private static String insertSql(Table table, int rows) {
+      StringBuilder row = new StringBuilder("(");
+      for (int c = 0; c < table.columns.length; ++c)
+         row.append(c == 0 ? "?" : ",?");
+      row.append(')');
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.target())
+         .append(" (").append(join(table.columns)).append(") VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append(r == 0 ? "" : ",").append(row);
+      return sql.toString();
+   }//end insertSql
+
+   /*
+    * Moves the rows of the staging table of table into it, creating the
+    * partitions of the months loaded first.
+    *
+    * @return the number of rows moved
+    */
+   private long moveStaged(Table table) throws SQLException {
+      if (table == ORDERS)
+         this.esql.queryForInt(
+            "SELECT create_month_partitions(MIN(timeStampRecieved), MAX(timeStampRecieved) + interval '1 second') " +
+            "FROM orders_load");
+      return this.esql.executeUpdate(table.move);
+   }//end moveStaged
+
+   /*
+    * Drops the indexes of table that back no constraint and returns their
+    * definitions by name.
+    */
+   private Map<String, String> dropIndexes(Table table) throws SQLException {
+      Map<String, String> indexes = new LinkedHashMap<String, String>();
+      QueryResult found = this.esql.query(
+         "SELECT i.indexname, i.indexdef FROM pg_indexes i WHERE i.tablename = lower(?) " +
+         "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname)", table.name);
+      for (int r = 0; r < found.getRowCount(); ++r){
+         this.esql.executeStatement("DROP INDEX " + found.get(r, 0));
+         indexes.put(found.get(r, 0), found.get(r, 1));
+      }//end for
+      return indexes;
+   }//end dropIndexes
+
+   private void restoreIndexes(Map<String, String> indexes) throws SQLException {
+      // an index of a partitioned table reads ON ONLY, which would leave it
+      // without the indexes of its partitions
+      for (String definition : indexes.values())
+         this.esql.executeStatement(definition.replace(" ON ONLY ", " ON "));
+   }//end restoreIndexes
+
+   /**
+    * Splits one line of the COPY text format on ';'.
+    *
+    * @return the fields, null for \N
+    */
+   static List<String> split(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder cur = new StringBuilder();
+      boolean isNull = false;
+      for (int i = 0; i < line.length(); ++i){
+         char c = line.charAt(i);
+         if (c == ';'){
+            fields.add(isNull ? null : cur.toString());
+            cur.setLength(0);
+            isNull = false;
+         }else if (c == '\\' && i + 1 < line.length()){
+            char e = line.charAt(++i);
+            switch (e){
+               case 'N': isNull = true; break;
+               case 'n': cur.append('\n'); break;
+               case 'r': cur.append('\r'); break;
+               case 't': cur.append('\t'); break;
+               case 'b': cur.append('\b'); break;
+               case 'f': cur.append('\f'); break;
+               case 'v': cur.append('\u000b'); break;
+               default: cur.append(e); break;
+            }//end switch
+         }else{
+            cur.append(c);
+         }//end if
+      }//end for
+      fields.add(isNull ? null : cur.toString());
+      return fields;
+   }//end split
+
+   private static String join(String[] names) {
+      StringBuilder sb = new StringBuilder();
+      for (String name : names){
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(name);
+      }//end for
+      return sb.toString();
+   }//end join
+
+   /**
+    * Loads project/data into a database:
+    *
+    *   java BulkLoader <dbname> <port> <user> [key=value ...]
+    *
+    * with data=<dir> (../data), threads=<per table> (4), chunk=<rows> (10000),
+    * parallel=true|false, deferIndexes=true|false and copy=true|false.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> [key=value ...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("data", "../data");
+      opts.put("threads", "4");
+      opts.put("chunk", "10000");
+      opts.put("parallel", "true");
+      opts.put("deferIndexes", "true");
+      opts.put("copy", "true");
+      for (int i = 3; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq < 0 || !opts.containsKey(args[i].substring(0, eq)))
+            throw new IllegalArgumentException("unknown setting " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+
+      int threads = Integer.parseInt(opts.get("threads"));
+      boolean parallel = Boolean.parseBoolean(opts.get("parallel"));
+      // one connection per worker plus one for the coordinating thread
+      if (System.getProperty("cafe.pool.max") == null)
+         System.setProperty("cafe.pool.max", Integer.toString(threads * (parallel ? 3 : 1) + 1));
+      System.setProperty("cafe.notify.enabled", "false");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         BulkLoader loader = new BulkLoader(esql, new File(opts.get("data")), threads,
+            Integer.parseInt(opts.get("chunk")), Boolean.parseBoolean(opts.get("deferIndexes")),
+            Boolean.parseBoolean(opts.get("copy")));
+         long start = System.nanoTime();
+         Map<String, Long> loaded = loader.loadAll(parallel);
+         long total = 0;
+         for (long rows : loaded.values())
+            total += rows;
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format(Locale.ROOT, "total: %d rows in %.1fs, %.0f rows/s",
+            total, seconds, total / seconds));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end BulkLoader
@@ -19,13 +19,17 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -37,10 +41,69 @@ import java.text.SimpleDateFormat;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+   // connection of the transaction open on the current thread, if any.
+   private final ThreadLocal<PooledConnection> _transaction = new ThreadLocal<PooledConnection>();
+   // in-process copy of the Menu table.
+   private final MenuCache _menu = new MenuCache(this);
+   // LISTEN/NOTIFY connection, started by the first listen() call.
+   private NotificationListener _listener = null;
+   // live kitchen view, started by the first kitchenBoard() call.
+   private KitchenBoard _board = null;
+   // latency, row and error counters per operation and per SQL shape.
+   private final Metrics _metrics = new Metrics();
+   // statements slower than cafe.slowlog.thresholdMs, with sampled plans.
+   private final SlowQueryLog _slowLog = new SlowQueryLog(this,
+      new File(System.getProperty("cafe.slowlog.file", "cafe-slow.log")),
+      Long.getLong("cafe.slowlog.thresholdMs", 250L),
+      Double.parseDouble(System.getProperty("cafe.slowlog.explainSample", "0.1")),
+      Long.getLong("cafe.slowlog.explainIntervalMs", 60000L),
+      Long.getLong("cafe.slowlog.maxBytes", 10L * 1024 * 1024),
+      Integer.getInteger("cafe.slowlog.keep", 5));
+   // authenticated sessions, kept cafe.session.ttlMinutes after last use.
+   private final SessionStore _sessions =
+      new SessionStore(Long.getLong("cafe.session.ttlMinutes", 30L) * 60 * 1000);
    static private String user_login = null;
-   static private String user_type = null;
+   // token of the interactive user's session in _sessions.
+   static private String session_token = null;
+
+   // rows fetched per round trip when streaming a result through a cursor.
+   static final int FETCH_SIZE = Integer.getInteger("cafe.fetchSize", 256);
+   // numbers the cursors, so a handler may open one inside another.
+   private static final java.util.concurrent.atomic.AtomicLong cursors =
+      new java.util.concurrent.atomic.AtomicLong();
+
+   // most items listed by a menu search.
+   static final int SEARCH_LIMIT = 10;
+
+   // valid values of Users.type.
+   static final List<String> USER_TYPES = Arrays.asList("Customer", "Employee", "Manager");
+
+   // valid values of ItemStatus.status.
+   static final List<String> ITEM_STATUSES = Arrays.asList("Hasn't started", "Started", "Finished");
+
+   // maps the first column of a row to a trimmed string.
+   static final RowMapper<String> STRING_COLUMN = new RowMapper<String>() {
+      public String map(ResultSet rs) throws SQLException {
+         String v = rs.getString(1);
+         return v == null ? null : v.trim();
+      }
+   };
+
+   // maps the first column of a row to a timestamp.
+   static final RowMapper<Timestamp> TIMESTAMP_COLUMN = new RowMapper<Timestamp>() {
+      public Timestamp map(ResultSet rs) throws SQLException {
+         return rs.getTimestamp(1);
+      }
+   };
+
+   // where connection progress is reported; stderr in headless mode so
+   // stdout only carries results.
+   static PrintStream console = System.out;
+
+   // renders query results to standard out through one buffered writer.
+   static final ResultPrinter printer = new ResultPrinter(System.out);
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -50,6 +113,19 @@ public class Cafe {
    /**
     * Creates a new instance of Cafe
     *
+    * The pool is sized through the system properties cafe.pool.min,
+    * cafe.pool.max, cafe.pool.idleTimeoutMs, cafe.pool.borrowTimeoutMs and
+    * cafe.pool.validateAfterMs. Notifications from other processes are
+    * polled every cafe.notify.pollMs and can be turned off with
+    * cafe.notify.enabled=false. When cafe.metrics.dumpFile is set, the
+    * counters of metrics() are written to it every cafe.metrics.dumpMs
+    * (60000), as JSON unless cafe.metrics.format=text.
+    * Statements running at least cafe.slowlog.thresholdMs (250, -1 for
+    * none) are logged to cafe.slowlog.file (cafe-slow.log), rotated at
+    * cafe.slowlog.maxBytes keeping cafe.slowlog.keep files; a share
+    * cafe.slowlog.explainSample (0.1) of the slow SELECTs get their plan
+    * captured, at most once per cafe.slowlog.explainIntervalMs per shape.
+    *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
     * @param username the user name used to login to the database
@@ -58,174 +134,1076 @@ public class Cafe {
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
 
-      System.out.print("Connecting to database...");
+      console.print("Connecting to database...");
       try{
          // constructs the connection URL
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
+         console.println ("Connection URL: " + url + "\n");
+
+         // open the initial physical connections
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("cafe.pool.min", 1),
+            Integer.getInteger("cafe.pool.max", 8),
+            Long.getLong("cafe.pool.idleTimeoutMs", 300000L),
+            Long.getLong("cafe.pool.borrowTimeoutMs", 5000L),
+            Long.getLong("cafe.pool.validateAfterMs", 1000L));
+
+         // drop the menu cache whenever another process edits the menu
+         if (!"false".equals(System.getProperty("cafe.notify.enabled"))){
+            this._listener = new NotificationListener(url, user, passwd,
+               Long.getLong("cafe.notify.pollMs", 500L));
+            this._listener.listen(MenuCache.CHANNEL, new NotificationListener.Handler() {
+               public void notified(String channel) {
+                  _menu.invalidate();
+               }
+            });
+         }//end if
+         String dumpFile = System.getProperty("cafe.metrics.dumpFile");
+         if (dumpFile != null)
+            this._metrics.startDump(new File(dumpFile), Long.getLong("cafe.metrics.dumpMs", 60000L),
+               !"text".equals(System.getProperty("cafe.metrics.format")));
+         console.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
+         console.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
    }//end Cafe
 
+   /**
+    * Borrows a connection from the pool. Must be paired with release().
+    * Inside a transaction this is the connection bound to the current
+    * thread, so every statement of the transaction runs on it.
+    *
+    * @return a pooled connection
+    * @throws java.sql.SQLException when no connection becomes available
+    */
+   PooledConnection borrow() throws SQLException {
+      PooledConnection bound = this._transaction.get();
+      if (bound != null)
+         return bound;
+      return this._pool.borrow();
+   }//end borrow
+
+   /**
+    * Returns a connection obtained from borrow() to the pool. The connection
+    * of an open transaction stays bound until commit() or rollback().
+    *
+    * @param conn the borrowed connection
+    */
+   void release(PooledConnection conn) {
+      if (conn != null && conn == this._transaction.get())
+         return;
+      this._pool.release(conn);
+   }//end release
+
+   /**
+    * Starts a transaction on the current thread. Every helper called from
+    * this thread runs on the same connection until commit() or rollback().
+    *
+    * @throws java.sql.SQLException when a transaction is already open or no connection is available
+    */
+   public void beginTransaction() throws SQLException {
+      if (this._transaction.get() != null)
+         throw new SQLException("A transaction is already open on this thread");
+      PooledConnection conn = this._pool.borrow();
+      try{
+         conn.getConnection().setAutoCommit(false);
+      }catch (SQLException e){
+         conn.markBroken();
+         this._pool.release(conn);
+         throw e;
+      }//end try
+      this._transaction.set(conn);
+   }//end beginTransaction
+
+   /**
+    * Commits the transaction of the current thread and returns its
+    * connection to the pool.
+    *
+    * @throws java.sql.SQLException when no transaction is open or the commit failed
+    */
+   public void commit() throws SQLException {
+      PooledConnection conn = this._transaction.get();
+      if (conn == null)
+         throw new SQLException("No transaction is open on this thread");
+      this._transaction.remove();
+      try{
+         conn.getConnection().commit();
+      }catch (SQLException e){
+         conn.markBroken();
+         throw e;
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end commit
+
+   /**
+    * Rolls back the transaction of the current thread, if any, and returns
+    * its connection to the pool.
+    */
+   public void rollback() {
+      PooledConnection conn = this._transaction.get();
+      if (conn == null)
+         return;
+      this._transaction.remove();
+      try{
+         conn.getConnection().rollback();
+      }catch (SQLException e){
+         conn.markBroken();
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end rollback
+
+   /**
+    * @return the in-process menu cache
+    */
+   public MenuCache menu() {
+      return this._menu;
+   }//end menu
+
+   /**
+    * @return the latency, row and error counters of this instance
+    */
+   public Metrics metrics() {
+      return this._metrics;
+   }//end metrics
+
+   /**
+    * Registers handler for notifications on channel.
+    *
+    * @param channel the NOTIFY channel name
+    * @param handler called on the listener thread for every notification
+    * @throws java.sql.SQLException when notifications are disabled
+    */
+   public void listen(String channel, NotificationListener.Handler handler) throws SQLException {
+      if (this._listener == null)
+         throw new SQLException("Notifications are disabled (cafe.notify.enabled=false)");
+      this._listener.listen(channel, handler);
+   }//end listen
+
+   /**
+    * The live kitchen board, loaded and subscribed to ItemStatus changes on
+    * first use. It keeps the items updated within the last
+    * cafe.board.windowHours (12) and re-reads cafe.board.overlapMs (10000)
+    * before the newest update seen on every refresh.
+    *
+    * @return the shared board
+    * @throws java.sql.SQLException when notifications are disabled or the board could not be loaded
+    */
+   public synchronized KitchenBoard kitchenBoard() throws SQLException {
+      if (this._board == null){
+         KitchenBoard board = new KitchenBoard(this,
+            Long.getLong("cafe.board.windowHours", 12L) * 60 * 60 * 1000,
+            Long.getLong("cafe.board.overlapMs", 10000L));
+         board.start();
+         this._board = board;
+      }//end if
+      return this._board;
+   }//end kitchenBoard
+
+   /**
+    * @return a one-line summary of the connection pool state
+    */
+   public String getPoolStats() {
+      return this._pool.stats();
+   }//end getPoolStats
+
+   /**
+    * Prepares sql on the borrowed connection through its statement cache and
+    * binds params to its ? placeholders in order.
+    */
+   static PreparedStatement prepare(PooledConnection conn, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = conn.getStatements().prepare(sql);
+      for (int i = 0; i < params.length; ++i){
+         if (params[i] == null)
+            stmt.setNull(i + 1, Types.VARCHAR);
+         else
+            stmt.setObject(i + 1, params[i]);
+      }//end for
+      return stmt;
+   }//end prepare
+
+   /**
+    * Drops the cached statement after a failure so a broken or stale plan is
+    * not reused, and rethrows the error.
+    */
+   static SQLException failed(PooledConnection conn, String sql, SQLException e) {
+      conn.getStatements().invalidate(sql);
+      return e;
+   }//end failed
+
+   /**
+    * Reports a statement run by one of the execution helpers to the metrics
+    * and the slow-query log.
+    *
+    * @param rows rows returned or changed, negative if it failed
+    */
+   private void finished(String sql, Object[] params, long start, long rows) {
+      long nanos = System.nanoTime() - start;
+      this._metrics.statement(sql, nanos, rows);
+      this._slowLog.statement(sql, params, nanos, rows);
+   }//end finished
+
+   private static void closeQuietly(ResultSet rs) {
+      if (rs == null)
+         return;
+      try{
+         rs.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+   /**
+    * @return a one-line summary of the prepared-statement cache counters
+    */
+   public String getStatementCacheStats() {
+      return StatementCache.stats();
+   }//end getStatementCacheStats
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * includes INSERT, UPDATE and DELETE; DDL and other utility statements
+    * go through executeStatement, so they take no statement cache slot.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the number of rows inserted, updated or deleted
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      try{
+         // issues the update instruction
+         rows = prepare(conn, sql, params).executeUpdate ();
+         return rows;
+      }catch (SQLException e){
+         throw failed(conn, sql, e);
+      }finally{
+         release(conn);
+         finished(sql, params, start, rows);
+      }
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Method to execute a utility statement (LOCK, SET, VACUUM, ANALYZE,
+    * DDL) on a plain Statement, outside the statement cache: such
+    * statements take no parameters and are never worth preparing.
+    *
+    * @param sql the statement, without placeholders
+    * @throws java.sql.SQLException when the statement failed
+    */
+   public void executeStatement (String sql) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      Statement stmt = null;
+      try{
+         stmt = conn.getConnection().createStatement();
+         stmt.execute(sql);
+         rows = 0;
+      }finally{
+         ConnectionPool.closeQuietly(stmt);
+         release(conn);
+         finished(sql, new Object[0], start, rows);
+      }
+   }//end executeStatement
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * Receives the rows of a cursor one fetched batch at a time.
+    */
+   private interface CursorBatch {
+      /**
+       * @param rs the batch, positioned before its first row
+       * @param before rows taken from earlier batches
+       * @return the rows taken from rs
+       */
+      int take(ResultSet rs, int before) throws SQLException;
+   }//end CursorBatch
+
+   /**
+    * Runs query through an explicit server-side cursor, DECLARE ... CURSOR
+    * FOR query and then FETCH FETCH_SIZE at a time, so the driver never
+    * buffers more than one batch; the bundled driver does not implement
+    * setFetchSize. The connection leaves autocommit for the duration
+    * (release() restores it), and the cursor is closed once read. DECLARE
+    * and FETCH are prepared outside the statement cache, which may only
+    * server-prepare plain queries.
+    *
+    * @return the number of rows taken
+    */
+   private static int streamCursor(PooledConnection conn, String query, Object[] params, CursorBatch batch)
+      throws SQLException {
+      Connection c = conn.getConnection();
+      if (c.getAutoCommit())
+         c.setAutoCommit(false);
+      String name = "cafe_cursor_" + cursors.incrementAndGet();
+      PreparedStatement declare = c.prepareStatement("DECLARE " + name + " NO SCROLL CURSOR FOR " + query);
+      Statement fetch = null;
+      try{
+         for (int i = 0; i < params.length; ++i){
+            if (params[i] == null)
+               declare.setNull(i + 1, Types.VARCHAR);
+            else
+               declare.setObject(i + 1, params[i]);
+         }//end for
+         declare.execute();
+         fetch = c.createStatement();
+         int rows = 0;
+         int n;
+         do{
+            ResultSet rs = fetch.executeQuery("FETCH " + FETCH_SIZE + " FROM " + name);
+            try{
+               n = batch.take(rs, rows);
+            }finally{
+               closeQuietly(rs);
+            }//end try
+            rows += n;
+         }while (n == FETCH_SIZE);
+         fetch.execute("CLOSE " + name);
+         return rows;
+      }finally{
+         ConnectionPool.closeQuietly(declare);
+         ConnectionPool.closeQuietly(fetch);
+      }//end try
+   }//end streamCursor
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out as aligned columns, streaming rows through a cursor so
+    * large results use constant memory.
     *
-    * @param query the input query string
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = -1;
+      PooledConnection conn = borrow();
+      try{
+         // issues the query instruction and outputs each fetched batch to
+         // standard out, the header before the first row.
+         rowCount = streamCursor(conn, query, params, new CursorBatch() {
+            public int take(ResultSet rs, int before) throws SQLException {
+               return printer.print(rs, before == 0);
+            }
+         });
+         return rowCount;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         release(conn);
+         finished(query, params, start, rowCount);
+      }
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and hands each record to handler
+    * as it is fetched, without materializing the result.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param handler called once per row
+    * @param params values bound to the placeholders in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query or the handler failed
+    */
+   public int executeQueryAndHandleResult (String query, final RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      try{
+         rows = streamCursor(conn, query, params, new CursorBatch() {
+            public int take(ResultSet rs, int before) throws SQLException {
+               int rowCount = 0;
+               while (rs.next()){
+                  handler.row(rs);
+                  ++rowCount;
+               }//end while
+               return rowCount;
+            }
+         });
+         return rows;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end executeQueryAndHandleResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         // issues the query instruction
+         rs = prepare(conn, query, params).executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         rows = result.size();
+         return result;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         // issues the query instruction
+         rs = prepare(conn, query, params).executeQuery ();
 
-       int rowCount = 0;
+         int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         rows = rowCount;
+         return rowCount;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
    }
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) once and
+    * keep its result. The returned QueryResult carries the row count, typed
+    * column access and can be printed, so callers that need both never run
+    * the query twice.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the materialized result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult query (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, query, params).executeQuery ();
+         QueryResult result = QueryResult.read(rs);
+         rows = result.getRowCount();
+         return result;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end query
+
+   /**
+    * Method to execute a query and map each record with mapper.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param mapper turns the current row into an object
+    * @param params values bound to the placeholders in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryForList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, query, params).executeQuery ();
+         List<T> result = new ArrayList<T>();
+         while (rs.next())
+            result.add(mapper.map(rs));
+         rows = result.size();
+         return result;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end queryForList
+
+   /**
+    * Method to execute a query and map its first record with mapper.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param mapper turns the current row into an object
+    * @param params values bound to the placeholders in order
+    * @return the mapped first row, or null if the query returned none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, query, params).executeQuery ();
+         T result = null;
+         rows = 0;
+         if (rs.next()){
+            result = mapper.map(rs);
+            rows = 1;
+         }//end if
+         return result;
+      }catch (SQLException e){
+         rows = -1;
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end queryForObject
+
+   /**
+    * Method to execute a query returning a single integer, such as a count
+    * or an id, read without boxing or string parsing.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the first column of the first row, 0 for SQL NULL
+    * @throws java.sql.SQLException when failed to execute the query or it returned no row
+    */
+   public long queryForLong (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, query, params).executeQuery ();
+         if (!rs.next())
+            throw new SQLException("Query returned no rows: " + query);
+         long value = rs.getLong(1);
+         rows = 1;
+         return value;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end queryForLong
+
+   /**
+    * Same as queryForLong for int-valued results.
+    */
+   public int queryForInt (String query, Object... params) throws SQLException {
+      return (int) queryForLong(query, params);
+   }//end queryForInt
+
+   /**
+    * Method to execute a query returning a single real number, such as a
+    * price or a total.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the first column of the first row, 0 for SQL NULL
+    * @throws java.sql.SQLException when failed to execute the query or it returned no row
+    */
+   public float queryForFloat (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, query, params).executeQuery ();
+         if (!rs.next())
+            throw new SQLException("Query returned no rows: " + query);
+         float value = rs.getFloat(1);
+         rows = 1;
+         return value;
+      }catch (SQLException e){
+         throw failed(conn, query, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(query, params, start, rows);
+      }
+   }//end queryForFloat
+
+   /**
+    * Method to execute a query returning a single text value. Blank padding
+    * of char(n) columns is removed.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the first column of the first row, or null if there is no row or it is NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String queryForString (String query, Object... params) throws SQLException {
+      return queryForObject(query, STRING_COLUMN, params);
+   }//end queryForString
+
+   /**
+    * Method to execute a query returning a single timestamp.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return the first column of the first row, or null if there is no row or it is NULL
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Timestamp queryForTimestamp (String query, Object... params) throws SQLException {
+      return queryForObject(query, TIMESTAMP_COLUMN, params);
+   }//end queryForTimestamp
+
+   /**
+    * Method to test whether a query returns any row. The query is wrapped in
+    * SELECT EXISTS (...), so the server stops at the first match and a
+    * single boolean crosses the wire.
+    *
+    * @param query the input query string, with a ? placeholder per parameter
+    * @param params values bound to the placeholders in order
+    * @return true if the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      String body = query.trim();
+      if (body.endsWith(";"))
+         body = body.substring(0, body.length() - 1);
+      String sql = "SELECT EXISTS (" + body + ")";
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, sql, params).executeQuery ();
+         boolean found = rs.next() && rs.getBoolean(1);
+         rows = found ? 1 : 0;
+         return found;
+      }catch (SQLException e){
+         throw failed(conn, sql, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(sql, params, start, rows);
+      }
+   }//end exists
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
     * value of sequence used for autogenerated keys
     *
+    * currval() is scoped to a database session, so with pooled connections
+    * it only sees a nextval() issued on the same borrowed connection.
+    *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      String sql = "SELECT currval(?)";
+      Object[] params = { sequence };
+      long start = System.nanoTime();
+      int rows = -1;
+      PooledConnection conn = borrow();
+      ResultSet rs = null;
+      try{
+         rs = prepare(conn, sql, params).executeQuery ();
+         rows = 0;
+         if (rs.next()){
+            rows = 1;
+            return rs.getInt(1);
+         }//end if
+         return -1;
+      }catch (SQLException e){
+         rows = -1;
+         throw failed(conn, sql, e);
+      }finally{
+         closeQuietly(rs);
+         release(conn);
+         finished(sql, params, start, rows);
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Places an order for login containing one of each item in items. The
+    * order id comes from the orderid sequence through INSERT ... RETURNING,
+    * and the whole order is written in a single transaction; see
+    * OrderPlacement.
+    *
+    * @param login the customer placing the order
+    * @param items names of menu items, each listed once
+    * @return the placed order
+    * @throws java.sql.SQLException when an item is unknown or the order could not be written
     */
-   public void cleanup(){
+   public OrderPlacement.Receipt placeOrder(String login, List<String> items) throws SQLException {
+      return placeOrderLines(login, OrderPlacement.lines(items));
+   }//end placeOrder
+
+   /**
+    * Places an order for login with a quantity and a discount per item; see
+    * placeOrder.
+    *
+    * @param login the customer placing the order
+    * @param lines the basket, each item on one line only
+    * @return the placed order
+    * @throws java.sql.SQLException when an item is unknown, a quantity or
+    *         discount is out of range, or the order could not be written
+    */
+   public OrderPlacement.Receipt placeOrderLines(String login, List<OrderPlacement.Line> lines) throws SQLException {
+      Metrics.Span op = this._metrics.begin("place_order");
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         OrderPlacement.Receipt receipt = new OrderPlacement(this).place(login, lines);
+         op.ok();
+         return receipt;
+      }finally{
+         op.end();
+      }//end try
+   }//end placeOrderLines
+
+   /**
+    * Sets the discount of one item of an unpaid order; see
+    * OrderPlacement.discount.
+    *
+    * @param orderId the order
+    * @param itemName the item
+    * @param discountCents taken off the item's line
+    * @return the new total of the order, in cents
+    * @throws java.sql.SQLException when the order is paid or has no such item,
+    *         or the discount is out of range
+    */
+   public long discountOrderItem(int orderId, String itemName, long discountCents) throws SQLException {
+      Metrics.Span op = this._metrics.begin("discount_item");
+      try{
+         long total = new OrderPlacement(this).discount(orderId, itemName, discountCents);
+         op.ok();
+         return total;
+      }finally{
+         op.end();
+      }//end try
+   }//end discountOrderItem
+
+   /**
+    * Creates a customer account.
+    *
+    * @param login the new login, final once created
+    * @param password the user password
+    * @param phone the user phone number
+    * @throws java.sql.SQLException when the login or phone number is taken
+    */
+   public void createUser(String login, String password, String phone) throws SQLException {
+      String query = "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?,?,?,?,?)";
+      Metrics.Span op = this._metrics.begin("create_user");
+      try{
+         executeUpdate(query, phone, login, password, null, "Customer");
+         op.ok();
+      }finally{
+         op.end();
+      }//end try
+   }//end createUser
+
+   /**
+    * Checks credentials and fetches the role in one lookup.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return the user type (Customer, Employee or Manager), or null if the credentials are wrong
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String authenticate(String login, String password) throws SQLException {
+      return queryForString("SELECT type FROM USERS WHERE login = ? AND password = ?", login, password);
+   }//end authenticate
+
+   /**
+    * Authenticates login and opens a session holding its role, so later
+    * privilege checks need no query.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return the new session, or null if the credentials are wrong
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public UserSession login(String login, String password) throws SQLException {
+      Metrics.Span op = this._metrics.begin("login");
+      try{
+         String type = authenticate(login, password);
+         op.ok();
+         if (type == null)
+            return null;
+         return this._sessions.open(login.trim(), type);
+      }finally{
+         op.end();
+      }//end try
+   }//end login
+
+   /**
+    * @param token a session token, may be null
+    * @return the open session for token, or null if unknown, ended or expired
+    */
+   public UserSession session(String token) {
+      return this._sessions.get(token);
+   }//end session
+
+   /**
+    * Ends a session.
+    *
+    * @param token the session token, may be null
+    */
+   public void logout(String token) {
+      this._sessions.close(token);
+   }//end logout
+
+   /**
+    * Changes the role of a user and ends its open sessions, so the new role
+    * applies from its next login.
+    *
+    * @param login the user to change
+    * @param type one of USER_TYPES
+    * @return true if the user exists
+    * @throws java.sql.SQLException when type is not a valid type or the update failed
+    */
+   public boolean setUserType(String login, String type) throws SQLException {
+      if (!USER_TYPES.contains(type))
+         throw new SQLException("Invalid user type " + type + ", expected one of " + USER_TYPES);
+      Metrics.Span op = this._metrics.begin("set_user_type");
+      try{
+         int rows = executeUpdate("UPDATE USERS SET type = ? WHERE login = ?;", type, login);
+         this._sessions.closeUser(login);
+         op.ok();
+         return rows > 0;
+      }finally{
+         op.end();
+      }//end try
+   }//end setUserType
+
+   /**
+    * Sets the status of every item of an order and stamps lastUpdated, which
+    * is how the kitchen board finds the change.
+    *
+    * @param orderId the order to update
+    * @param status one of ITEM_STATUSES
+    * @return the number of items updated, 0 if the order has none or does not exist
+    * @throws java.sql.SQLException when status is not a valid status or the update failed
+    */
+   public int updateOrderStatus(int orderId, String status) throws SQLException {
+      if (!ITEM_STATUSES.contains(status))
+         throw new SQLException("Invalid status " + status + ", expected one of " + ITEM_STATUSES);
+      Metrics.Span op = this._metrics.begin("update_status");
+      try{
+         int rows = executeUpdate("UPDATE ITEMSTATUS SET status = ?, lastUpdated = now() WHERE orderid = ?;", status, orderId);
+         op.ok();
+         return rows;
+      }finally{
+         op.end();
+      }//end try
+   }//end updateOrderStatus
+
+   /**
+    * Marks an order as paid, and counts it as paid in the sales rollups
+    * in the same transaction.
+    *
+    * @param orderId the order to update
+    * @return true if the order exists
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean markOrderPaid(int orderId) throws SQLException {
+      Metrics.Span op = this._metrics.begin("mark_paid");
+      try{
+         boolean found;
+         beginTransaction();
+         try{
+            if (executeUpdate("UPDATE ORDERS SET paid = ? WHERE orderid = ? AND paid IS NOT TRUE;", true, orderId) > 0){
+               SalesRollup.orderPaid(this, orderId);
+               found = true;
+            }else{
+               found = exists("SELECT 1 FROM ORDERS WHERE orderid = ?", orderId);
+            }//end if
+            commit();
+         }catch (SQLException e){
+            rollback();
+            throw e;
+         }//end try
+         op.ok();
+         return found;
+      }finally{
+         op.end();
+      }//end try
+   }//end markOrderPaid
+
+   /**
+    * Deletes an unpaid order and its items; see OrderPlacement.cancel.
+    *
+    * @param orderId the order to delete
+    * @return true if it was deleted, false if it does not exist or is paid
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public boolean cancelOrder(int orderId) throws SQLException {
+      Metrics.Span op = this._metrics.begin("cancel_order");
+      try{
+         boolean cancelled = new OrderPlacement(this).cancel(orderId);
+         op.ok();
+         return cancelled;
+      }finally{
+         op.end();
+      }//end try
+   }//end cancelOrder
+
+   /**
+    * @param login whose orders to page through
+    * @param since only orders placed at or after this time, null for all
+    * @param pageSize orders per page
+    * @return a keyset-paginated view of the orders of login, newest first
+    */
+   public OrderHistory orderHistory(String login, Timestamp since, int pageSize) {
+      return new OrderHistory(this, login, since, pageSize);
+   }//end orderHistory
+
+   /**
+    * Adds a menu item to the favorites of a user in a single statement, so
+    * concurrent edits of the same user's favorites cannot overwrite each
+    * other.
+    *
+    * @param login the user
+    * @param itemName the menu item
+    * @return true if added, false if it already was a favorite
+    * @throws java.sql.SQLException when the user or item does not exist or the insert failed
+    */
+   public boolean addFavorite(String login, String itemName) throws SQLException {
+      String query =
+         "INSERT INTO UserFavorites (login, itemName) SELECT ?, ? " +
+         "WHERE NOT EXISTS (SELECT 1 FROM UserFavorites WHERE login = ? AND itemName = ?)";
+      try{
+         return executeUpdate(query, login, itemName, login, itemName) > 0;
       }catch (SQLException e){
-         // ignored.
+         // lost a race with an identical insert
+         if (exists("SELECT 1 FROM UserFavorites WHERE login = ? AND itemName = ?", login, itemName))
+            return false;
+         throw e;
+      }//end try
+   }//end addFavorite
+
+   /**
+    * @param login the user
+    * @param itemName the menu item
+    * @return true if removed, false if it was not a favorite
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public boolean removeFavorite(String login, String itemName) throws SQLException {
+      return executeUpdate("DELETE FROM UserFavorites WHERE login = ? AND itemName = ?", login, itemName) > 0;
+   }//end removeFavorite
+
+   /**
+    * @param login the user
+    * @return the favorite items of login ordered by name
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> getFavorites(String login) throws SQLException {
+      return queryForList("SELECT itemName FROM UserFavorites WHERE login = ? ORDER BY itemName", STRING_COLUMN, login);
+   }//end getFavorites
+
+   /**
+    * @param itemName the menu item
+    * @return the logins that have itemName as a favorite, ordered by login
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<String> getUsersFavoriting(String itemName) throws SQLException {
+      return queryForList("SELECT login FROM UserFavorites WHERE itemName = ? ORDER BY login", STRING_COLUMN, itemName);
+   }//end getUsersFavoriting
+
+   /**
+    * Moves the comma separated Users.favItems lists into UserFavorites.
+    * Names are matched to menu items ignoring case and blanks; names that
+    * match no item are dropped. Migrated lists are cleared, so running this
+    * again only picks up lists written since.
+    *
+    * @return the number of favorites added
+    * @throws java.sql.SQLException when the migration failed; nothing is changed then
+    */
+   public int migrateFavorites() throws SQLException {
+      beginTransaction();
+      try{
+         int added = executeUpdate(
+            "INSERT INTO UserFavorites (login, itemName) " +
+            "SELECT DISTINCT f.login, m.itemName FROM " +
+            "(SELECT login, lower(trim(regexp_split_to_table(favItems, ','))) AS name " +
+            " FROM Users WHERE favItems IS NOT NULL) f, Menu m " +
+            "WHERE lower(trim(m.itemName)) = f.name AND NOT EXISTS " +
+            "(SELECT 1 FROM UserFavorites x WHERE x.login = f.login AND x.itemName = m.itemName)");
+         executeUpdate("UPDATE Users SET favItems = NULL WHERE favItems IS NOT NULL");
+         commit();
+         return added;
+      }catch (SQLException e){
+         rollback();
+         throw e;
       }//end try
+   }//end migrateFavorites
+
+   /**
+    * Method to close every pooled physical connection.
+    */
+   public void cleanup(){
+      synchronized (this){
+         if (this._board != null){
+            this._board.close ();
+         }//end if
+      }//end synchronized
+      if (this._listener != null){
+         this._listener.close ();
+      }//end if
+      this._metrics.close ();
+      this._slowLog.close ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -234,16 +1212,20 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean headless = args.length > 4 && args[3].equals("--script");
+      if (args.length != 3 && !headless) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--script <file|-> ...]");
          return;
       }//end if
 
-      Greeting();
+      if (headless)
+         console = System.err;
+      else
+         Greeting();
       Cafe esql = null;
       try{
          // use postgres JDBC driver.
@@ -255,6 +1237,15 @@ public class Cafe {
          String user = args[2];
          esql = new Cafe (dbname, dbport, user, "");
 
+         // run the given scripts instead of the interactive menu
+         if (headless) {
+            List<String> scripts = new ArrayList<String>();
+            for (int i = 4; i < args.length; ++i)
+               scripts.add(args[i]);
+            new ScriptRunner(esql, System.out).run(scripts);
+            return;
+         }//end if
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -274,12 +1265,23 @@ public class Cafe {
                user_login = authorisedUser;
               boolean usermenu = true;
               while(usermenu) {
+                if (esql.session(session_token) == null) {
+                   System.out.println("Your session has ended, please log in again.\n");
+                   break;
+                }
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. Go to Menu");
                 System.out.println("2. Update Profile");
                 System.out.println("3. Place a Order");
                 System.out.println("4. Update a Order");
+                if(!userType(esql).equals("Customer")){
+                   System.out.println("5. Live kitchen board");
+                }
+                if(userType(esql).equals("Manager")){
+                   System.out.println("6. Statistics");
+                   System.out.println("7. Sales reports");
+                }
                 System.out.println(".........................");
                 System.out.println("9. Log out");
                 switch (readChoice()){
@@ -287,10 +1289,21 @@ public class Cafe {
                    case 2: UpdateProfile(esql); break;
                    case 3: PlaceOrder(esql); break;
                    case 4: UpdateOrder(esql); break;
+                   case 5:
+                      if(!userType(esql).equals("Customer")) { KitchenBoardView(esql); break; }
+                      System.out.println("Unrecognized choice! Please try again.\n"); break;
+                   case 6:
+                      if(userType(esql).equals("Manager")) { Statistics(esql); break; }
+                      System.out.println("Unrecognized choice! Please try again.\n"); break;
+                   case 7:
+                      if(userType(esql).equals("Manager")) { SalesReports(esql); break; }
+                      System.out.println("Unrecognized choice! Please try again.\n"); break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice! Please try again.\n"); break;
                 }
               }
+              esql.logout(session_token);
+              session_token = null;
             }
          }//end while
       }catch(Exception e) {
@@ -299,9 +1312,9 @@ public class Cafe {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
-               System.out.print("Disconnecting from database...");
+               console.print("Disconnecting from database...");
                esql.cleanup ();
-               System.out.println("Done\n\nBye !");
+               console.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
             // ignored.
@@ -349,12 +1362,7 @@ public class Cafe {
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
          
-	    String type="Customer";
-	    String favItems="";
-
-				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
-
-         esql.executeUpdate(query);
+         esql.createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -373,13 +1381,11 @@ public class Cafe {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0){
-         String query2 = String.format("SELECT type FROM USERS WHERE login = '%s'", login);
-         user_type = esql.executeQueryAndReturnResult(query2).get(0).get(0).trim();
-		return login;
-    }
+         UserSession session = esql.login(login, password);
+         if (session != null){
+            session_token = session.token;
+            return session.login;
+         }
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -389,10 +1395,42 @@ public class Cafe {
 
 // Rest of the functions definition go in here
 
+   /*
+    * The role of the interactive user, read from its session. An ended
+    * session has the least privileges; the main menu then asks to log in
+    * again.
+    **/
+   static String userType(Cafe esql) {
+      UserSession session = esql.session(session_token);
+      return session == null ? "Customer" : session.role;
+   }//end userType
+
+   /*
+    * Prints menu items in the same layout as executeQueryAndPrintResult,
+    * optionally with the type column first. The fixed menu screens are
+    * printed pre-rendered through printMenu instead.
+    **/
+   public static void printMenuItems(List<MenuItem> items, boolean withType) {
+      printer.write(MenuCache.render(items, withType).getBytes());
+   }//end printMenuItems
+
+   /*
+    * Prints the cached rendering of one type of the menu, or of the whole
+    * menu when type is null.
+    **/
+   public static void printMenu(Cafe esql, String type) throws SQLException {
+      Metrics.Span op = esql.metrics().begin("menu_view");
+      try{
+         printer.write(esql.menu().rendered(type));
+         op.ok();
+      }finally{
+         op.end();
+      }//end try
+   }//end printMenu
+
   public static void Menu(Cafe esql){                 //DONE
    try{
       boolean usermenu = true;
-      String query = "";
       while(usermenu) {
          System.out.println("Viewing Menu: ");
          System.out.println("1. Press 1 to view drinks");
@@ -401,26 +1439,22 @@ public class Cafe {
          System.out.println("4. Press 4 for Entire Menu");
          System.out.println("5. Press 5 to search by item name");
          System.out.println("6. Press 6 to search by item type"); 
-         if(user_type.equals("Manager")){
+         if(userType(esql).equals("Manager")){
             System.out.println("7. Press 7 to Add/Update/Delete menu"); 
          }
          System.out.println("9. Press 9 to return to Main Menu");
          switch (readChoice()){
             case 1: 
-            query = String.format("SELECT m.itemName, m.price, m.description FROM MENU m WHERE type = 'Drinks';");
-            esql.executeQueryAndPrintResult(query); break;
+            printMenu(esql, "Drinks"); break;
                
             case 2: 
-            query = String.format("SELECT m.itemName, m.price, m.description FROM MENU m WHERE type = 'Sweets';");
-            esql.executeQueryAndPrintResult(query); break;
+            printMenu(esql, "Sweets"); break;
 
             case 3: 
-            query = String.format("SELECT m.itemName, m.price, m.description FROM MENU m WHERE type = 'Soup';");
-            esql.executeQueryAndPrintResult(query); break;
+            printMenu(esql, "Soup"); break;
 
             case 4: 
-            query = String.format("SELECT m.type, m.itemName, m.price, m.description FROM MENU m GROUP BY m.itemName ORDER BY m.type;");
-            esql.executeQueryAndPrintResult(query); break;
+            printMenu(esql, null); break;
             
             //SEARCH BY ITEM NAME
             case 5:
@@ -434,7 +1468,7 @@ public class Cafe {
             
             //update menu for user_type = manager
             case 7: 
-            if(user_type.equals("Manager")){
+            if(userType(esql).equals("Manager")){
                updateOptions(esql);
             }
             break;
@@ -490,11 +1524,12 @@ public class Cafe {
         System.out.println("Please input an item's type: ");
         String item_type = in.readLine();
         System.out.println("Please input an item's price: ");
-        float item_price = Float.parseFloat(in.readLine());
+        long item_price = Money.parse(in.readLine());
         System.out.println("Please input an item's description: ");
         String item_description = in.readLine();
-        String query = String.format("INSERT INTO MENU (itemName, type, price, description) VALUES ('%s','%s','%s', '%s');", item_name, item_type, item_price, item_description);
-        esql.executeUpdate(query);
+        String query = "INSERT INTO MENU (itemName, type, price, description) VALUES (?,?,?,?);";
+        esql.executeUpdate(query, item_name, item_type, Money.toNumeric(item_price), item_description);
+        esql.menu().invalidate();
         System.out.println("Sucessfully added an item!");
         
     } catch (Exception e) {
@@ -508,8 +1543,7 @@ public class Cafe {
          String query = "";
          System.out.println("What would item would you like to update: ");
          String item_name = in.readLine();
-         query = String.format("SELECT m.itemName, m.price, m.type , m.description FROM MENU m WHERE itemName = '%s';", item_name);
-         if (esql.executeQuery(query) == 0) {
+         if (esql.menu().byName(item_name) == null) {
             System.out.println("Unknown item. Please try again.");
          }
          else{
@@ -524,17 +1558,19 @@ public class Cafe {
                   case 1:
                   System.out.println("What would you like to update the type to?: ");
                   String new_type = in.readLine();
-                  query = String.format("UPDATE MENU SET type = '%s' WHERE itemName = '%s';", new_type ,item_name);
-                  esql.executeUpdate(query);
+                  query = "UPDATE MENU SET type = ? WHERE itemName = ?;";
+                  esql.executeUpdate(query, new_type ,item_name);
+                  esql.menu().invalidate();
                   System.out.println("Successfully updated type!\n"); 
                   usermenu = false;
                   break;
                   
                   case 2:
                   System.out.println("What would you like to update the price to?: ");
-                  Float new_price = Float.parseFloat(in.readLine());
-                  query = String.format("UPDATE MENU SET price = '%f' WHERE itemName = '%s';", new_price ,item_name);
-                  esql.executeUpdate(query);
+                  long new_price = Money.parse(in.readLine());
+                  query = "UPDATE MENU SET price = ? WHERE itemName = ?;";
+                  esql.executeUpdate(query, Money.toNumeric(new_price) ,item_name);
+                  esql.menu().invalidate();
                   System.out.println("Successfully updated price!\n"); 
                   usermenu = false;
                   break;
@@ -542,8 +1578,9 @@ public class Cafe {
                   case 3:
                   System.out.println("What would you like to update the description to?: ");
                   String new_description = in.readLine();
-                  query = String.format("UPDATE MENU SET description = '%s' WHERE itemName = '%s';", new_description ,item_name);
-                  esql.executeUpdate(query);
+                  query = "UPDATE MENU SET description = ? WHERE itemName = ?;";
+                  esql.executeUpdate(query, new_description ,item_name);
+                  esql.menu().invalidate();
                   System.out.println("Successfully updated description!\n"); 
                   usermenu = false;
                   break;
@@ -564,13 +1601,13 @@ public class Cafe {
       try {
         System.out.println("Please input an item's name: ");
         String user_input = in.readLine();
-        String query = String.format("SELECT m.itemName, m.price, m.type , m.description FROM MENU m WHERE itemName = '%s';", user_input);
-        if (esql.executeQuery(query) == 0) {
+        if (esql.menu().byName(user_input) == null) {
             System.out.println("Invalid input please try again\n");
         }
          else {
-            query = String.format("DELETE FROM Menu WHERE itemName = '%s';", user_input);
-            esql.executeUpdate(query);
+            String query = "DELETE FROM Menu WHERE itemName = ?;";
+            esql.executeUpdate(query, user_input);
+            esql.menu().invalidate();
             System.out.println("Successfully Deleted Item!\n");
          }
     } catch (Exception e) {
@@ -581,14 +1618,14 @@ public class Cafe {
 
    public static void searchByName(Cafe esql)  {         //Do we need this?
      try {
-        System.out.println("Please input an item's name: ");
+        System.out.println("Please input an item's name, or part of it: ");
         String user_input = in.readLine();
-        String query = String.format("SELECT m.itemName, m.price, m.type , m.description FROM MENU m WHERE itemName = '%s';", user_input);
-        if (esql.executeQuery(query) == 0) {
-            System.out.println("Invalid input please try again\n");
+        List<MenuItem> items = esql.menu().search(user_input, SEARCH_LIMIT);
+        if (items.isEmpty()) {
+            System.out.println("No items match, please try again\n");
         }
          else {
-            esql.executeQueryAndPrintResult(query);
+            printMenuItems(items, true);
          }
 
     } catch (Exception e) {
@@ -603,12 +1640,20 @@ public class Cafe {
      try {
         System.out.println("Please input a type: ");
         String user_input = in.readLine();
-        String query = String.format("SELECT m.itemName, m.price, m.type , m.description FROM MENU m WHERE type = '%s';", user_input);
-        if (esql.executeQuery(query) == 0) {
+        List<MenuItem> items = esql.menu().byType(user_input);
+        if (items.isEmpty()) {
+            // tolerate case, partial and misspelled type names
+            String type = esql.menu().bestType(user_input);
+            if (type != null) {
+               System.out.println("Showing " + type + ":");
+               items = esql.menu().byType(type);
+            }
+        }
+        if (items.isEmpty()) {
             System.out.println("Invalid input please try again\n");
         }
          else {
-            esql.executeQueryAndPrintResult(query);
+            printMenuItems(items, true);
          }
 
     } catch (Exception e) {
@@ -625,7 +1670,7 @@ public class Cafe {
          System.out.println("1. Update password");
          System.out.println("2. Update phone number");
          System.out.println("3. Update favorite items");
-         if(user_type.equals("Manager")){
+         if(userType(esql).equals("Manager")){
             System.out.println("4. Select User To Update");
          }
          System.out.println("9. Cancel");
@@ -648,11 +1693,11 @@ public class Cafe {
 
 
             case 4:
-            if(user_type.equals("Manager")){
+            if(userType(esql).equals("Manager")){
                System.out.println("Please enter user you want to update: ");
                String user_name = in.readLine();
-               query = String.format("SELECT * FROM Users u WHERE login = '%s';", user_name);
-               if (esql.executeQuery(query) == 0) {
+               query = "SELECT 1 FROM Users u WHERE login = ?";
+               if (!esql.exists(query, user_name)) {
                   System.out.println("User not found.");
                }
                else {
@@ -696,13 +1741,12 @@ public class Cafe {
             case 4:
             System.out.println("Please enter new rank: ");
             String rank = in.readLine();
-            if(!rank.equals("Customer") && !rank.equals("Manager") && !rank.equals("Employee"))
+            if(!USER_TYPES.contains(rank))
             {
                System.out.println("Invalid input. Returning to update profile menu\n"); 
             }
             else {
-               String query = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s';", rank, user_name);
-               esql.executeUpdate(query); 
+               esql.setUserType(user_name, rank);
                System.out.println("Successfully changed rank of " + user_name + ".\n"); 
             }
 
@@ -724,8 +1768,8 @@ public class Cafe {
          String user = user_name;
          System.out.println("Please enter new password: ");
          String password = in.readLine();
-         String query = String.format("UPDATE USERS SET password = '%s' WHERE login = '%s';", password, user);
-         esql.executeUpdate(query); 
+         String query = "UPDATE USERS SET password = ? WHERE login = ?;";
+         esql.executeUpdate(query, password, user); 
          System.out.println("Successfully changed password!.\n"); 
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -736,8 +1780,8 @@ public class Cafe {
          String user = user_name;
          System.out.println("Please enter new phone number: ");
          String phone_number = in.readLine();
-         String query2 = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s';", phone_number, user);
-         esql.executeUpdate(query2); 
+         String query2 = "UPDATE USERS SET phoneNum = ? WHERE login = ?;";
+         esql.executeUpdate(query2, phone_number, user); 
          System.out.println("Successfully changed phone number!.\n");
          
       }catch(Exception e){
@@ -746,18 +1790,45 @@ public class Cafe {
    }
    public static void UpdateFavoriteItems(Cafe esql, String user_name) {
       try {
-         System.out.println("Viewing current favorite items:"); 
+         System.out.println("Viewing current favorite items:");
          String user = user_name;
-         String query = String.format("SELECT u.favItems FROM USERS u WHERE login = '%s'", user);
-         String old_fav = esql.executeQueryAndReturnResult(query).get(0).get(0).trim();
-         System.out.println(old_fav);   
-         System.out.println("What item would you like to add?\n");        //Consider adding delete
-         
-         String item_add = in.readLine();
-         old_fav = old_fav + "," + item_add;
-         query = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s';", old_fav, user);
-         esql.executeUpdate(query);
-         System.out.println("Updated favorite item(s), " + old_fav + "\n");
+         List<String> favorites = esql.getFavorites(user);
+         if (favorites.isEmpty()) System.out.println("(none)");
+         for (String favorite : favorites)
+            System.out.println(favorite);
+         System.out.println("1. Add an item");
+         System.out.println("2. Remove an item");
+         System.out.println("9. Cancel");
+
+         switch (readChoice()){
+            case 1:
+            System.out.println("What item would you like to add?\n");
+            MenuItem item = esql.menu().byName(in.readLine());
+            if (item == null){
+               System.out.println("Item not found on the menu.\n");
+            }
+            else if (esql.addFavorite(user, item.itemName)){
+               System.out.println("Added " + item.itemName + " to favorite items.\n");
+            }
+            else {
+               System.out.println(item.itemName + " is already a favorite item.\n");
+            }
+            break;
+
+            case 2:
+            System.out.println("What item would you like to remove?\n");
+            String item_remove = in.readLine().trim();
+            if (esql.removeFavorite(user, item_remove)){
+               System.out.println("Removed " + item_remove + " from favorite items.\n");
+            }
+            else {
+               System.out.println(item_remove + " is not a favorite item.\n");
+            }
+            break;
+
+            case 9: break;
+            default : System.out.println("Unrecognized choice!\n"); break;
+         }
       }catch(Exception e){
          System.err.println (e.getMessage ());
       } 
@@ -784,19 +1855,21 @@ public class Cafe {
             
             //DONE!
             case 2: 
-            if(!user_type.equals("Customer")){
-               query = String.format("SELECT * FROM ORDERS WHERE login = '%s' AND timeStampRecieved >= NOW() - '1 day'::INTERVAL;", user);
-               esql.executeQueryAndPrintResult(query); break;
-            }
-            else{
-               query = String.format("SELECT * FROM ORDERS WHERE login = '%s' ORDER BY orderid DESC LIMIT 5", user);
-               esql.executeQueryAndPrintResult(query); break;
+            // staff see the last day, customers their whole history
+            Timestamp since = null;
+            if(!userType(esql).equals("Customer")){
+               since = new Timestamp(System.currentTimeMillis() - 24L * 60 * 60 * 1000);
             }
+            browseOrderHistory(esql.orderHistory(user, since, OrderHistory.DEFAULT_PAGE_SIZE));
+            break;
 
             case 3:
-
-            query = String.format("SELECT * FROM ITEMSTATUS ORDER BY orderid DESC LIMIT 10", user);
-            esql.executeQueryAndPrintResult(query); 
+            if(!userType(esql).equals("Customer")){
+               browseItemStatusHistory(staffItemStatusHistory(esql));
+            }
+            else{
+               browseItemStatusHistory(ItemStatusHistory.forUser(esql, user, ItemStatusHistory.DEFAULT_PAGE_SIZE));
+            }
             break;
 
             case 9: usermenu = false; break;
@@ -808,66 +1881,225 @@ public class Cafe {
          System.err.println (e.getMessage ());
       } 
   }
+  /*
+   * Shows the latest page of history and lets the user step to older and
+   * newer pages.
+   */
+  public static void browseOrderHistory(OrderHistory history) throws Exception {
+      OrderHistory.Page page = history.latest();
+      while (true) {
+         if (OrderHistory.print(page) == 0) {
+            System.out.println("No orders found.");
+         }
+         if (!page.hasOlder && !page.hasNewer) {
+            return;
+         }
+         System.out.println((page.hasOlder ? "o. Older orders  " : "") + (page.hasNewer ? "n. Newer orders  " : "") + "q. Go back");
+         String choice = in.readLine().trim();
+         if (choice.equals("o") && page.hasOlder) {
+            page = history.older(page);
+         }
+         else if (choice.equals("n") && page.hasNewer) {
+            page = history.newer(page);
+         }
+         else if (choice.equals("q")) {
+            return;
+         }
+         else {
+            System.out.println("Unrecognized choice! Please try again.\n");
+         }
+      }
+  }
+  /*
+   * Asks staff for a status and time window to list item updates of.
+   */
+  public static ItemStatusHistory staffItemStatusHistory(Cafe esql) throws Exception {
+      System.out.println("Filter by status (" + ITEM_STATUSES + "), or press enter for any:");
+      String status = in.readLine().trim();
+      if (!status.isEmpty() && !ITEM_STATUSES.contains(status)) {
+         System.out.println("Invalid status, showing any status.");
+         status = "";
+      }
+      System.out.println("How many hours back? Press enter for 24:");
+      String hours = in.readLine().trim();
+      long window = 24;
+      try {
+         if (!hours.isEmpty()) window = Long.parseLong(hours);
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid number, showing the last 24 hours.");
+      }
+      long now = System.currentTimeMillis();
+      return ItemStatusHistory.forStaff(esql, status.isEmpty() ? null : status,
+         new Timestamp(now - window * 60 * 60 * 1000), new Timestamp(now + 1), ItemStatusHistory.DEFAULT_PAGE_SIZE);
+  }
+
+  /*
+   * Shows the latest page of item statuses and lets the user step to older
+   * and newer pages.
+   */
+  public static void browseItemStatusHistory(ItemStatusHistory history) throws Exception {
+      ItemStatusHistory.Page page = history.latest();
+      while (true) {
+         if (ItemStatusHistory.print(page) == 0) {
+            System.out.println("No items found.");
+         }
+         if (!page.hasOlder && !page.hasNewer) {
+            return;
+         }
+         System.out.println((page.hasOlder ? "o. Older items  " : "") + (page.hasNewer ? "n. Newer items  " : "") + "q. Go back");
+         String choice = in.readLine().trim();
+         if (choice.equals("o") && page.hasOlder) {
+            page = history.older(page);
+         }
+         else if (choice.equals("n") && page.hasNewer) {
+            page = history.newer(page);
+         }
+         else if (choice.equals("q")) {
+            return;
+         }
+         else {
+            System.out.println("Unrecognized choice! Please try again.\n");
+         }
+      }
+  }
+  /*
+   * Shows the kitchen board and redraws it whenever it changes, until the
+   * user presses enter.
+   */
+  public static void KitchenBoardView(Cafe esql) {
+      try {
+         KitchenBoard board = esql.kitchenBoard();
+         System.out.println("Live kitchen board, press enter to go back.\n");
+         long seen = -1;
+         while (!in.ready()) {
+            long version = board.awaitChange(seen, 500);
+            if (version != seen) {
+               board.print();
+               System.out.println(".........................");
+               seen = version;
+            }
+         }
+         in.readLine();
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+  }
+  /*
+   * Shows the latency, row and error counters, and the connection pool and
+   * statement cache counters, optionally resetting the latency counters.
+   */
+  public static void Statistics(Cafe esql) {
+      try {
+         System.out.print(esql.metrics().text());
+         System.out.println(esql.getPoolStats());
+         System.out.println(esql.getStatementCacheStats());
+         System.out.println("r. Reset counters  q. Go back");
+         if (in.readLine().trim().equals("r")) {
+            esql.metrics().reset();
+            System.out.println("Counters reset.\n");
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+  }
+  /*
+   * Revenue, units and paid vs unpaid reports, read from the sales rollups.
+   */
+  public static void SalesReports(Cafe esql) {
+      SalesRollup sales = new SalesRollup(esql);
+      boolean usermenu = true;
+      while(usermenu) {
+         try {
+            System.out.println("Sales reports: ");
+            System.out.println("1. Revenue per day");
+            System.out.println("2. Revenue per hour of a day");
+            System.out.println("3. Units sold per menu item");
+            System.out.println("4. Paid vs unpaid");
+            System.out.println("9. Go back to menu");
+            Timestamp to = SalesRollup.daysAgo(-1);
+            switch (readChoice()){
+               case 1:
+               sales.revenueByDay(SalesRollup.daysAgo(readDays()), to).print();
+               break;
+
+               case 2:
+               System.out.println("Which day? (yyyy-mm-dd, press enter for today)");
+               String day = in.readLine().trim();
+               Timestamp from = day.isEmpty() ? SalesRollup.daysAgo(0) : Timestamp.valueOf(day + " 00:00:00");
+               sales.revenueByHour(from, new Timestamp(from.getTime() + 24L * 60 * 60 * 1000)).print();
+               break;
+
+               case 3:
+               sales.itemUnits(SalesRollup.daysAgo(readDays()), to, SalesRollup.DEFAULT_ITEMS).print();
+               break;
+
+               case 4:
+               sales.paidVsUnpaid(SalesRollup.daysAgo(readDays()), to).print();
+               break;
+
+               case 9: usermenu = false; break;
+               default : System.out.println("Unrecognized choice! Please try again.\n"); break;
+            }
+         }catch(Exception e){
+            System.err.println (e.getMessage ());
+         }
+      }
+  }
+
+  private static int readDays() throws IOException {
+      System.out.println("How many days back? (press enter for " + SalesRollup.DEFAULT_DAYS + ")");
+      String days = in.readLine().trim();
+      return days.isEmpty() ? SalesRollup.DEFAULT_DAYS : Integer.parseInt(days);
+  }
+
   public static void UserOrder(Cafe esql) {
       try{
          String order_name = "";
          List<String> list = new ArrayList<String>();
+         List<OrderPlacement.Line> lines = new ArrayList<OrderPlacement.Line>();
          String message = "What would you like to order? Or type 'q' to quit";
          while (!order_name.equals("q")) {
             System.out.println(message);
-            order_name = in.readLine();
-            order_name = order_name.replace("\n", "");
+            // trimmed once here, so the menu check, the duplicate check and
+            // the pricing lookup all see the same name
+            order_name = in.readLine().trim();
             if (order_name.equals("q")) {
                break;
             }
-            String query = String.format("SELECT m.itemName FROM MENU m WHERE m.itemName = '%s';", order_name);      //Check if it exists
-            if (esql.executeQuery(query) != 1) {
+            if (esql.menu().byName(order_name) == null) {      //Check if it exists
                System.out.println("Item does not exist... Please try again.");
             }
+            else if (list.contains(order_name)) {
+               System.out.println(order_name + " is already in your order.");
+            }
             else {
+               System.out.println("How many? (press enter for 1)");
+               String quantity = in.readLine().trim();
+               int count;
+               try {
+                  count = quantity.isEmpty() ? 1 : Integer.parseInt(quantity);
+               }catch (NumberFormatException e) {
+                  count = 0;
+               }
+               if (count < 1) {
+                  System.out.println("Please enter a positive number.");
+                  continue;
+               }
                message = "What more would you like to order? Or type 'q' to quit";
                list.add(order_name);
+               lines.add(new OrderPlacement.Line(order_name, count, 0));
             }
          }
          if (!list.isEmpty()) {
-            //FIRST INTO ITEMSTATUS TO CALCULATE TOTAL
-            PreparedStatement myStmt;
-            String query = String.format("SELECT * FROM Orders o;");
-            int order_id = esql.executeQuery(query) + 1;                                  //Set order id to the queries return count + 1
-            float totalCost = 0;
-            //INSERT INTO ORDERS
-
-            myStmt = esql._connection.prepareStatement("INSERT INTO ORDERS (orderid, login, paid, timeStampRecieved, total) VALUES (?,?,?,?,?);");
-            myStmt.setInt(1, order_id);
-            myStmt.setString(2, user_login);
-            myStmt.setString(3, "f");
-            myStmt.setTimestamp(4, new java.sql.Timestamp(new java.util.Date().getTime()));
-            myStmt.setFloat(5, totalCost);
-            myStmt.executeUpdate();
-
-            for (int i = 0; i < list.size(); i++) {
-               query = String.format("SELECT m.price FROM MENU m WHERE m.itemName = '%s';", list.get(i));
-               float item_price = Float.parseFloat(esql.executeQueryAndReturnResult(query).get(0).get(0));
-               totalCost = totalCost + item_price;
-               myStmt = esql._connection.prepareStatement("INSERT INTO itemStatus (orderid, itemName, lastUpdated, status, comments) VALUES (?,?,?, 'Hasn''t started', ?);");
-               myStmt.setInt(1, order_id);
-               myStmt.setString(2, list.get(i));
-               myStmt.setTimestamp(3, new java.sql.Timestamp(new java.util.Date().getTime()));
-               myStmt.setString(4, "");
-               myStmt.executeUpdate(); 
-               myStmt.close();
-            }
-
-            query = String.format("UPDATE ORDERS SET total = '%f' WHERE orderid = '%s';", totalCost, order_id);
-            esql.executeUpdate(query);
+            int order_id = esql.placeOrderLines(user_login, lines).orderId;
 
             System.out.println("Order placed!");
             System.out.println("Your Following orders are:");
-            query = String.format("SELECT * FROM ITEMSTATUS WHERE orderid = '%s';", order_id);
-            esql.executeQueryAndPrintResult(query);
+            String query = "SELECT orderid, itemName, quantity, unitPrice, discount, lastUpdated, status, comments FROM ITEMSTATUS WHERE orderid = ?;";
+            esql.executeQueryAndPrintResult(query, order_id);
             System.out.println("Your Receipt Is: ");
-            query = String.format("SELECT * FROM ORDERS WHERE orderid = '%s';", order_id);
-            esql.executeQueryAndPrintResult(query);
+            query = "SELECT orderid, login, paid, timeStampRecieved, total FROM ORDERS WHERE orderid = ?;";
+            esql.executeQueryAndPrintResult(query, order_id);
          }
          else {
             System.out.println("No orders placed.\n");
@@ -885,11 +2117,12 @@ public class Cafe {
       while(usermenu) {
          System.out.println("Update Orders: ");
          System.out.println("1. Update non-paid order (Customers can update order here if non-paid)");               //CUSTOMER
-         if(!user_type.equals("Customer")) {          
+         if(!userType(esql).equals("Customer")) {          
             System.out.println("2. Update user order ID to paid (Managers/employees can update user types here)");             //MANAGERS/EMPLOYEES
          }
-         if(!user_type.equals("Customer")){
+         if(!userType(esql).equals("Customer")){
             System.out.println("3. Press 3 to update user order status"); 
+            System.out.println("4. Press 4 to discount an item of a non-paid order");
          }
          System.out.println("9. Go back to menu");
          
@@ -897,15 +2130,15 @@ public class Cafe {
             case 1:
             System.out.println("Please enter the non-paid orderID");
             int order_id = Integer.parseInt(in.readLine());
-            query = String.format("SELECT * FROM ORDERS WHERE orderid = '%s' AND paid = '%s'", order_id, "f");
-            int found_id = esql.executeQuery(query);
-            if(found_id > 0){
-               esql.executeQueryAndPrintResult(query);
+            query = "SELECT orderid, login, paid, timeStampRecieved, total FROM ORDERS WHERE orderid = ? AND paid = ?";
+            QueryResult found = esql.query(query, order_id, false);
+            if(!found.isEmpty()){
+               found.print();
                System.out.println("\nOrderID found! Deleting old order...");
-               query = String.format("DELETE FROM ItemStatus WHERE orderid = '%s'", order_id);
-               esql.executeUpdate(query);
-               query = String.format("DELETE FROM ORDERS WHERE orderid = '%s'", order_id);
-               esql.executeUpdate(query);
+               if (!esql.cancelOrder(order_id)) {
+                  System.out.println("The order was paid or deleted meanwhile.\n");
+                  break;
+               }
                System.out.println("Order Successfully Deleted!\n");
                UserOrder(esql);
 
@@ -917,17 +2150,11 @@ public class Cafe {
             break;
 
             case 2:
-            if(!user_type.equals("Customer")){
+            if(!userType(esql).equals("Customer")){
                System.out.println("Please enter the orderID you would like to change to paid.");
                order_id = Integer.parseInt(in.readLine());
-               query = String.format("SELECT * FROM ORDERS WHERE orderid = '%s'", order_id);
-               // = esql.executeQueryAndReturnResult(query).get(0).get(0).trim();
-               found_id = esql.executeQuery(query);
-
-               if (found_id > 0){
-                  System.out.println("OrderID found! Updating to paid");
-                  query = String.format("UPDATE ORDERS SET paid = '%b' WHERE orderid = '%s';", "t" ,order_id);
-                  esql.executeUpdate(query);
+               if (esql.markOrderPaid(order_id)){
+                  System.out.println("OrderID found! Updated to paid");
                   System.out.println("Order updated successfully!\n");
                }
                else {
@@ -937,22 +2164,19 @@ public class Cafe {
             break;
                
             case 3:
-            if(!user_type.equals("Customer")){
+            if(!userType(esql).equals("Customer")){
                System.out.println("Please enter the orderID you would like to update.");
                order_id = Integer.parseInt(in.readLine());
-               query = String.format("SELECT * FROM ORDERS WHERE orderid = '%s'", order_id);
-               // = esql.executeQueryAndReturnResult(query).get(0).get(0).trim();
-               found_id = esql.executeQuery(query);
+               query = "SELECT 1 FROM ORDERS WHERE orderid = ?";
 
-               if (found_id > 0){
+               if (esql.exists(query, order_id)){
                   System.out.println("OrderID found! Would you like to update status to Started, Finished, or Hasn't started?");
                   String new_status = in.readLine();
-                  if(!new_status.equals("Started") && !new_status.equals("Finished") && !new_status.equals("Hasn't started")){
+                  if(!ITEM_STATUSES.contains(new_status)){
                      System.out.println("Invalid input. Returning to order menu."); //MAKE THIS GO UNTIL THEY TYPE IN SOMETHING PROPER?
                   }
                   else{
-                  query = String.format("UPDATE ITEMSTATUS SET status = '%s' WHERE orderid = '%s';", new_status ,order_id);
-                  esql.executeUpdate(query);
+                  esql.updateOrderStatus(order_id, new_status);
                   System.out.println("Order updated successfully!\n");
                   }
                }
@@ -962,6 +2186,18 @@ public class Cafe {
             }
             break;
 
+            case 4:
+            if(!userType(esql).equals("Customer")){
+               System.out.println("Please enter the orderID you would like to discount.");
+               order_id = Integer.parseInt(in.readLine());
+               System.out.println("Which item?");
+               String item_name = in.readLine();
+               System.out.println("How much should be taken off the item? (e.g. 0.50)");
+               long total = esql.discountOrderItem(order_id, item_name, Money.parse(in.readLine()));
+               System.out.println("Discount applied! The order total is now " + Money.format(total) + "\n");
+            }
+            break;
+
             case 9: usermenu = false; break;
             default : System.out.println("Unrecognized choice! Please try again.\n"); break;
          }
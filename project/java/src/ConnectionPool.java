@@ -0,0 +1,272 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical PostgreSQL connections shared by every session
+ * running in this JVM.
+ *
+ * At most maxSize connections are borrowed at once; callers beyond that wait
+ * up to borrowTimeout for one to be released. Idle connections above minSize
+ * are closed once they have been idle for idleTimeout, and a connection that
+ * has sat idle for longer than validateAfter is checked with a trivial query
+ * before it is handed out again.
+ *
+ */
+public class ConnectionPool {
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   private final int minSize;
+   private final int maxSize;
+   private final long idleTimeoutMillis;
+   private final long borrowTimeoutMillis;
+   private final long validateAfterMillis;
+
+   // idle connections, most recently released first.
+   private final LinkedBlockingDeque<PooledConnection> idle =
+      new LinkedBlockingDeque<PooledConnection>();
+   // one permit per connection that may be borrowed.
+   private final Semaphore permits;
+   // number of open physical connections, idle or borrowed.
+   private final AtomicInteger total = new AtomicInteger();
+
+   private final ScheduledExecutorService evictor;
+   private volatile boolean closed = false;
+
+   // metrics
+   private final AtomicLong borrows = new AtomicLong();
+   private final AtomicLong waitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+   private final AtomicLong timeouts = new AtomicLong();
+   private final AtomicLong created = new AtomicLong();
+   private final AtomicLong evicted = new AtomicLong();
+   private final AtomicLong validationFailures = new AtomicLong();
+
+   /**
+    * Creates the pool and opens minSize connections up front.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize maximum number of connections borrowed at once
+    * @param idleTimeoutMillis idle time after which surplus connections are closed
+    * @param borrowTimeoutMillis how long borrow() waits for a free connection
+    * @param validateAfterMillis idle time after which a connection is validated on borrow
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd,
+                         int minSize, int maxSize, long idleTimeoutMillis,
+                         long borrowTimeoutMillis, long validateAfterMillis) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("invalid pool size: min=" + minSize + " max=" + maxSize);
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.borrowTimeoutMillis = borrowTimeoutMillis;
+      this.validateAfterMillis = validateAfterMillis;
+      this.permits = new Semaphore(maxSize, true);
+
+      for (int i = 0; i < minSize; ++i)
+         this.idle.addLast(open());
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-pool-evictor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this.evictor.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            evictIdle();
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the borrow timeout if all maxSize
+    * connections are in use. Every successful borrow must be paired with
+    * release().
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when the wait times out or no connection can be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      if (this.closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      try{
+         if (!this.permits.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+            this.timeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + this.borrowTimeoutMillis +
+                                   "ms waiting for a database connection");
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }//end try
+      recordWait(System.nanoTime() - start);
+      this.borrows.incrementAndGet();
+
+      try{
+         PooledConnection conn;
+         while ((conn = this.idle.pollFirst()) != null){
+            if (isUsable(conn))
+               return conn;
+            discard(conn);
+            this.validationFailures.incrementAndGet();
+         }//end while
+         return open();
+      }catch (SQLException e){
+         this.permits.release();
+         throw e;
+      }catch (RuntimeException e){
+         this.permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool. Broken connections, and
+    * connections beyond maxSize, are closed instead of being kept.
+    *
+    * @param conn the connection obtained from borrow(), may be null
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null)
+         return;
+      try{
+         if (this.closed || conn.isBroken() || this.total.get() > this.maxSize){
+            discard(conn);
+            return;
+         }//end if
+         Connection c = conn.getConnection();
+         if (!c.getAutoCommit()){
+            c.rollback();
+            c.setAutoCommit(true);
+         }//end if
+         conn.touch();
+         this.idle.addFirst(conn);
+      }catch (SQLException e){
+         discard(conn);
+      }finally{
+         this.permits.release();
+      }//end try
+   }//end release
+
+   /**
+    * Closes every idle connection and stops the evictor. Connections still
+    * borrowed are closed as they are released.
+    */
+   public void close() {
+      this.closed = true;
+      this.evictor.shutdownNow();
+      PooledConnection conn;
+      while ((conn = this.idle.pollFirst()) != null)
+         discard(conn);
+   }//end close
+
+   /**
+    * @return a one-line summary of the pool state and borrow metrics
+    */
+   public String stats() {
+      long n = this.borrows.get();
+      return String.format(
+         "pool: open=%d idle=%d max=%d borrows=%d avgWait=%.3fms maxWait=%.3fms " +
+         "timeouts=%d created=%d evicted=%d validationFailures=%d",
+         this.total.get(), this.idle.size(), this.maxSize, n,
+         n == 0 ? 0.0 : this.waitNanos.get() / 1e6 / n, this.maxWaitNanos.get() / 1e6,
+         this.timeouts.get(), this.created.get(), this.evicted.get(),
+         this.validationFailures.get());
+   }//end stats
+
+   public int getOpenCount() { return this.total.get(); }
+   public int getIdleCount() { return this.idle.size(); }
+   public long getBorrowCount() { return this.borrows.get(); }
+   public long getTimeoutCount() { return this.timeouts.get(); }
+
+   /*
+    * Closes connections that have been idle longer than the idle timeout,
+    * oldest first, while more than minSize connections are open.
+    */
+   private void evictIdle() {
+      long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+      Iterator<PooledConnection> it = this.idle.descendingIterator();
+      while (it.hasNext() && this.total.get() > this.minSize){
+         PooledConnection conn = it.next();
+         if (conn.getLastReleased() > cutoff)
+            break;
+         if (this.idle.removeLastOccurrence(conn)){
+            discard(conn);
+            this.evicted.incrementAndGet();
+         }//end if
+      }//end while
+   }//end evictIdle
+
+   private boolean isUsable(PooledConnection conn) {
+      if (System.currentTimeMillis() - conn.getLastReleased() < this.validateAfterMillis)
+         return true;
+      Statement stmt = null;
+      try{
+         stmt = conn.getConnection().createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         return rs.next();
+      }catch (SQLException e){
+         return false;
+      }finally{
+         closeQuietly(stmt);
+      }//end try
+   }//end isUsable
+
+   private PooledConnection open() throws SQLException {
+      Connection c = DriverManager.getConnection(this.url, this.user, this.passwd);
+      this.total.incrementAndGet();
+      this.created.incrementAndGet();
+      return new PooledConnection(c);
+   }//end open
+
+   private void discard(PooledConnection conn) {
+      this.total.decrementAndGet();
+      conn.close();
+   }//end discard
+
+   private void recordWait(long nanos) {
+      this.waitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = this.maxWaitNanos.get())){
+         if (this.maxWaitNanos.compareAndSet(max, nanos))
+            break;
+      }//end while
+   }//end recordWait
+
+   static void closeQuietly(Statement stmt) {
+      if (stmt == null)
+         return;
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end ConnectionPool
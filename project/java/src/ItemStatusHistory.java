@@ -0,0 +1,229 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through ItemStatus rows, newest first, in one of two scopes:
+ *
+ *   forUser   the items of one user's orders, newest order first. The
+ *             user's orders come from the Orders (login, timeStampRecieved,
+ *             orderid) index and their items from the ItemStatus key.
+ *   forStaff  the items updated within a time window, optionally with one
+ *             status, most recently updated first. Every selected column is
+ *             in the ItemStatus (status, lastUpdated, orderid, itemName) or
+ *             (lastUpdated, orderid, itemName) index, so pages are read from
+ *             the index alone; comments are not shown in this scope.
+ *
+ * Like OrderHistory, pages are located by keyset rather than OFFSET, so a
+ * page costs the same however deep into the history it is.
+ *
+ */
+public class ItemStatusHistory {
+
+   public static final int DEFAULT_PAGE_SIZE = 10;
+
+   private static final String USER_COLUMNS =
+      "SELECT s.orderid, s.itemName, s.status, s.lastUpdated, s.comments, o.timeStampRecieved " +
+      "FROM ORDERS o, ITEMSTATUS s WHERE o.login = ? " +
+      "AND s.orderid = o.orderid AND s.orderTime = o.timeStampRecieved";
+   private static final String[] USER_KEY = { "o.timeStampRecieved", "o.orderid", "s.itemName" };
+
+   private static final String STAFF_COLUMNS =
+      "SELECT s.orderid, s.itemName, s.status, s.lastUpdated, NULL, s.lastUpdated " +
+      "FROM ITEMSTATUS s WHERE s.lastUpdated >= ? AND s.lastUpdated < ?";
+   private static final String[] STAFF_KEY = { "s.lastUpdated", "s.orderid", "s.itemName" };
+
+   /**
+    * One row of ItemStatus.
+    */
+   public static class Item {
+      public final int orderId;
+      public final String itemName;
+      public final String status;
+      public final Timestamp lastUpdated;
+      // null in the staff scope
+      public final String comments;
+      // first keyset column: the order time for users, lastUpdated for staff
+      final Timestamp key;
+
+      Item(int orderId, String itemName, String status, Timestamp lastUpdated, String comments, Timestamp key) {
+         this.orderId = orderId;
+         this.itemName = itemName;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+         this.comments = comments;
+         this.key = key;
+      }
+   }//end Item
+
+   /**
+    * A page of items, newest first, and whether there is more on either
+    * side of it.
+    */
+   public static class Page {
+      public final List<Item> items;
+      public final boolean hasOlder;
+      public final boolean hasNewer;
+      // false in the staff scope
+      final boolean withComments;
+
+      Page(List<Item> items, boolean hasOlder, boolean hasNewer, boolean withComments) {
+         this.items = Collections.unmodifiableList(items);
+         this.hasOlder = hasOlder;
+         this.hasNewer = hasNewer;
+         this.withComments = withComments;
+      }
+   }//end Page
+
+   private static final RowMapper<Item> ROW = new RowMapper<Item>() {
+      public Item map(ResultSet rs) throws SQLException {
+         String status = rs.getString(3);
+         String comments = rs.getString(5);
+         return new Item(rs.getInt(1), rs.getString(2).trim(), status == null ? null : status.trim(), rs.getTimestamp(4),
+                         comments == null ? null : comments.trim(), rs.getTimestamp(6));
+      }
+   };
+
+   private final Cafe esql;
+   private final String base;
+   private final String[] key;
+   private final Object[] filter;
+   private final int pageSize;
+
+   private ItemStatusHistory(Cafe esql, String base, String[] key, int pageSize, Object... filter) {
+      if (pageSize < 1)
+         throw new IllegalArgumentException("page size must be positive, got " + pageSize);
+      this.esql = esql;
+      this.base = base;
+      this.key = key;
+      this.filter = filter;
+      this.pageSize = pageSize;
+   }//end ItemStatusHistory
+
+   /**
+    * @param esql the database
+    * @param login whose order items to page through
+    * @param pageSize items per page
+    * @return the history of the items login ordered
+    */
+   public static ItemStatusHistory forUser(Cafe esql, String login, int pageSize) {
+      return new ItemStatusHistory(esql, USER_COLUMNS, USER_KEY, pageSize, login);
+   }//end forUser
+
+   /**
+    * @param esql the database
+    * @param status only items with this status, null for any
+    * @param from only items updated at or after this time
+    * @param to only items updated before this time
+    * @param pageSize items per page
+    * @return the history of the items updated in [from, to)
+    */
+   public static ItemStatusHistory forStaff(Cafe esql, String status, Timestamp from, Timestamp to, int pageSize) {
+      if (status == null)
+         return new ItemStatusHistory(esql, STAFF_COLUMNS, STAFF_KEY, pageSize, from, to);
+      if (!Cafe.ITEM_STATUSES.contains(status))
+         throw new IllegalArgumentException("Invalid status " + status + ", expected one of " + Cafe.ITEM_STATUSES);
+      return new ItemStatusHistory(esql, STAFF_COLUMNS + " AND s.status = ?", STAFF_KEY, pageSize, from, to, status);
+   }//end forStaff
+
+   /**
+    * @return the page of the most recent items
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page latest() throws SQLException {
+      List<Item> rows = fetch(null, null, true);
+      boolean more = trim(rows);
+      return new Page(rows, more, false, this.key == USER_KEY);
+   }//end latest
+
+   /**
+    * @param page a page returned by this history
+    * @return the page of items just before page, empty if none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page older(Page page) throws SQLException {
+      if (page.items.isEmpty())
+         return latest();
+      List<Item> rows = fetch(" < ", page.items.get(page.items.size() - 1), true);
+      boolean more = trim(rows);
+      return new Page(rows, more, true, this.key == USER_KEY);
+   }//end older
+
+   /**
+    * @param page a page returned by this history
+    * @return the page of items just after page, the latest page when fewer
+    *         than a full page remain
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page newer(Page page) throws SQLException {
+      if (page.items.isEmpty())
+         return latest();
+      List<Item> rows = fetch(" > ", page.items.get(0), false);
+      boolean more = trim(rows);
+      if (!more)
+         return latest();
+      Collections.reverse(rows);
+      return new Page(rows, true, true, this.key == USER_KEY);
+   }//end newer
+
+   /*
+    * Runs the page query, asking for one row more than a page to learn
+    * whether the history continues.
+    */
+   private List<Item> fetch(String op, Item from, boolean newestFirst) throws SQLException {
+      StringBuilder sql = new StringBuilder(this.base);
+      List<Object> params = new ArrayList<Object>(this.filter.length + 4);
+      Collections.addAll(params, this.filter);
+      if (op != null){
+         // the timestamp is bound as text so no precision is lost in the
+         // driver's own timestamp formatting.
+         sql.append(" AND (").append(this.key[0]).append(", ").append(this.key[1]).append(", ")
+            .append(this.key[2]).append(")").append(op).append("(CAST(? AS timestamp), ?, ?)");
+         params.add(from.key.toString());
+         params.add(from.orderId);
+         params.add(from.itemName);
+      }//end if
+      String dir = newestFirst ? " DESC" : " ASC";
+      sql.append(" ORDER BY ").append(this.key[0]).append(dir).append(", ").append(this.key[1]).append(dir)
+         .append(", ").append(this.key[2]).append(dir).append(" LIMIT ?");
+      params.add(this.pageSize + 1);
+      Metrics.Span span = this.esql.metrics().begin("item_status_history");
+      try{
+         List<Item> rows = this.esql.queryForList(sql.toString(), ROW, params.toArray());
+         span.ok();
+         return rows;
+      }finally{
+         span.end();
+      }//end try
+   }//end fetch
+
+   /*
+    * Drops the look-ahead row, if any, and reports whether there was one.
+    */
+   private boolean trim(List<Item> rows) {
+      if (rows.size() <= this.pageSize)
+         return false;
+      rows.remove(rows.size() - 1);
+      return true;
+   }//end trim
+
+   /**
+    * Prints a page in the layout of Cafe.executeQueryAndPrintResult.
+    *
+    * @return the number of items printed
+    */
+   public static int print(Page page) {
+      List<String[]> rows = new ArrayList<String[]>(page.items.size());
+      for (Item i : page.items){
+         String[] row = { Integer.toString(i.orderId), i.itemName, i.status, i.lastUpdated.toString(), i.comments };
+         rows.add(page.withComments ? row : Arrays.copyOf(row, 4));
+      }//end for
+      String[] header = { "orderid", "itemname", "status", "lastupdated", "comments" };
+      return Cafe.printer.print(page.withComments ? header : Arrays.copyOf(header, 4), rows);
+   }//end print
+
+}//end ItemStatusHistory
@@ -0,0 +1,312 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Live, in-process view of the kitchen: the ItemStatus rows updated within
+ * the last windowMillis, grouped by status.
+ *
+ * The board is loaded once and then only refreshed when Postgres says
+ * something changed (see create_triggers.sql). An insert or update raises
+ * itemstatus_changed, and the board re-reads just the rows whose
+ * lastUpdated is at or after the newest one it has seen. The re-read starts
+ * overlapMillis earlier so rows written by transactions that committed late
+ * are still picked up. A delete raises itemstatus_deleted, and the board is
+ * reloaded, since deleted rows cannot be found by a range read.
+ * Notifications carry no payload with this driver, so the range read is how
+ * the board learns what changed.
+ *
+ * Writers must set lastUpdated on every change for the range read to see
+ * it; Cafe.updateOrderStatus does.
+ *
+ */
+public class KitchenBoard implements Runnable {
+
+   public static final String CHANGED = "itemstatus_changed";
+   public static final String DELETED = "itemstatus_deleted";
+
+   private static final String SINCE_SQL =
+      "SELECT orderid, itemName, status, lastUpdated, comments FROM ITEMSTATUS WHERE lastUpdated >= ?";
+
+   /**
+    * One item on the board.
+    */
+   public static class Entry {
+      public final int orderId;
+      public final String itemName;
+      public final String status;
+      public final Timestamp lastUpdated;
+      public final String comments;
+
+      Entry(int orderId, String itemName, String status, Timestamp lastUpdated, String comments) {
+         this.orderId = orderId;
+         this.itemName = itemName;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+         this.comments = comments;
+      }
+
+      String key() {
+         return this.orderId + "/" + this.itemName;
+      }
+
+      boolean sameAs(Entry e) {
+         return this.lastUpdated.equals(e.lastUpdated) && eq(this.status, e.status) && eq(this.comments, e.comments);
+      }
+
+      private static boolean eq(String a, String b) {
+         return a == null ? b == null : a.equals(b);
+      }
+   }//end Entry
+
+   private static final RowMapper<Entry> ROW = new RowMapper<Entry>() {
+      public Entry map(ResultSet rs) throws SQLException {
+         String status = rs.getString(3);
+         String comments = rs.getString(5);
+         return new Entry(rs.getInt(1), rs.getString(2).trim(), status == null ? "" : status.trim(),
+                          rs.getTimestamp(4), comments == null ? null : comments.trim());
+      }
+   };
+
+   // queue order within a status: longest waiting first
+   private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         int c = a.lastUpdated.compareTo(b.lastUpdated);
+         if (c != 0)
+            return c;
+         c = Integer.compare(a.orderId, b.orderId);
+         return c != 0 ? c : a.itemName.compareTo(b.itemName);
+      }
+   };
+
+   private final Cafe esql;
+   private final long windowMillis;
+   private final long overlapMillis;
+
+   // guarded by this
+   private Map<String, Entry> items = new HashMap<String, Entry>();
+   private Timestamp highWater = null;
+   private long version = 0;
+   private boolean changed = false;
+   private boolean deleted = false;
+
+   private Thread thread = null;
+   private volatile boolean running = false;
+
+   public KitchenBoard(Cafe esql, long windowMillis, long overlapMillis) {
+      this.esql = esql;
+      this.windowMillis = windowMillis;
+      this.overlapMillis = overlapMillis;
+   }//end KitchenBoard
+
+   /**
+    * Subscribes to the ItemStatus channels, loads the board and starts the
+    * refresh thread.
+    *
+    * @throws java.sql.SQLException when notifications are disabled or the board could not be loaded
+    */
+   public void start() throws SQLException {
+      // subscribe first so nothing committed during the load is missed
+      this.esql.listen(CHANGED, new NotificationListener.Handler() {
+         public void notified(String channel) {
+            signal(false);
+         }
+      });
+      this.esql.listen(DELETED, new NotificationListener.Handler() {
+         public void notified(String channel) {
+            signal(true);
+         }
+      });
+      reload();
+      this.running = true;
+      this.thread = new Thread(this, "cafe-kitchen-board");
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }//end start
+
+   private synchronized void signal(boolean full) {
+      if (full)
+         this.deleted = true;
+      else
+         this.changed = true;
+      notifyAll();
+   }//end signal
+
+   public void run() {
+      while (this.running){
+         boolean full;
+         synchronized (this){
+            while (this.running && !this.changed && !this.deleted){
+               try{
+                  wait();
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end while
+            full = this.deleted;
+            this.changed = false;
+            this.deleted = false;
+         }//end synchronized
+         if (!this.running)
+            return;
+         try{
+            if (full)
+               reload();
+            else
+               refresh();
+         }catch (SQLException e){
+            // start over from scratch once the database is back
+            signal(true);
+            try{
+               Thread.sleep(1000);
+            }catch (InterruptedException ie){
+               return;
+            }//end try
+         }//end try
+      }//end while
+   }//end run
+
+   /*
+    * Replaces the board with every item in the window.
+    */
+   private void reload() throws SQLException {
+      long now = System.currentTimeMillis();
+      List<Entry> rows = this.esql.queryForList(SINCE_SQL, ROW, new Timestamp(now - this.windowMillis));
+      Map<String, Entry> fresh = new HashMap<String, Entry>(rows.size() * 2);
+      Timestamp newest = null;
+      for (Entry e : rows){
+         fresh.put(e.key(), e);
+         newest = later(newest, e.lastUpdated);
+      }//end for
+      synchronized (this){
+         this.items = fresh;
+         this.highWater = newest;
+         ++this.version;
+         notifyAll();
+      }//end synchronized
+   }//end reload
+
+   /*
+    * Applies the rows changed since the newest update seen and drops the
+    * items that fell out of the window.
+    */
+   private void refresh() throws SQLException {
+      long now = System.currentTimeMillis();
+      long windowStart = now - this.windowMillis;
+      Timestamp from;
+      synchronized (this){
+         from = new Timestamp(this.highWater == null ? windowStart
+            : Math.max(windowStart, this.highWater.getTime() - this.overlapMillis));
+      }//end synchronized
+      List<Entry> rows = this.esql.queryForList(SINCE_SQL, ROW, from);
+
+      synchronized (this){
+         int changes = 0;
+         for (Entry e : rows){
+            Entry old = this.items.put(e.key(), e);
+            if (old == null || !old.sameAs(e))
+               ++changes;
+            this.highWater = later(this.highWater, e.lastUpdated);
+         }//end for
+         for (Iterator<Entry> it = this.items.values().iterator(); it.hasNext(); ){
+            if (it.next().lastUpdated.getTime() < windowStart){
+               it.remove();
+               ++changes;
+            }//end if
+         }//end for
+         if (changes > 0){
+            ++this.version;
+            notifyAll();
+         }//end if
+      }//end synchronized
+   }//end refresh
+
+   private static Timestamp later(Timestamp a, Timestamp b) {
+      return a == null || (b != null && b.after(a)) ? b : a;
+   }
+
+   /**
+    * @return a number that changes whenever the board changes
+    */
+   public synchronized long version() {
+      return this.version;
+   }
+
+   /**
+    * Waits until the board differs from version seen.
+    *
+    * @param seen the version last shown
+    * @param timeoutMillis the longest wait
+    * @return the current version, equal to seen on timeout
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+   public synchronized long awaitChange(long seen, long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      long left = timeoutMillis;
+      while (this.version == seen && left > 0){
+         wait(left);
+         left = deadline - System.currentTimeMillis();
+      }//end while
+      return this.version;
+   }//end awaitChange
+
+   /**
+    * @return the items grouped by status, the known statuses first, each
+    *         group longest waiting first
+    */
+   public synchronized Map<String, List<Entry>> byStatus() {
+      Map<String, List<Entry>> groups = new LinkedHashMap<String, List<Entry>>();
+      for (String status : Cafe.ITEM_STATUSES)
+         groups.put(status, new ArrayList<Entry>());
+      for (Entry e : this.items.values()){
+         List<Entry> list = groups.get(e.status);
+         if (list == null){
+            list = new ArrayList<Entry>();
+            groups.put(e.status, list);
+         }//end if
+         list.add(e);
+      }//end for
+      for (List<Entry> list : groups.values())
+         Collections.sort(list, OLDEST_FIRST);
+      return groups;
+   }//end byStatus
+
+   /**
+    * Prints every status group with its items.
+    */
+   public void print() {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, List<Entry>> group : byStatus().entrySet()){
+         sb.append(group.getKey().isEmpty() ? "(no status)" : group.getKey())
+           .append(" (").append(group.getValue().size()).append(")\n");
+         for (Entry e : group.getValue()){
+            sb.append("  #").append(e.orderId).append("  ").append(e.itemName)
+              .append("  ").append(e.lastUpdated);
+            if (e.comments != null && !e.comments.isEmpty())
+               sb.append("  ").append(e.comments);
+            sb.append('\n');
+         }//end for
+      }//end for
+      System.out.print(sb);
+      System.out.flush();
+   }//end print
+
+   /**
+    * Stops the refresh thread.
+    */
+   public void close() {
+      this.running = false;
+      synchronized (this){
+         notifyAll();
+      }//end synchronized
+   }//end close
+
+}//end KitchenBoard
@@ -0,0 +1,112 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, fixed-size histogram of latencies in nanoseconds.
+ *
+ * Values are counted in log-linear buckets: every power of two is split
+ * into 32 sub-buckets, so percentiles are reported within about 3% of the
+ * true value whatever the range, and recording is a couple of bit
+ * operations and one atomic increment.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB = 1 << SUB_BITS;
+   private static final int BUCKETS = 64 * SUB;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * @param nanos the latency to record, negative values count as 0
+    */
+   public void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this.counts.incrementAndGet(index(nanos));
+      this.count.incrementAndGet();
+      this.sum.addAndGet(nanos);
+      long m;
+      while (nanos > (m = this.max.get())){
+         if (this.max.compareAndSet(m, nanos))
+            break;
+      }//end while
+   }//end record
+
+   public long getCount() {
+      return this.count.get();
+   }
+
+   public long getMax() {
+      return this.max.get();
+   }
+
+   /**
+    * @return the mean latency in nanoseconds, 0 when empty
+    */
+   public double getMean() {
+      long n = this.count.get();
+      return n == 0 ? 0.0 : (double) this.sum.get() / n;
+   }//end getMean
+
+   /**
+    * @param p the quantile, between 0 and 1, e.g. 0.99
+    * @return an estimate of the latency at p in nanoseconds, 0 when empty
+    */
+   public long percentile(double p) {
+      long n = this.count.get();
+      if (n == 0)
+         return 0;
+      long target = Math.max(1, (long) Math.ceil(p * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i){
+         seen += this.counts.get(i);
+         if (seen >= target)
+            return Math.min(this.max.get(), (lowerBound(i) + lowerBound(i + 1)) / 2);
+      }//end for
+      return this.max.get();
+   }//end percentile
+
+   /**
+    * Clears every count.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; ++i)
+         this.counts.set(i, 0);
+      this.count.set(0);
+      this.sum.set(0);
+      this.max.set(0);
+   }//end reset
+
+   /**
+    * @return count, mean and tail percentiles in milliseconds
+    */
+   public String summary() {
+      return String.format(Locale.ROOT,
+         "count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+         getCount(), getMean() / 1e6, percentile(0.50) / 1e6, percentile(0.99) / 1e6,
+         percentile(0.999) / 1e6, getMax() / 1e6);
+   }//end summary
+
+   static int index(long v) {
+      if (v < SUB)
+         return (int) v;
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+      return (exp - SUB_BITS + 1) * SUB + sub;
+   }//end index
+
+   static long lowerBound(int index) {
+      if (index < SUB)
+         return index;
+      int exp = index / SUB + SUB_BITS - 1;
+      long sub = index % SUB;
+      return (1L << exp) | (sub << (exp - SUB_BITS));
+   }//end lowerBound
+
+}//end LatencyHistogram
@@ -0,0 +1,221 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through, in-process copy of the Menu table.
+ *
+ * The menu is a few dozen rows, so the whole table is loaded on first use
+ * and kept as an immutable snapshot indexed by name and by type. The
+ * snapshot is dropped by invalidate(), which Cafe calls after its own menu
+ * edits and whenever another process signals a change on the menu_changed
+ * channel (see create_triggers.sql). The next read reloads it, together
+ * with its search index (see MenuSearch) and its rendered text: the menu
+ * screens are formatted once per snapshot, so showing one is a single
+ * write of ready bytes, with no query and no formatting.
+ *
+ */
+public class MenuCache {
+
+   public static final String CHANNEL = "menu_changed";
+
+   // key of the whole menu among the rendered screens; no type is empty
+   private static final String FULL_MENU = "";
+   private static final byte[] NOTHING = new byte[0];
+
+   private static final String LOAD_SQL =
+      "SELECT m.itemName, m.type, CAST(m.price * 100 AS bigint), m.description, m.imageURL FROM MENU m ORDER BY m.type, m.itemName;";
+
+   /**
+    * An immutable view of the menu at one version.
+    */
+   public static class Snapshot {
+      public final long version;
+      // every item, ordered by type then name
+      public final List<MenuItem> all;
+      final Map<String, MenuItem> byName;
+      final Map<String, List<MenuItem>> byType;
+      final MenuSearch search;
+      // the printed menu by type, FULL_MENU for every item with its type
+      final Map<String, byte[]> rendered;
+
+      Snapshot(long version, List<MenuItem> all) {
+         this.version = version;
+         this.all = Collections.unmodifiableList(all);
+         this.byName = new HashMap<String, MenuItem>();
+         Map<String, List<MenuItem>> types = new HashMap<String, List<MenuItem>>();
+         for (MenuItem item : all){
+            this.byName.put(item.itemName, item);
+            List<MenuItem> list = types.get(item.type);
+            if (list == null){
+               list = new ArrayList<MenuItem>();
+               types.put(item.type, list);
+            }//end if
+            list.add(item);
+         }//end for
+         this.byType = new HashMap<String, List<MenuItem>>();
+         for (Map.Entry<String, List<MenuItem>> e : types.entrySet())
+            this.byType.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+         this.search = new MenuSearch(this.all);
+         this.rendered = new HashMap<String, byte[]>();
+         this.rendered.put(FULL_MENU, render(this.all, true).getBytes());
+         for (Map.Entry<String, List<MenuItem>> e : this.byType.entrySet())
+            this.rendered.put(e.getKey(), render(e.getValue(), false).getBytes());
+      }
+   }//end Snapshot
+
+   // reads a Menu row selected by LOAD_SQL.
+   private static final RowMapper<MenuItem> ROW = new RowMapper<MenuItem>() {
+      public MenuItem map(ResultSet rs) throws SQLException {
+         return new MenuItem(rs.getString(1), rs.getString(2), rs.getLong(3), rs.getString(4), rs.getString(5));
+      }
+   };
+
+   private final Cafe esql;
+   private volatile Snapshot snapshot = null;
+   // bumped by every invalidation; a load only installs its result if no
+   // invalidation happened while it ran.
+   private long generation = 0;
+
+   public MenuCache(Cafe esql) {
+      this.esql = esql;
+   }//end MenuCache
+
+   /**
+    * @return the current snapshot, loading it from the database if needed
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public Snapshot snapshot() throws SQLException {
+      Snapshot s = this.snapshot;
+      if (s != null)
+         return s;
+
+      long gen;
+      synchronized (this){
+         if (this.snapshot != null)
+            return this.snapshot;
+         gen = this.generation;
+      }//end synchronized
+
+      s = new Snapshot(gen, this.esql.queryForList(LOAD_SQL, ROW));
+
+      synchronized (this){
+         if (this.generation == gen && this.snapshot == null)
+            this.snapshot = s;
+      }//end synchronized
+      return s;
+   }//end snapshot
+
+   /**
+    * @param itemName the item name, surrounding blanks ignored
+    * @return the item, or null if it is not on the menu
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public MenuItem byName(String itemName) throws SQLException {
+      return snapshot().byName.get(itemName.trim());
+   }//end byName
+
+   /**
+    * @param type the item type, e.g. Drinks
+    * @return the items of that type ordered by name, empty if none
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> byType(String type) throws SQLException {
+      List<MenuItem> list = snapshot().byType.get(type.trim());
+      if (list == null)
+         return Collections.emptyList();
+      return list;
+   }//end byType
+
+   /**
+    * Case-insensitive prefix, substring and typo-tolerant search over item
+    * names, types and descriptions.
+    *
+    * @param query free text, e.g. "latte" or "cof"
+    * @param limit the most items returned
+    * @return the matching items, best first
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> search(String query, int limit) throws SQLException {
+      Metrics.Span op = this.esql.metrics().begin("menu_search");
+      try{
+         List<MenuItem> items = snapshot().search.search(query, limit);
+         op.ok();
+         return items;
+      }finally{
+         op.end();
+      }//end try
+   }//end search
+
+   /**
+    * @param query a type name, any case, possibly misspelled or partial
+    * @return the closest menu type, or null if none is close
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public String bestType(String query) throws SQLException {
+      return snapshot().search.bestType(query);
+   }//end bestType
+
+   /**
+    * @param type the item type, e.g. Drinks, or null for the whole menu
+    * @return the menu screen as ResultPrinter would print it, in the
+    *         platform encoding; empty if no item has that type
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public byte[] rendered(String type) throws SQLException {
+      byte[] text = snapshot().rendered.get(type == null ? FULL_MENU : type.trim());
+      return text == null ? NOTHING : text;
+   }//end rendered
+
+   /**
+    * Formats menu items in the layout of Cafe.executeQueryAndPrintResult,
+    * optionally with the type column first.
+    *
+    * @param items the items to show, in order
+    * @param withType whether to add the type column
+    * @return the text, empty if there are no items
+    */
+   public static String render(List<MenuItem> items, boolean withType) {
+      String[] header = withType
+         ? new String[] { "type", "itemname", "price", "description" }
+         : new String[] { "itemname", "price", "description" };
+      List<String[]> rows = new ArrayList<String[]>(items.size());
+      for (MenuItem item : items){
+         if (withType)
+            rows.add(new String[] { item.type, item.itemName, Money.format(item.priceCents), item.description });
+         else
+            rows.add(new String[] { item.itemName, Money.format(item.priceCents), item.description });
+      }//end for
+      StringBuilder sb = new StringBuilder(64 * (rows.size() + 1));
+      ResultPrinter.format(header, rows, sb);
+      return sb.toString();
+   }//end render
+
+   /**
+    * @return every item ordered by type then name
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> all() throws SQLException {
+      return snapshot().all;
+   }//end all
+
+   /**
+    * Drops the cached menu; the next read reloads it.
+    */
+   public synchronized void invalidate() {
+      ++this.generation;
+      this.snapshot = null;
+   }//end invalidate
+
+   /**
+    * @return a number that changes whenever the menu is invalidated
+    */
+   public synchronized long version() {
+      return this.generation;
+   }//end version
+
+}//end MenuCache
@@ -0,0 +1,31 @@
+/**
+ * One row of the Menu table, with the blank padding of the char(n) columns
+ * removed.
+ *
+ */
+public class MenuItem {
+
+   public final String itemName;
+   public final String type;
+   // price of one unit, in cents
+   public final long priceCents;
+   public final String description;
+   public final String imageURL;
+
+   public MenuItem(String itemName, String type, long priceCents, String description, String imageURL) {
+      this.itemName = trim(itemName);
+      this.type = trim(type);
+      this.priceCents = priceCents;
+      this.description = trim(description);
+      this.imageURL = trim(imageURL);
+   }//end MenuItem
+
+   private static String trim(String s) {
+      return s == null ? null : s.trim();
+   }
+
+   public String toString() {
+      return this.itemName;
+   }
+
+}//end MenuItem
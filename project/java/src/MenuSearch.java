@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory, ranked search over the names, types and descriptions of one
+ * menu snapshot.
+ *
+ * Text is lower-cased and split into words. Every distinct word is kept in
+ * a sorted vocabulary, so all words starting with a prefix are one binary
+ * search away, and in a trigram index ("  c", " co", "cof", ...), which
+ * finds the words containing a substring and the words close to a
+ * misspelling without scanning the vocabulary. Each query word is matched
+ * as exact, prefix, substring or typo (edit distance 1, or 2 for longer
+ * words); an item matches when every query word does, and is ranked by how
+ * well and where (name over type over description) the words matched.
+ *
+ * An index is immutable and built once per MenuCache snapshot, so it is
+ * always in step with the menu.
+ *
+ */
+public class MenuSearch {
+
+   // where a word occurs, in decreasing weight
+   private static final int NAME = 0;
+   private static final int TYPE = 1;
+   private static final int DESCRIPTION = 2;
+   private static final int[] FIELD_WEIGHT = { 3, 2, 1 };
+
+   // how a query word matched, in decreasing score
+   private static final int EXACT = 100;
+   private static final int PREFIX = 60;
+   private static final int SUBSTRING = 40;
+   private static final int TYPO = 25;
+
+   private final List<MenuItem> items;
+   // normalized names, words joined by one blank
+   private final String[] names;
+   // sorted distinct words
+   private final String[] vocabulary;
+   // word -> per item, the best (lowest) field it occurs in, -1 if absent
+   private final Map<String, int[]> fields = new HashMap<String, int[]>();
+   // trigram -> indexes into vocabulary
+   private final Map<String, int[]> trigrams = new HashMap<String, int[]>();
+
+   public MenuSearch(List<MenuItem> items) {
+      this.items = items;
+      this.names = new String[items.size()];
+      for (int i = 0; i < items.size(); ++i){
+         MenuItem item = items.get(i);
+         this.names[i] = join(words(item.itemName));
+         add(item.itemName, i, NAME);
+         add(item.type, i, TYPE);
+         add(item.description, i, DESCRIPTION);
+      }//end for
+      this.vocabulary = this.fields.keySet().toArray(new String[this.fields.size()]);
+      Arrays.sort(this.vocabulary);
+
+      Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+      for (int w = 0; w < this.vocabulary.length; ++w){
+         for (String g : grams(this.vocabulary[w])){
+            List<Integer> list = postings.get(g);
+            if (list == null){
+               list = new ArrayList<Integer>();
+               postings.put(g, list);
+            }//end if
+            list.add(w);
+         }//end for
+      }//end for
+      for (Map.Entry<String, List<Integer>> e : postings.entrySet()){
+         int[] words = new int[e.getValue().size()];
+         for (int i = 0; i < words.length; ++i)
+            words[i] = e.getValue().get(i);
+         this.trigrams.put(e.getKey(), words);
+      }//end for
+   }//end MenuSearch
+
+   private void add(String text, int item, int field) {
+      for (String word : words(text)){
+         int[] where = this.fields.get(word);
+         if (where == null){
+            where = new int[this.items.size()];
+            Arrays.fill(where, -1);
+            this.fields.put(word, where);
+         }//end if
+         if (where[item] < 0 || field < where[item])
+            where[item] = field;
+      }//end for
+   }//end add
+
+   /**
+    * @param query free text, e.g. "latte" or "choclate ice"
+    * @param limit the most items returned
+    * @return the matching items, best first
+    */
+   public List<MenuItem> search(String query, int limit) {
+      List<String> terms = words(query);
+      if (terms.isEmpty())
+         return Collections.emptyList();
+
+      final int[] scores = new int[this.items.size()];
+      boolean[] all = null;
+      for (String term : terms){
+         int[] best = new int[this.items.size()];
+         for (Map.Entry<String, Integer> m : matches(term).entrySet()){
+            int[] where = this.fields.get(m.getKey());
+            for (int i = 0; i < where.length; ++i)
+               if (where[i] >= 0)
+                  best[i] = Math.max(best[i], m.getValue() * FIELD_WEIGHT[where[i]]);
+         }//end for
+         if (all == null){
+            all = new boolean[this.items.size()];
+            Arrays.fill(all, true);
+         }//end if
+         for (int i = 0; i < best.length; ++i){
+            all[i] &= best[i] > 0;
+            scores[i] += best[i];
+         }//end for
+      }//end for
+
+      String phrase = join(terms);
+      String compact = phrase.replace(" ", "");
+      int maxEdits = compact.length() <= 5 ? 1 : 2;
+      List<Integer> hits = new ArrayList<Integer>();
+      for (int i = 0; i < scores.length; ++i){
+         String name = this.names[i];
+         if (!all[i]){
+            // words run together or split differently, e.g. "icecream"
+            String nameCompact = name.replace(" ", "");
+            if (compact.length() < 3 || !(nameCompact.startsWith(compact)
+                  || distance(compact, nameCompact, maxEdits) <= maxEdits))
+               continue;
+            scores[i] = TYPO * FIELD_WEIGHT[NAME];
+         }//end if
+         // whole-name bonus: the query is the name, or how it starts
+         if (name.equals(phrase))
+            scores[i] += 1000;
+         else if (name.startsWith(phrase))
+            scores[i] += 500;
+         hits.add(i);
+      }//end for
+      Collections.sort(hits, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            if (scores[a] != scores[b])
+               return scores[b] - scores[a];
+            return items.get(a).itemName.compareToIgnoreCase(items.get(b).itemName);
+         }
+      });
+
+      List<MenuItem> result = new ArrayList<MenuItem>(Math.min(limit, hits.size()));
+      for (int i = 0; i < hits.size() && i < limit; ++i)
+         result.add(this.items.get(hits.get(i)));
+      return result;
+   }//end search
+
+   /*
+    * Returns every vocabulary word matching term with the score of its best
+    * kind of match.
+    */
+   private Map<String, Integer> matches(String term) {
+      Map<String, Integer> found = new HashMap<String, Integer>();
+
+      // prefix (and exact) through the sorted vocabulary
+      int from = Arrays.binarySearch(this.vocabulary, term);
+      if (from < 0)
+         from = -from - 1;
+      for (int w = from; w < this.vocabulary.length && this.vocabulary[w].startsWith(term); ++w)
+         found.put(this.vocabulary[w], this.vocabulary[w].equals(term) ? EXACT : PREFIX);
+      if (term.length() < 3)
+         return found;
+
+      // words sharing trigrams with term, with the number shared
+      Set<String> grams = grams(term);
+      Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+      for (String g : grams){
+         int[] words = this.trigrams.get(g);
+         if (words == null)
+            continue;
+         for (int w : words){
+            Integer n = shared.get(w);
+            shared.put(w, n == null ? 1 : n + 1);
+         }//end for
+      }//end for
+
+      int maxEdits = term.length() <= 5 ? 1 : 2;
+      // inner trigrams of term, all present in any word containing it
+      int inner = Math.max(0, term.length() - 2);
+      for (Map.Entry<Integer, Integer> e : shared.entrySet()){
+         String word = this.vocabulary[e.getKey()];
+         if (found.containsKey(word))
+            continue;
+         if (e.getValue() >= inner && word.contains(term))
+            found.put(word, SUBSTRING);
+         else if (Math.abs(word.length() - term.length()) <= maxEdits && distance(term, word, maxEdits) <= maxEdits)
+            found.put(word, TYPO);
+      }//end for
+      return found;
+   }//end matches
+
+   /**
+    * @param query a type name, any case, possibly misspelled
+    * @return the menu type closest to query, or null if none is close
+    */
+   public String bestType(String query) {
+      String q = join(words(query));
+      String best = null;
+      int bestScore = 0;
+      Set<String> types = new HashSet<String>();
+      for (MenuItem item : this.items)
+         types.add(item.type);
+      for (String type : types){
+         String t = join(words(type));
+         int score = 0;
+         if (t.equals(q))
+            score = EXACT;
+         else if (!q.isEmpty() && t.startsWith(q))
+            score = PREFIX;
+         else if (q.length() >= 3 && t.contains(q))
+            score = SUBSTRING;
+         else if (q.length() >= 3 && distance(q, t, 2) <= 2)
+            score = TYPO;
+         if (score > bestScore || (score == bestScore && score > 0 && type.compareTo(best) < 0)){
+            best = type;
+            bestScore = score;
+         }//end if
+      }//end for
+      return best;
+   }//end bestType
+
+   /*
+    * Lower-cased words of text, split on anything but letters and digits.
+    */
+   static List<String> words(String text) {
+      List<String> words = new ArrayList<String>();
+      if (text == null)
+         return words;
+      StringBuilder cur = new StringBuilder();
+      for (int i = 0; i <= text.length(); ++i){
+         char c = i < text.length() ? Character.toLowerCase(text.charAt(i)) : ' ';
+         if (Character.isLetterOrDigit(c)){
+            cur.append(c);
+         }else if (cur.length() > 0){
+            words.add(cur.toString());
+            cur.setLength(0);
+         }//end if
+      }//end for
+      return words;
+   }//end words
+
+   /*
+    * Trigrams of a word padded with two leading blanks and one trailing.
+    */
+   static Set<String> grams(String word) {
+      String padded = "  " + word + " ";
+      Set<String> grams = new HashSet<String>();
+      for (int i = 0; i + 3 <= padded.length(); ++i)
+         grams.add(padded.substring(i, i + 3));
+      return grams;
+   }//end grams
+
+   /*
+    * Optimal string alignment distance between a and b, or max + 1 as soon
+    * as it is known to exceed max.
+    */
+   static int distance(String a, String b, int max) {
+      int n = a.length();
+      int m = b.length();
+      if (Math.abs(n - m) > max)
+         return max + 1;
+      int[] prev2 = new int[m + 1];
+      int[] prev = new int[m + 1];
+      int[] cur = new int[m + 1];
+      for (int j = 0; j <= m; ++j)
+         prev[j] = j;
+      for (int i = 1; i <= n; ++i){
+         cur[0] = i;
+         int rowMin = cur[0];
+         for (int j = 1; j <= m; ++j){
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            int d = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+            if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+               d = Math.min(d, prev2[j - 2] + 1);
+            cur[j] = d;
+            rowMin = Math.min(rowMin, d);
+         }//end for
+         if (rowMin > max)
+            return max + 1;
+         int[] t = prev2;
+         prev2 = prev;
+         prev = cur;
+         cur = t;
+      }//end for
+      return prev[m];
+   }//end distance
+
+   private static String join(List<String> words) {
+      StringBuilder sb = new StringBuilder();
+      for (String w : words){
+         if (sb.length() > 0)
+            sb.append(' ');
+         sb.append(w);
+      }//end for
+      return sb.toString();
+   }//end join
+
+}//end MenuSearch
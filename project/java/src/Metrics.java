@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * In-process latency, row and error counters, kept per logical operation
+ * (login, place_order, menu_view, ...) and per SQL shape.
+ *
+ * Cafe reports every statement run by its execution helpers through
+ * statement(); callers mark operations with begin() and Span.end(). Each
+ * statement also adds its rows to the operation open on its thread, if
+ * any. Counting is lock-free (see LatencyHistogram), so the cost per
+ * statement is a map lookup and a few atomic increments.
+ *
+ * A SQL shape is the statement text with literals and IN lists replaced by
+ * ?, so ad-hoc statements that differ only in their values share one entry.
+ * At most MAX_SHAPES shapes are tracked; later ones are counted under
+ * OTHER.
+ *
+ */
+public class Metrics {
+
+   static final int MAX_SHAPES = 500;
+   static final String OTHER = "(other)";
+
+   // widest shape kept, longer ones are cut
+   private static final int SHAPE_LENGTH = 160;
+   // statement text -> shape, for statements seen before
+   private static final int MAX_CACHED_TEXTS = 4096;
+   private static final Pattern LIST = Pattern.compile("\\?( ?, ?\\?)+");
+
+   /**
+    * Counters of one operation or SQL shape.
+    */
+   public static class Stat {
+      public final String name;
+      public final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+
+      Stat(String name) {
+         this.name = name;
+      }
+
+      public long getRows() {
+         return this.rows.get();
+      }
+
+      public long getErrors() {
+         return this.errors.get();
+      }
+   }//end Stat
+
+   /**
+    * One running operation, from begin() to end(). Not thread-safe: a span
+    * belongs to the thread that began it.
+    */
+   public final class Span {
+      private final Stat stat;
+      private final Span parent;
+      private final long start = System.nanoTime();
+      private long rows = 0;
+      private boolean ok = false;
+      private boolean ended = false;
+
+      Span(Stat stat, Span parent) {
+         this.stat = stat;
+         this.parent = parent;
+      }
+
+      /**
+       * Marks the operation as successful; an operation ended without it
+       * counts as an error.
+       */
+      public void ok() {
+         this.ok = true;
+      }
+
+      /**
+       * Records the operation. Call it exactly once, in a finally block.
+       */
+      public void end() {
+         if (this.ended)
+            return;
+         this.ended = true;
+         this.stat.latency.record(System.nanoTime() - this.start);
+         this.stat.rows.addAndGet(this.rows);
+         if (!this.ok)
+            this.stat.errors.incrementAndGet();
+         if (current.get() == this){
+            if (this.parent == null)
+               current.remove();
+            else
+               current.set(this.parent);
+         }//end if
+      }//end end
+   }//end Span
+
+   private final ConcurrentHashMap<String, Stat> operations = new ConcurrentHashMap<String, Stat>();
+   private final ConcurrentHashMap<String, Stat> statements = new ConcurrentHashMap<String, Stat>();
+   private final ConcurrentHashMap<String, String> shapes = new ConcurrentHashMap<String, String>();
+   private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+   private volatile long since = System.currentTimeMillis();
+
+   private Thread dumper = null;
+   private volatile boolean dumping = false;
+
+   /**
+    * Starts timing an operation on the current thread.
+    *
+    * @param operation the operation name, e.g. place_order
+    * @return the span to end() when the operation is over
+    */
+   public Span begin(String operation) {
+      Span span = new Span(stat(this.operations, operation), this.current.get());
+      this.current.set(span);
+      return span;
+   }//end begin
+
+   /**
+    * Records one statement and adds its rows to the operation open on the
+    * current thread.
+    *
+    * @param sql the statement text as prepared
+    * @param nanos how long it ran, results read included
+    * @param rows rows returned or changed, negative if it failed
+    */
+   public void statement(String sql, long nanos, long rows) {
+      Stat stat = stat(this.statements, shapeOf(sql));
+      stat.latency.record(nanos);
+      if (rows < 0){
+         stat.errors.incrementAndGet();
+         return;
+      }//end if
+      stat.rows.addAndGet(rows);
+      Span span = this.current.get();
+      if (span != null)
+         span.rows += rows;
+   }//end statement
+
+   private Stat stat(ConcurrentHashMap<String, Stat> stats, String name) {
+      Stat stat = stats.get(name);
+      if (stat != null)
+         return stat;
+      if (stats.size() >= MAX_SHAPES)
+         name = OTHER;
+      stat = new Stat(name);
+      Stat raced = stats.putIfAbsent(name, stat);
+      return raced == null ? stat : raced;
+   }//end stat
+
+   private String shapeOf(String sql) {
+      String shape = this.shapes.get(sql);
+      if (shape == null){
+         shape = shape(sql);
+         if (this.shapes.size() < MAX_CACHED_TEXTS)
+            this.shapes.put(sql, shape);
+      }//end if
+      return shape;
+   }//end shapeOf
+
+   /**
+    * Reduces a statement to its shape: blanks collapsed, string and number
+    * literals and runs of ? replaced by a single ?, and the trailing ;
+    * dropped.
+    *
+    * @param sql the statement text
+    * @return its shape, at most SHAPE_LENGTH characters
+    */
+   static String shape(String sql) {
+      StringBuilder sb = new StringBuilder(Math.min(sql.length(), 256));
+      int n = sql.length();
+      for (int i = 0; i < n; ++i){
+         char c = sql.charAt(i);
+         if (c == '\''){
+            // a string literal, '' is an escaped quote
+            for (++i; i < n; ++i){
+               if (sql.charAt(i) == '\''){
+                  if (i + 1 < n && sql.charAt(i + 1) == '\'')
+                     ++i;
+                  else
+                     break;
+               }//end if
+            }//end for
+            sb.append('?');
+         }else if (Character.isDigit(c) && (sb.length() == 0 || !isWordChar(sb.charAt(sb.length() - 1)))){
+            while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+               ++i;
+            sb.append('?');
+         }else if (Character.isWhitespace(c)){
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+               sb.append(' ');
+         }else{
+            sb.append(c);
+         }//end if
+      }//end for
+      String shape = LIST.matcher(sb).replaceAll("?").trim();
+      if (shape.endsWith(";"))
+         shape = shape.substring(0, shape.length() - 1).trim();
+      return shape.length() > SHAPE_LENGTH ? shape.substring(0, SHAPE_LENGTH) + "..." : shape;
+   }//end shape
+
+   private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+   }
+
+   /**
+    * @return the operations recorded so far, by name
+    */
+   public List<Stat> operations() {
+      return sorted(this.operations);
+   }
+
+   /**
+    * @return the SQL shapes recorded so far, by shape
+    */
+   public List<Stat> statements() {
+      return sorted(this.statements);
+   }
+
+   private static List<Stat> sorted(Map<String, Stat> stats) {
+      return new ArrayList<Stat>(new TreeMap<String, Stat>(stats).values());
+   }
+
+   /**
+    * Clears every counter.
+    */
+   public void reset() {
+      this.operations.clear();
+      this.statements.clear();
+      this.since = System.currentTimeMillis();
+   }//end reset
+
+   /**
+    * @return every counter as aligned text, operations first
+    */
+   public String text() {
+      String[] header = { "kind", "name", "count", "errors", "rows", "mean_ms", "p50_ms", "p99_ms", "max_ms" };
+      List<String[]> rows = new ArrayList<String[]>();
+      for (Stat s : operations())
+         rows.add(row("op", s));
+      for (Stat s : statements())
+         rows.add(row("sql", s));
+      StringBuilder sb = new StringBuilder();
+      sb.append("Metrics since ").append(new java.sql.Timestamp(this.since)).append('\n');
+      ResultPrinter.format(header, rows, sb);
+      return sb.toString();
+   }//end text
+
+   private static String[] row(String kind, Stat s) {
+      LatencyHistogram h = s.latency;
+      return new String[] { kind, s.name, Long.toString(h.getCount()), Long.toString(s.getErrors()),
+                            Long.toString(s.getRows()), millis(h.getMean()), millis(h.percentile(0.50)),
+                            millis(h.percentile(0.99)), millis(h.getMax()) };
+   }//end row
+
+   /**
+    * @return every counter as one JSON object
+    */
+   public String json() {
+      StringBuilder sb = new StringBuilder(256);
+      sb.append("{\"since\":").append(this.since)
+        .append(",\"at\":").append(System.currentTimeMillis())
+        .append(",\"operations\":");
+      json(operations(), sb);
+      sb.append(",\"statements\":");
+      json(statements(), sb);
+      return sb.append('}').toString();
+   }//end json
+
+   private static void json(List<Stat> stats, StringBuilder sb) {
+      sb.append('[');
+      for (int i = 0; i < stats.size(); ++i){
+         Stat s = stats.get(i);
+         LatencyHistogram h = s.latency;
+         sb.append(i == 0 ? "" : ",")
+           .append("{\"name\":").append(ScriptRunner.quote(s.name))
+           .append(",\"count\":").append(h.getCount())
+           .append(",\"errors\":").append(s.getErrors())
+           .append(",\"rows\":").append(s.getRows())
+           .append(",\"mean_ms\":").append(millis(h.getMean()))
+           .append(",\"p50_ms\":").append(millis(h.percentile(0.50)))
+           .append(",\"p99_ms\":").append(millis(h.percentile(0.99)))
+           .append(",\"p999_ms\":").append(millis(h.percentile(0.999)))
+           .append(",\"max_ms\":").append(millis(h.getMax())).append('}');
+      }//end for
+      sb.append(']');
+   }//end json
+
+   private static String millis(double nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+   }
+
+   /**
+    * Starts a daemon thread that rewrites file with the current counters
+    * every periodMillis. The file is replaced whole, so a reader never sees
+    * a partial dump.
+    *
+    * @param file where to write
+    * @param periodMillis time between dumps
+    * @param json true for json(), false for text()
+    */
+   public synchronized void startDump(final File file, final long periodMillis, final boolean json) {
+      if (this.dumper != null)
+         return;
+      this.dumping = true;
+      this.dumper = new Thread(new Runnable() {
+         public void run() {
+            while (dumping){
+               try{
+                  Thread.sleep(periodMillis);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               try{
+                  dump(file, json);
+               }catch (IOException e){
+                  System.err.println("Metrics dump to " + file + " failed: " + e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "cafe-metrics-dump");
+      this.dumper.setDaemon(true);
+      this.dumper.start();
+   }//end startDump
+
+   /**
+    * Writes the current counters to file, replacing it.
+    *
+    * @param file where to write
+    * @param json true for json(), false for text()
+    * @throws java.io.IOException when the file could not be written
+    */
+   public void dump(File file, boolean json) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+      try{
+         w.write(json ? json() : text());
+         w.write('\n');
+      }finally{
+         w.close();
+      }//end try
+      if (!tmp.renameTo(file)){
+         file.delete();
+         if (!tmp.renameTo(file))
+            throw new IOException("could not replace " + file);
+      }//end if
+   }//end dump
+
+   /**
+    * Stops the dump thread, if any.
+    */
+   public synchronized void close() {
+      this.dumping = false;
+      if (this.dumper != null)
+         this.dumper.interrupt();
+      this.dumper = null;
+   }//end close
+
+}//end Metrics
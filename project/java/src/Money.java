@@ -0,0 +1,99 @@
+import java.math.BigDecimal;
+
+/**
+ * Money amounts as a whole number of cents in a long.
+ *
+ * Prices and totals are numeric(10,2) in the database. Queries read them
+ * as CAST(price * 100 AS bigint), so the conversion happens on the server
+ * and the client reads a plain bigint, and statements bind them with
+ * toNumeric(); an amount is never held in a float or double on its way
+ * through.
+ *
+ */
+public final class Money {
+
+   // largest amount numeric(10,2) holds, in cents
+   static final long MAX_CENTS = 9999999999L;
+
+   private Money() {
+   }
+
+   /**
+    * Reads an amount typed by a user, e.g. 3, 3.5, 3.50 or $3.50.
+    *
+    * @param text the amount, at most two decimals
+    * @return the amount in cents
+    * @throws java.lang.NumberFormatException when text is not such an amount
+    */
+   public static long parse(String text) {
+      String s = text == null ? "" : text.trim();
+      if (s.startsWith("$"))
+         s = s.substring(1).trim();
+      boolean negative = s.startsWith("-");
+      if (negative)
+         s = s.substring(1);
+      int dot = s.indexOf('.');
+      String whole = dot < 0 ? s : s.substring(0, dot);
+      String fraction = dot < 0 ? "" : s.substring(dot + 1);
+      if ((whole.isEmpty() && fraction.isEmpty()) || fraction.length() > 2 || whole.length() > 8
+          || !digits(whole) || !digits(fraction))
+         throw new NumberFormatException("Not an amount with at most two decimals: " + text);
+
+      long cents = 0;
+      for (int i = 0; i < whole.length(); ++i)
+         cents = cents * 10 + (whole.charAt(i) - '0');
+      cents *= 100;
+      if (fraction.length() > 0)
+         cents += (fraction.charAt(0) - '0') * 10;
+      if (fraction.length() > 1)
+         cents += fraction.charAt(1) - '0';
+      return negative ? -cents : cents;
+   }//end parse
+
+   private static boolean digits(String s) {
+      for (int i = 0; i < s.length(); ++i)
+         if (s.charAt(i) < '0' || s.charAt(i) > '9')
+            return false;
+      return true;
+   }
+
+   /**
+    * @param cents an amount in cents
+    * @return the amount with two decimals, e.g. 3.50 or -0.05
+    */
+   public static String format(long cents) {
+      long abs = Math.abs(cents);
+      long fraction = abs % 100;
+      return (cents < 0 ? "-" : "") + (abs / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+   }//end format
+
+   /**
+    * @param cents an amount in cents
+    * @return the amount as a value to bind to a numeric parameter
+    */
+   public static BigDecimal toNumeric(long cents) {
+      return BigDecimal.valueOf(cents, 2);
+   }
+
+   /**
+    * The amount charged for one order line.
+    *
+    * @param unitCents the price of one unit
+    * @param quantity units ordered, positive
+    * @param discountCents taken off the line, between 0 and the undiscounted line amount
+    * @return unitCents * quantity - discountCents
+    * @throws java.lang.IllegalArgumentException when the quantity or discount is out of range
+    */
+   public static long line(long unitCents, int quantity, long discountCents) {
+      if (quantity < 1)
+         throw new IllegalArgumentException("Quantity must be positive, got " + quantity);
+      if (unitCents > MAX_CENTS / quantity)
+         throw new IllegalArgumentException("Line amount too large: " + quantity + " x " + format(unitCents));
+      long gross = unitCents * quantity;
+      if (discountCents < 0 || discountCents > gross)
+         throw new IllegalArgumentException("Discount " + format(discountCents) +
+                                            " must be between 0 and the line amount " + format(gross));
+      return gross - discountCents;
+   }//end line
+
+}//end Money
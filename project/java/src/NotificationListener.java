@@ -0,0 +1,174 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Delivers Postgres LISTEN/NOTIFY events to in-process handlers.
+ *
+ * The listener owns one dedicated connection outside the pool and a daemon
+ * thread. The bundled driver only surfaces notifications that arrived with
+ * the response to a query, so the thread issues an empty query every
+ * pollMillis and then drains getNotifications(); the payload-free channel
+ * name is all that is delivered. If the connection drops, it reconnects and
+ * notifies every handler once, since events may have been missed meanwhile.
+ *
+ */
+public class NotificationListener implements Runnable {
+
+   /**
+    * Callback for a notification on a channel. Runs on the listener thread,
+    * so it must be quick and must not block.
+    */
+   public interface Handler {
+      void notified(String channel);
+   }//end Handler
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final long pollMillis;
+
+   private final Map<String, List<Handler>> handlers =
+      new ConcurrentHashMap<String, List<Handler>>();
+   // channels registered since the connection last issued LISTEN.
+   private final List<String> pending = new CopyOnWriteArrayList<String>();
+
+   private Connection _connection = null;
+   private Thread thread = null;
+   private volatile boolean running = false;
+
+   public NotificationListener(String url, String user, String passwd, long pollMillis) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.pollMillis = pollMillis;
+   }//end NotificationListener
+
+   /**
+    * Registers handler for channel, starting the listener thread on first use.
+    *
+    * @param channel the NOTIFY channel name
+    * @param handler called whenever channel is notified
+    */
+   public synchronized void listen(String channel, Handler handler) {
+      String key = channel.toLowerCase();
+      List<Handler> list = this.handlers.get(key);
+      if (list == null){
+         list = new CopyOnWriteArrayList<Handler>();
+         this.handlers.put(key, list);
+         this.pending.add(key);
+      }//end if
+      list.add(handler);
+
+      if (this.thread == null){
+         this.running = true;
+         this.thread = new Thread(this, "cafe-notify");
+         this.thread.setDaemon(true);
+         this.thread.start();
+      }//end if
+   }//end listen
+
+   /**
+    * Stops the listener thread and closes its connection.
+    */
+   public synchronized void close() {
+      this.running = false;
+      if (this.thread != null)
+         this.thread.interrupt();
+   }//end close
+
+   public void run() {
+      boolean reconnected = false;
+      while (this.running){
+         try{
+            if (this._connection == null){
+               this._connection = DriverManager.getConnection(this.url, this.user, this.passwd);
+               this.pending.clear();
+               this.pending.addAll(this.handlers.keySet());
+               if (reconnected)
+                  dispatchAll();
+               reconnected = true;
+            }//end if
+            poll();
+            Thread.sleep(this.pollMillis);
+         }catch (InterruptedException e){
+            break;
+         }catch (SQLException e){
+            System.err.println("Notification listener: " + e.getMessage());
+            disconnect();
+            try{
+               Thread.sleep(Math.max(this.pollMillis, 1000L));
+            }catch (InterruptedException ie){
+               break;
+            }//end try
+         }//end try
+      }//end while
+      disconnect();
+   }//end run
+
+   private void poll() throws SQLException {
+      Statement stmt = this._connection.createStatement();
+      try{
+         for (String channel : this.pending){
+            stmt.execute("LISTEN " + channel);
+            this.pending.remove(channel);
+         }//end for
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         rs.close();
+      }finally{
+         ConnectionPool.closeQuietly(stmt);
+      }//end try
+
+      PGNotification[] notes = ((PGConnection) this._connection).getNotifications();
+      if (notes == null)
+         return;
+      List<String> seen = new ArrayList<String>();
+      for (PGNotification note : notes){
+         String channel = note.getName().toLowerCase();
+         if (!seen.contains(channel)){
+            seen.add(channel);
+            dispatch(channel);
+         }//end if
+      }//end for
+   }//end poll
+
+   private void dispatch(String channel) {
+      List<Handler> list = this.handlers.get(channel);
+      if (list == null)
+         return;
+      for (Handler h : list){
+         try{
+            h.notified(channel);
+         }catch (RuntimeException e){
+            System.err.println("Notification handler for " + channel + " failed: " + e.getMessage());
+         }//end try
+      }//end for
+   }//end dispatch
+
+   private void dispatchAll() {
+      for (String channel : this.handlers.keySet())
+         dispatch(channel);
+   }//end dispatchAll
+
+   private void disconnect() {
+      if (this._connection == null)
+         return;
+      try{
+         this._connection.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+      this._connection = null;
+   }//end disconnect
+
+}//end NotificationListener
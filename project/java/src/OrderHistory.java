@@ -0,0 +1,188 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through the orders of one user, newest first.
+ *
+ * Pages are located by keyset rather than OFFSET: the next page starts
+ * strictly after the (timeStampRecieved, orderid) of the last order shown,
+ * and the previous page strictly before the first. Every page is then a
+ * short range scan of the Orders (login, timeStampRecieved, orderid) index
+ * (see create_indexes.sql), however deep into the history it is.
+ *
+ */
+public class OrderHistory {
+
+   public static final int DEFAULT_PAGE_SIZE = 5;
+
+   private static final String COLUMNS =
+      "SELECT orderid, login, paid, timeStampRecieved, CAST(total * 100 AS bigint) FROM ORDERS WHERE login = ?";
+   // keyset bounds bind the timestamp as text so no precision is lost in
+   // the driver's own timestamp formatting.
+   private static final String OLDER =
+      " AND (timeStampRecieved, orderid) < (CAST(? AS timestamp), ?)";
+   private static final String NEWER =
+      " AND (timeStampRecieved, orderid) > (CAST(? AS timestamp), ?)";
+   private static final String SINCE = " AND timeStampRecieved >= ?";
+   private static final String NEWEST_FIRST = " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?";
+   private static final String OLDEST_FIRST = " ORDER BY timeStampRecieved ASC, orderid ASC LIMIT ?";
+
+   /**
+    * One row of Orders.
+    */
+   public static class Order {
+      public final int orderId;
+      public final String login;
+      public final boolean paid;
+      public final Timestamp placedAt;
+      // in cents
+      public final long total;
+
+      Order(int orderId, String login, boolean paid, Timestamp placedAt, long total) {
+         this.orderId = orderId;
+         this.login = login;
+         this.paid = paid;
+         this.placedAt = placedAt;
+         this.total = total;
+      }
+   }//end Order
+
+   /**
+    * A page of orders, newest first, and whether there is more on either
+    * side of it.
+    */
+   public static class Page {
+      public final List<Order> orders;
+      public final boolean hasOlder;
+      public final boolean hasNewer;
+
+      Page(List<Order> orders, boolean hasOlder, boolean hasNewer) {
+         this.orders = Collections.unmodifiableList(orders);
+         this.hasOlder = hasOlder;
+         this.hasNewer = hasNewer;
+      }
+   }//end Page
+
+   private static final RowMapper<Order> ROW = new RowMapper<Order>() {
+      public Order map(ResultSet rs) throws SQLException {
+         return new Order(rs.getInt(1), rs.getString(2).trim(), rs.getBoolean(3), rs.getTimestamp(4), rs.getLong(5));
+      }
+   };
+
+   private final Cafe esql;
+   private final String login;
+   private final Timestamp since;
+   private final int pageSize;
+
+   /**
+    * @param esql the database
+    * @param login whose orders to page through
+    * @param since only orders placed at or after this time, null for all
+    * @param pageSize orders per page
+    */
+   public OrderHistory(Cafe esql, String login, Timestamp since, int pageSize) {
+      if (pageSize < 1)
+         throw new IllegalArgumentException("page size must be positive, got " + pageSize);
+      this.esql = esql;
+      this.login = login;
+      this.since = since;
+      this.pageSize = pageSize;
+   }//end OrderHistory
+
+   /**
+    * @return the page of the most recent orders
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page latest() throws SQLException {
+      List<Order> rows = fetch(null, null, true);
+      boolean more = trim(rows);
+      return new Page(rows, more, false);
+   }//end latest
+
+   /**
+    * @param page a page returned by this history
+    * @return the page of orders placed just before page, empty if none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page older(Page page) throws SQLException {
+      if (page.orders.isEmpty())
+         return latest();
+      List<Order> rows = fetch(OLDER, page.orders.get(page.orders.size() - 1), true);
+      boolean more = trim(rows);
+      return new Page(rows, more, true);
+   }//end older
+
+   /**
+    * @param page a page returned by this history
+    * @return the page of orders placed just after page, the latest page when
+    *         fewer than a full page remain
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Page newer(Page page) throws SQLException {
+      if (page.orders.isEmpty())
+         return latest();
+      List<Order> rows = fetch(NEWER, page.orders.get(0), false);
+      boolean more = trim(rows);
+      if (!more)
+         return latest();
+      Collections.reverse(rows);
+      return new Page(rows, true, true);
+   }//end newer
+
+   /*
+    * Runs the page query, asking for one row more than a page to learn
+    * whether the history continues.
+    */
+   private List<Order> fetch(String bound, Order from, boolean newestFirst) throws SQLException {
+      StringBuilder sql = new StringBuilder(COLUMNS);
+      List<Object> params = new ArrayList<Object>(5);
+      params.add(this.login);
+      if (this.since != null){
+         sql.append(SINCE);
+         params.add(this.since);
+      }//end if
+      if (bound != null){
+         sql.append(bound);
+         params.add(from.placedAt.toString());
+         params.add(from.orderId);
+      }//end if
+      sql.append(newestFirst ? NEWEST_FIRST : OLDEST_FIRST);
+      params.add(this.pageSize + 1);
+      Metrics.Span op = this.esql.metrics().begin("order_history");
+      try{
+         List<Order> rows = this.esql.queryForList(sql.toString(), ROW, params.toArray());
+         op.ok();
+         return rows;
+      }finally{
+         op.end();
+      }//end try
+   }//end fetch
+
+   /*
+    * Drops the look-ahead row, if any, and reports whether there was one.
+    */
+   private boolean trim(List<Order> rows) {
+      if (rows.size() <= this.pageSize)
+         return false;
+      rows.remove(rows.size() - 1);
+      return true;
+   }//end trim
+
+   /**
+    * Prints a page in the layout of Cafe.executeQueryAndPrintResult.
+    *
+    * @return the number of orders printed
+    */
+   public static int print(Page page) {
+      List<String[]> rows = new ArrayList<String[]>(page.orders.size());
+      for (Order o : page.orders)
+         rows.add(new String[] { Integer.toString(o.orderId), o.login, o.paid ? "t" : "f",
+                                 o.placedAt.toString(), Money.format(o.total) });
+      return Cafe.printer.print(new String[] { "orderid", "login", "paid", "timestamprecieved", "total" }, rows);
+   }//end print
+
+}//end OrderHistory
@@ -0,0 +1,327 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a customer order in one transaction with a fixed number of round
+ * trips, however many lines the basket holds:
+ *
+ *   1. one set-based SELECT validates and prices every item,
+ *   2. INSERT ... RETURNING creates the order and allocates its id,
+ *   3. one INSERT ... SELECT over unnest of bound arrays writes all
+ *      ItemStatus rows, each with its quantity, discount and the unit price
+ *      it was sold at (the driver runs a JDBC batch as one round trip per
+ *      row, so batches are not used),
+ *   4. UPDATE ... RETURNING sums the total on the server,
+ *   5. the order is added to the sales rollups (see SalesRollup),
+ *   6. COMMIT.
+ *
+ * Both the SELECT and the INSERT bind the basket as arrays, so their SQL
+ * text is the same for every basket size and each takes a single slot in
+ * the statement cache.
+ *
+ * Amounts are whole cents in a long (see Money). The total is also added
+ * up from the lines in Java; if the server's sum differs the order is
+ * refused, so the receipt always matches the stored total.
+ *
+ * If any step fails the transaction is rolled back, so no partial order is
+ * ever visible. Every statement runs through the Cafe helpers, which join
+ * the thread's transaction and report each one to the metrics and the
+ * slow-query log.
+ *
+ */
+public class OrderPlacement {
+
+   private static final String INSERT_ORDER =
+      "INSERT INTO ORDERS (login, paid, timeStampRecieved, total) VALUES (?,?,?,?) RETURNING orderid;";
+   private static final String INSERT_ITEMS =
+      "INSERT INTO itemStatus (orderid, itemName, lastUpdated, status, comments, quantity, discount, unitPrice, " +
+      "orderTime) SELECT ?, u.itemName, ?, 'Hasn''t started', '', u.quantity, u.discount, u.unitPrice, ? " +
+      "FROM unnest(CAST(? AS text[]), CAST(? AS integer[]), CAST(? AS numeric[]), CAST(? AS numeric[])) " +
+      "AS u(itemName, quantity, discount, unitPrice);";
+   private static final String PRICE_ITEMS =
+      "SELECT m.itemName, CAST(m.price * 100 AS bigint) FROM MENU m WHERE m.itemName = ANY(CAST(? AS text[]));";
+   private static final String UPDATE_TOTAL =
+      "UPDATE ORDERS SET total = (SELECT COALESCE(SUM(s.unitPrice * s.quantity - s.discount), 0) " +
+      "FROM ItemStatus s WHERE s.orderid = ?) WHERE orderid = ? RETURNING CAST(total * 100 AS bigint);";
+   private static final String LOCK_UNPAID =
+      "SELECT orderid FROM ORDERS WHERE orderid = ? AND paid IS NOT TRUE FOR UPDATE;";
+   private static final String SET_DISCOUNT =
+      "UPDATE ItemStatus s SET discount = ? FROM ORDERS o " +
+      "WHERE s.orderid = ? AND s.itemName = ? AND o.orderid = s.orderid AND o.paid IS NOT TRUE;";
+
+   /**
+    * One line of a basket: an item, how many of it, and the amount taken
+    * off the line. On a receipt the line also carries its unit price.
+    */
+   public static class Line {
+      public final String itemName;
+      public final int quantity;
+      public final long discountCents;
+      // price of one unit in cents, -1 until priced
+      public final long unitCents;
+
+      public Line(String itemName, int quantity, long discountCents) {
+         this(itemName, quantity, discountCents, -1);
+      }
+
+      Line(String itemName, int quantity, long discountCents, long unitCents) {
+         this.itemName = itemName;
+         this.quantity = quantity;
+         this.discountCents = discountCents;
+         this.unitCents = unitCents;
+      }
+
+      /**
+       * @return the amount charged for the line, in cents
+       * @throws java.lang.IllegalStateException when the line is not priced
+       */
+      public long totalCents() {
+         if (this.unitCents < 0)
+            throw new IllegalStateException(this.itemName + " is not priced");
+         return Money.line(this.unitCents, this.quantity, this.discountCents);
+      }
+   }//end Line
+
+   /**
+    * The outcome of a placed order.
+    */
+   public static class Receipt {
+      public final int orderId;
+      public final Timestamp placedAt;
+      // priced lines, in basket order
+      public final List<Line> lines;
+      // in cents
+      public final long total;
+
+      Receipt(int orderId, Timestamp placedAt, List<Line> lines, long total) {
+         this.orderId = orderId;
+         this.placedAt = placedAt;
+         this.lines = Collections.unmodifiableList(lines);
+         this.total = total;
+      }
+   }//end Receipt
+
+   private final Cafe esql;
+
+   public OrderPlacement(Cafe esql) {
+      this.esql = esql;
+   }//end OrderPlacement
+
+   /**
+    * @param items names of menu items
+    * @return one line per item, one unit each, without discount
+    */
+   public static List<Line> lines(List<String> items) {
+      List<Line> lines = new ArrayList<Line>(items.size());
+      for (String item : items)
+         lines.add(new Line(item, 1, 0));
+      return lines;
+   }//end lines
+
+   /**
+    * Places an order for login.
+    *
+    * @param login the customer placing the order
+    * @param lines the basket, each item on one line only
+    * @return the receipt of the committed order
+    * @throws java.sql.SQLException when the basket is empty, lists an item twice,
+    *         names an unknown item, has a quantity or discount out of range,
+    *         or the order could not be written
+    */
+   public Receipt place(String login, List<Line> lines) throws SQLException {
+      if (lines.isEmpty())
+         throw new SQLException("An order needs at least one item");
+      List<String> items = new ArrayList<String>(lines.size());
+      for (Line line : lines){
+         if (line.quantity < 1)
+            throw new SQLException("Quantity of " + line.itemName + " must be positive, got " + line.quantity);
+         items.add(line.itemName);
+      }//end for
+      Set<String> distinct = new HashSet<String>(items);
+      if (distinct.size() != items.size())
+         throw new SQLException("An item can only be listed once per order");
+
+      this.esql.beginTransaction();
+      try{
+         Map<String, Long> prices = price(items);
+
+         List<Line> priced = new ArrayList<Line>(lines.size());
+         long expected = 0;
+         for (Line line : lines){
+            Line p = new Line(line.itemName, line.quantity, line.discountCents, prices.get(line.itemName));
+            try{
+               expected += p.totalCents();
+            }catch (IllegalArgumentException e){
+               throw new SQLException(line.itemName + ": " + e.getMessage());
+            }//end try
+            priced.add(p);
+         }//end for
+
+         Timestamp now = new Timestamp(System.currentTimeMillis());
+         int orderId = this.esql.queryForInt(INSERT_ORDER, login, false, now, Money.toNumeric(0));
+
+         List<Object> names = new ArrayList<Object>(priced.size());
+         List<Object> quantities = new ArrayList<Object>(priced.size());
+         List<Object> discounts = new ArrayList<Object>(priced.size());
+         List<Object> units = new ArrayList<Object>(priced.size());
+         for (Line line : priced){
+            names.add(line.itemName);
+            quantities.add(line.quantity);
+            discounts.add(Money.toNumeric(line.discountCents).toPlainString());
+            units.add(Money.toNumeric(line.unitCents).toPlainString());
+         }//end for
+         // the last timestamp is the partition key, the order's own timeStampRecieved
+         int written = this.esql.executeUpdate(INSERT_ITEMS, orderId, now, now,
+            array(names), array(quantities), array(discounts), array(units));
+         if (written != priced.size())
+            throw new SQLException("Order " + orderId + " wrote " + written + " of " + priced.size() + " lines");
+
+         long total = this.esql.queryForLong(UPDATE_TOTAL, orderId, orderId);
+         if (total != expected)
+            throw new SQLException("Order " + orderId + " totals " + Money.format(total) +
+                                   " on the server but " + Money.format(expected) + " from its lines");
+         SalesRollup.orderAdded(this.esql, orderId);
+
+         this.esql.commit();
+         return new Receipt(orderId, now, priced, total);
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }catch (RuntimeException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+   }//end place
+
+   /**
+    * Sets the discount of one line of an unpaid order and sums its total
+    * again, in one transaction.
+    *
+    * @param orderId the order
+    * @param itemName the item of the line
+    * @param discountCents taken off the line, at most its undiscounted amount
+    * @return the new total of the order, in cents
+    * @throws java.sql.SQLException when the order is paid or has no such
+    *         line, the discount is out of range, or it could not be written
+    */
+   public long discount(int orderId, String itemName, long discountCents) throws SQLException {
+      if (discountCents < 0)
+         throw new SQLException("A discount cannot be negative, got " + Money.format(discountCents));
+      this.esql.beginTransaction();
+      try{
+         if (!lockUnpaid(orderId))
+            throw new SQLException("Order " + orderId + " does not exist or is paid");
+         SalesRollup.orderRemoved(this.esql, orderId);
+         int rows = this.esql.executeUpdate(SET_DISCOUNT, Money.toNumeric(discountCents), orderId, itemName);
+         if (rows == 0)
+            throw new SQLException("Order " + orderId + " has no item " + itemName);
+
+         long total = this.esql.queryForLong(UPDATE_TOTAL, orderId, orderId);
+         SalesRollup.orderAdded(this.esql, orderId);
+         this.esql.commit();
+         return total;
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }catch (RuntimeException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+   }//end discount
+
+   /**
+    * Deletes an unpaid order and its items, and takes it out of the sales
+    * rollups, in one transaction.
+    *
+    * @param orderId the order
+    * @return true if the order was deleted, false if it does not exist or is paid
+    * @throws java.sql.SQLException when the order could not be deleted
+    */
+   public boolean cancel(int orderId) throws SQLException {
+      this.esql.beginTransaction();
+      try{
+         if (!lockUnpaid(orderId)){
+            this.esql.rollback();
+            return false;
+         }//end if
+         SalesRollup.orderRemoved(this.esql, orderId);
+         this.esql.executeUpdate("DELETE FROM ItemStatus WHERE orderid = ?", orderId);
+         this.esql.executeUpdate("DELETE FROM ORDERS WHERE orderid = ?", orderId);
+         this.esql.commit();
+         return true;
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }catch (RuntimeException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+   }//end cancel
+
+   /*
+    * Locks the row of an unpaid order, so it cannot be paid, changed or
+    * cancelled by anyone else until the transaction ends.
+    *
+    * @return false if there is no such unpaid order
+    */
+   private boolean lockUnpaid(int orderId) throws SQLException {
+      return this.esql.query(LOCK_UNPAID, orderId).getRowCount() > 0;
+   }//end lockUnpaid
+
+   /*
+    * Looks up every item in one query and fails naming the items that are
+    * not on the menu.
+    *
+    * @return item name, as given, -> unit price in cents
+    */
+   private Map<String, Long> price(List<String> items) throws SQLException {
+      Map<String, Long> found = new HashMap<String, Long>();
+      QueryResult result = this.esql.query(PRICE_ITEMS, array(new ArrayList<Object>(items)));
+      for (int r = 0; r < result.getRowCount(); ++r)
+         found.put(result.get(r, 0).trim(), result.getLong(r, 1));
+
+      List<String> unknown = new ArrayList<String>();
+      Map<String, Long> prices = new HashMap<String, Long>();
+      for (String item : items){
+         Long price = found.get(item.trim());
+         if (price == null)
+            unknown.add(item);
+         else
+            prices.put(item, price);
+      }//end for
+      if (!unknown.isEmpty())
+         throw new SQLException("Unknown menu item(s): " + unknown);
+      return prices;
+   }//end price
+
+   /*
+    * Writes values as a PostgreSQL array literal, such as {"a","b"}, to be
+    * bound as one string and cast to an array type on the server. Every
+    * element is quoted, with backslash and double quote escaped.
+    */
+   static String array(List<Object> values) {
+      StringBuilder literal = new StringBuilder("{");
+      for (int i = 0; i < values.size(); ++i){
+         if (i > 0)
+            literal.append(',');
+         literal.append('"');
+         String value = String.valueOf(values.get(i));
+         for (int c = 0; c < value.length(); ++c){
+            char ch = value.charAt(c);
+            if (ch == '\\' || ch == '"')
+               literal.append('\\');
+            literal.append(ch);
+         }//end for
+         literal.append('"');
+      }//end for
+      return literal.append('}').toString();
+   }//end array
+
+}//end OrderPlacement
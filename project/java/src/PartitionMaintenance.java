@@ -0,0 +1,379 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the monthly partitions of Orders and ItemStatus (see
+ * create_tables.sql) in shape, so the tables queries run on stay small:
+ *
+ *   ensure   creates the partitions of this month and the next months
+ *            ahead, so no order arrives for a month without one;
+ *   archive  writes every month that ended more than keep months ago to
+ *            two gzip compressed files, one per table, and drops the
+ *            partitions of that month.
+ *
+ * An archive file, <partition>.copy.gz, holds the rows of one partition in
+ * the COPY text format of project/data, ';' delimited with backslash
+ * escapes, with the columns of ORDER_COLUMNS or ITEM_COLUMNS, so COPY ...
+ * FROM ... WITH DELIMITER ';' can load it back once the partitions of its
+ * month exist again. It is not CSV; FORMAT csv would misread it. The rows
+ * are read in keyset batches inside one REPEATABLE READ transaction, so a
+ * file is one snapshot of its partition, and a file is written under a
+ * temporary name and renamed once complete.
+ *
+ * The partitions are then detached and dropped in one transaction, which
+ * locks Orders and ItemStatus against writes and compares a checksum of
+ * the partitions with the one of the snapshot. A month changed meanwhile
+ * (an old order marked paid) is left in place and archived again on the
+ * next run, so no change is lost.
+ *
+ * The sales rollups are left alone, so reports keep covering archived
+ * months. Run it daily, e.g. from cron through scripts/partitions.sh.
+ *
+ */
+public class PartitionMaintenance {
+
+   public static final String ORDER_COLUMNS = "orderid, login, paid, timeStampRecieved, total";
+   public static final String ITEM_COLUMNS =
+      "orderid, itemName, lastUpdated, status, comments, quantity, discount, unitPrice, orderTime";
+   // rows read per batch
+   static final int BATCH = 10000;
+
+   // partitions of a table with their bounds
+   private static final String PARTITIONS_SQL =
+      "SELECT CAST(CAST(i.inhrelid AS regclass) AS text), pg_get_expr(c.relpartbound, c.oid) " +
+      "FROM pg_inherits i, pg_class c WHERE i.inhparent = CAST(? AS regclass) AND c.oid = i.inhrelid";
+   private static final Pattern BOUNDS =
+      Pattern.compile("FROM \\((?:'([^']*)'|MINVALUE)\\) TO \\((?:'([^']*)'|MAXVALUE)\\)");
+   // row count and a sum of row hashes of a partition, %s
+   private static final String CHECKSUM_SQL =
+      "SELECT count(*) || ':' || COALESCE(SUM(CAST(hashtext(CAST(t AS text)) AS bigint)), 0) FROM %s t";
+   // a batch of rows of a partition, %s, after the key bound to ?
+   private static final String ORDERS_PAGE =
+      "SELECT " + ORDER_COLUMNS + " FROM %s WHERE orderid > CAST(? AS integer) ORDER BY orderid LIMIT " + BATCH;
+   private static final String ITEMS_PAGE =
+      "SELECT " + ITEM_COLUMNS + " FROM %s " +
+      "WHERE (orderid, orderTime, itemName) > (CAST(? AS integer), CAST(? AS timestamp), ?) " +
+      "ORDER BY orderid, orderTime, itemName LIMIT " + BATCH;
+   // the columns of a row bound to the placeholders of a page, and the
+   // values before the first row
+   private static final int[] ORDERS_KEY = { 0 };
+   private static final String[] ORDERS_START = { Integer.toString(Integer.MIN_VALUE) };
+   private static final int[] ITEMS_KEY = { 0, 8, 1 };
+   private static final String[] ITEMS_START = { Integer.toString(Integer.MIN_VALUE), "-infinity", "" };
+
+   private static final RowMapper<String[]> STRINGS = new RowMapper<String[]>() {
+      public String[] map(ResultSet rs) throws SQLException {
+         String[] row = new String[rs.getMetaData().getColumnCount()];
+         for (int i = 0; i < row.length; ++i)
+            row[i] = rs.getString(i + 1);
+         return row;
+      }
+   };
+
+   /**
+    * One month: the partition of Orders and the one of ItemStatus with the
+    * same bounds.
+    */
+   public static class Month {
+      public final String orders;
+      public final String items;
+      // null for MINVALUE and MAXVALUE
+      public final Timestamp from;
+      public final Timestamp to;
+
+      Month(String orders, String items, Timestamp from, Timestamp to) {
+         this.orders = orders;
+         this.items = items;
+         this.from = from;
+         this.to = to;
+      }
+   }//end Month
+
+   private final Cafe esql;
+   private final File archiveDir;
+
+   /**
+    * @param esql the database
+    * @param archiveDir where archive files are written
+    */
+   public PartitionMaintenance(Cafe esql, File archiveDir) {
+      this.esql = esql;
+      this.archiveDir = archiveDir;
+   }//end PartitionMaintenance
+
+   /**
+    * Creates the missing partitions from this month to ahead months after it.
+    *
+    * @param ahead months after this one
+    * @return the number of months created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int ensure(int ahead) throws SQLException {
+      if (ahead < 0)
+         throw new IllegalArgumentException("months ahead cannot be negative, got " + ahead);
+      return this.esql.queryForInt(
+         "SELECT create_month_partitions(now(), date_trunc('month', now()) + CAST(? AS interval))",
+         (ahead + 1) + " months");
+   }//end ensure
+
+   /**
+    * @return every month of Orders, oldest first
+    * @throws java.sql.SQLException when the catalog could not be read, or a
+    *         partition of Orders has no ItemStatus partition of the same bounds
+    */
+   public List<Month> months() throws SQLException {
+      Map<String, String> items = new HashMap<String, String>();
+      for (String[] p : this.esql.queryForList(PARTITIONS_SQL, STRINGS, "itemstatus"))
+         items.put(p[1], p[0]);
+
+      List<Month> months = new ArrayList<Month>();
+      for (String[] p : this.esql.queryForList(PARTITIONS_SQL, STRINGS, "orders")){
+         Matcher b = BOUNDS.matcher(p[1]);
+         if (!b.find())
+            throw new SQLException("Partition " + p[0] + " is not a range: " + p[1]);
+         if (items.get(p[1]) == null)
+            throw new SQLException("Partition " + p[0] + " has no ItemStatus partition " + p[1]);
+         months.add(new Month(p[0], items.get(p[1]),
+            b.group(1) == null ? null : Timestamp.valueOf(b.group(1)),
+            b.group(2) == null ? null : Timestamp.valueOf(b.group(2))));
+      }//end for
+      Collections.sort(months, new Comparator<Month>() {
+         public int compare(Month a, Month b) {
+            if (a.from == null || b.from == null)
+               return a.from == b.from ? 0 : a.from == null ? -1 : 1;
+            return a.from.compareTo(b.from);
+         }
+      });
+      return months;
+   }//end months
+
+   /**
+    * Archives and drops every month that ended keep months before the
+    * start of this one.
+    *
+    * @param keep months kept before this one, at least 1
+    * @return the number of months archived
+    * @throws java.sql.SQLException when a month could not be read or dropped
+    * @throws java.io.IOException when an archive file could not be written
+    */
+   public int archive(int keep) throws SQLException, IOException {
+      if (keep < 1)
+         throw new IllegalArgumentException("at least one month must be kept, got " + keep);
+      Timestamp cutoff = this.esql.queryForTimestamp(
+         "SELECT date_trunc('month', now()) - CAST(? AS interval)", keep + " months");
+      int archived = 0;
+      for (Month month : months()){
+         if (month.to == null || month.to.after(cutoff))
+            continue;
+         if (archive(month))
+            ++archived;
+      }//end for
+      return archived;
+   }//end archive
+
+   /**
+    * Writes one month to its archive files and drops its partitions.
+    *
+    * @return true when it was dropped, false when it changed while it was
+    *         written and is left for the next run
+    * @throws java.sql.SQLException when the month could not be read or dropped
+    * @throws java.io.IOException when an archive file could not be written
+    */
+   public boolean archive(Month month) throws SQLException, IOException {
+      long start = System.nanoTime();
+      String ordersSum;
+      String itemsSum;
+      long orders;
+      long items;
+      this.esql.beginTransaction();
+      try{
+         this.esql.executeStatement("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         ordersSum = this.esql.queryForString(String.format(CHECKSUM_SQL, month.orders));
+         itemsSum = this.esql.queryForString(String.format(CHECKSUM_SQL, month.items));
+         orders = export(month.orders, ORDERS_PAGE, ORDERS_KEY, ORDERS_START);
+         items = export(month.items, ITEMS_PAGE, ITEMS_KEY, ITEMS_START);
+         this.esql.commit();
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }catch (IOException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+
+      this.esql.beginTransaction();
+      try{
+         // give up rather than queue every query behind a long wait
+         this.esql.executeStatement("SET LOCAL lock_timeout = '10s'");
+         // the parents first, in the order every query locks them
+         this.esql.executeStatement("LOCK TABLE Orders, ItemStatus IN SHARE MODE");
+         if (!ordersSum.equals(this.esql.queryForString(String.format(CHECKSUM_SQL, month.orders)))
+             || !itemsSum.equals(this.esql.queryForString(String.format(CHECKSUM_SQL, month.items)))){
+            this.esql.rollback();
+            System.out.println(month.orders + ": changed while archived, left for the next run");
+            return false;
+         }//end if
+         // the items first, as they reference the orders
+         this.esql.executeStatement("ALTER TABLE ItemStatus DETACH PARTITION " + month.items);
+         this.esql.executeStatement("DROP TABLE " + month.items);
+         this.esql.executeStatement("ALTER TABLE Orders DETACH PARTITION " + month.orders);
+         this.esql.executeStatement("DROP TABLE " + month.orders);
+         this.esql.commit();
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+      System.out.println(String.format(Locale.ROOT, "%s: %d orders and %d items archived in %.1fs",
+         month.orders, orders, items, (System.nanoTime() - start) / 1e9));
+      return true;
+   }//end archive
+
+   /*
+    * Writes every row of partition to <partition>.copy.gz in the archive
+    * directory, page by page: each page reads the rows after the key
+    * columns of the last row of the one before, start for the first.
+    *
+    * @return the number of rows written
+    */
+   private long export(String partition, String page, int[] keys, String[] start)
+      throws SQLException, IOException {
+      File file = new File(this.archiveDir, partition + ".copy.gz");
+      File tmp = new File(this.archiveDir, partition + ".copy.gz.tmp");
+      if (!this.archiveDir.isDirectory() && !this.archiveDir.mkdirs())
+         throw new IOException("Cannot create " + this.archiveDir);
+
+      String sql = String.format(page, partition);
+      Object[] after = start.clone();
+      long rows = 0;
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+         new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16), "UTF-8"));
+      try{
+         List<String[]> batch;
+         do{
+            batch = this.esql.queryForList(sql, STRINGS, after);
+            for (String[] row : batch){
+               for (int c = 0; c < row.length; ++c){
+                  if (c > 0)
+                     out.write(';');
+                  out.write(escape(row[c]));
+               }//end for
+               out.write('\n');
+            }//end for
+            if (!batch.isEmpty()){
+               String[] last = batch.get(batch.size() - 1);
+               for (int k = 0; k < keys.length; ++k)
+                  after[k] = last[keys[k]];
+            }//end if
+            rows += batch.size();
+         }while (batch.size() == BATCH);
+      }finally{
+         out.close();
+      }//end try
+      if (file.exists() && !file.delete())
+         throw new IOException("Cannot replace " + file);
+      if (!tmp.renameTo(file))
+         throw new IOException("Cannot rename " + tmp + " to " + file);
+      return rows;
+   }//end export
+
+   /**
+    * Writes one field in the COPY text format, the reverse of
+    * BulkLoader.split.
+    *
+    * @return the field, \N for null
+    */
+   static String escape(String value) {
+      if (value == null)
+         return "\\N";
+      StringBuilder sb = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); ++i){
+         char c = value.charAt(i);
+         switch (c){
+            case '\\': sb.append("\\\\"); break;
+            case ';': sb.append("\\;"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default: sb.append(c); break;
+         }//end switch
+      }//end for
+      return sb.toString();
+   }//end escape
+
+   /**
+    * Prints every partition of Orders and ItemStatus with its bounds, its
+    * estimated rows and its size.
+    *
+    * @param esql the database
+    * @throws java.sql.SQLException when the catalog could not be read
+    */
+   public static void printPartitions(Cafe esql) throws SQLException {
+      esql.executeQueryAndPrintResult(
+         "SELECT c.relname AS partition, pg_get_expr(c.relpartbound, c.oid) AS bounds, " +
+         "CAST(c.reltuples AS bigint) AS rows, pg_size_pretty(pg_total_relation_size(c.oid)) AS size " +
+         "FROM pg_inherits i, pg_class c WHERE c.oid = i.inhrelid " +
+         "AND i.inhparent IN (CAST('orders' AS regclass), CAST('itemstatus' AS regclass)) ORDER BY c.relname");
+   }//end printPartitions
+
+   /**
+    * Creates the coming partitions and archives the old ones:
+    *
+    *   java PartitionMaintenance <dbname> <port> <user> [key=value ...]
+    *
+    * with ahead=<months> (3), keep=<months> (12, 0 to archive nothing) and
+    * dir=<archive directory> (archive).
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PartitionMaintenance.class.getName () +
+            " <dbname> <port> <user> [key=value ...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("ahead", "3");
+      opts.put("keep", "12");
+      opts.put("dir", "archive");
+      for (int i = 3; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq < 0 || !opts.containsKey(args[i].substring(0, eq)))
+            throw new IllegalArgumentException("unknown setting " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+      System.setProperty("cafe.notify.enabled", "false");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         PartitionMaintenance maintenance = new PartitionMaintenance(esql, new File(opts.get("dir")));
+         System.out.println(maintenance.ensure(Integer.parseInt(opts.get("ahead"))) + " month(s) created");
+         int keep = Integer.parseInt(opts.get("keep"));
+         if (keep > 0)
+            System.out.println(maintenance.archive(keep) + " month(s) archived to " + opts.get("dir"));
+         printPartitions(esql);
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end PartitionMaintenance
@@ -0,0 +1,77 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A physical database connection owned by a ConnectionPool. The pool hands
+ * these out from borrow() and takes them back with release(); callers only
+ * ever touch the wrapped JDBC connection.
+ *
+ */
+public class PooledConnection {
+
+   // reference to the physical database connection.
+   private final Connection _connection;
+
+   // prepared statements owned by this connection.
+   private final StatementCache statements;
+
+   // time (millis) at which the connection was last handed back to the pool.
+   private volatile long lastReleased;
+
+   // set when the connection failed and must not be reused.
+   private boolean broken = false;
+
+   PooledConnection(Connection connection) {
+      this._connection = connection;
+      this.statements = new StatementCache(connection,
+         Integer.getInteger("cafe.stmtcache.size", 64),
+         Integer.getInteger("cafe.stmtcache.prepareThreshold", 5));
+      this.lastReleased = System.currentTimeMillis();
+   }//end PooledConnection
+
+   /**
+    * @return the physical JDBC connection
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * @return the prepared-statement cache of this connection
+    */
+   public StatementCache getStatements() {
+      return this.statements;
+   }//end getStatements
+
+   /**
+    * Marks the connection as unusable so the pool discards it on release.
+    */
+   public void markBroken() {
+      this.broken = true;
+   }//end markBroken
+
+   boolean isBroken() {
+      return this.broken;
+   }
+
+   long getLastReleased() {
+      return this.lastReleased;
+   }
+
+   void touch() {
+      this.lastReleased = System.currentTimeMillis();
+   }
+
+   /**
+    * Closes the physical connection, ignoring errors.
+    */
+   void close() {
+      this.statements.closeAll();
+      try{
+         this._connection.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end PooledConnection
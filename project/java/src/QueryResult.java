@@ -0,0 +1,336 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The fully materialized result of a query, stored column by column.
+ *
+ * Integer, real, double and boolean columns are kept in primitive arrays
+ * and read back through the typed getters without boxing or string
+ * parsing; timestamps and text are kept as objects. A result can be
+ * inspected, counted and printed any number of times without going back to
+ * the database.
+ *
+ */
+public class QueryResult {
+
+   // storage kinds of a column
+   private static final int INT = 0;
+   private static final int LONG = 1;
+   private static final int FLOAT = 2;
+   private static final int DOUBLE = 3;
+   private static final int BOOLEAN = 4;
+   private static final int TIMESTAMP = 5;
+   private static final int TEXT = 6;
+
+   private final String[] columns;
+   private final int[] kinds;
+   // one int[], long[], float[], double[], boolean[], Timestamp[] or String[] per column
+   private final Object[] data;
+   private final BitSet[] nulls;
+   private int rowCount = 0;
+   private int capacity;
+
+   private QueryResult(String[] columns, int[] kinds, int capacity) {
+      this.columns = columns;
+      this.kinds = kinds;
+      this.capacity = capacity;
+      this.data = new Object[columns.length];
+      this.nulls = new BitSet[columns.length];
+      for (int c = 0; c < columns.length; ++c){
+         this.data[c] = allocate(kinds[c], capacity);
+         this.nulls[c] = new BitSet();
+      }//end for
+   }//end QueryResult
+
+   /**
+    * Reads every remaining row of rs into a new result.
+    *
+    * @param rs an open result set positioned before its first row
+    * @return the materialized result
+    * @throws java.sql.SQLException when reading the result failed
+    */
+   static QueryResult read(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      String[] columns = new String[numCol];
+      int[] kinds = new int[numCol];
+      for (int i=1; i<=numCol; ++i){
+         columns[i-1] = rsmd.getColumnName(i);
+         kinds[i-1] = kindOf(rsmd.getColumnType(i));
+      }//end for
+
+      QueryResult result = new QueryResult(columns, kinds, 16);
+      while (rs.next())
+         result.append(rs);
+      return result;
+   }//end read
+
+   private void append(ResultSet rs) throws SQLException {
+      if (this.rowCount == this.capacity)
+         grow();
+      int r = this.rowCount++;
+      for (int c = 0; c < this.columns.length; ++c){
+         int i = c + 1;
+         switch (this.kinds[c]){
+            case INT: ((int[]) this.data[c])[r] = rs.getInt(i); break;
+            case LONG: ((long[]) this.data[c])[r] = rs.getLong(i); break;
+            case FLOAT: ((float[]) this.data[c])[r] = rs.getFloat(i); break;
+            case DOUBLE: ((double[]) this.data[c])[r] = rs.getDouble(i); break;
+            case BOOLEAN: ((boolean[]) this.data[c])[r] = rs.getBoolean(i); break;
+            case TIMESTAMP: ((Timestamp[]) this.data[c])[r] = rs.getTimestamp(i); break;
+            default: ((String[]) this.data[c])[r] = rs.getString(i); break;
+         }//end switch
+         if (rs.wasNull())
+            this.nulls[c].set(r);
+      }//end for
+   }//end append
+
+   private void grow() {
+      this.capacity *= 2;
+      for (int c = 0; c < this.columns.length; ++c){
+         Object a = this.data[c];
+         switch (this.kinds[c]){
+            case INT: this.data[c] = Arrays.copyOf((int[]) a, this.capacity); break;
+            case LONG: this.data[c] = Arrays.copyOf((long[]) a, this.capacity); break;
+            case FLOAT: this.data[c] = Arrays.copyOf((float[]) a, this.capacity); break;
+            case DOUBLE: this.data[c] = Arrays.copyOf((double[]) a, this.capacity); break;
+            case BOOLEAN: this.data[c] = Arrays.copyOf((boolean[]) a, this.capacity); break;
+            case TIMESTAMP: this.data[c] = Arrays.copyOf((Timestamp[]) a, this.capacity); break;
+            default: this.data[c] = Arrays.copyOf((String[]) a, this.capacity); break;
+         }//end switch
+      }//end for
+   }//end grow
+
+   private static Object allocate(int kind, int n) {
+      switch (kind){
+         case INT: return new int[n];
+         case LONG: return new long[n];
+         case FLOAT: return new float[n];
+         case DOUBLE: return new double[n];
+         case BOOLEAN: return new boolean[n];
+         case TIMESTAMP: return new Timestamp[n];
+         default: return new String[n];
+      }//end switch
+   }//end allocate
+
+   private static int kindOf(int sqlType) {
+      switch (sqlType){
+         case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+            return INT;
+         case Types.BIGINT:
+            return LONG;
+         case Types.REAL:
+            return FLOAT;
+         case Types.FLOAT: case Types.DOUBLE:
+            return DOUBLE;
+         case Types.BIT: case Types.BOOLEAN:
+            return BOOLEAN;
+         case Types.DATE: case Types.TIME: case Types.TIMESTAMP:
+            return TIMESTAMP;
+         default:
+            // numeric stays text so no precision is lost
+            return TEXT;
+      }//end switch
+   }//end kindOf
+
+   /**
+    * @return the number of rows returned by the query
+    */
+   public int getRowCount() {
+      return this.rowCount;
+   }
+
+   public boolean isEmpty() {
+      return this.rowCount == 0;
+   }
+
+   public int getColumnCount() {
+      return this.columns.length;
+   }
+
+   /**
+    * @param col zero-based column index
+    * @return the column label as reported by the driver
+    */
+   public String getColumnName(int col) {
+      return this.columns[col];
+   }
+
+   /**
+    * @param col the column label, case insensitive
+    * @return its zero-based index
+    * @throws IllegalArgumentException when there is no such column
+    */
+   public int findColumn(String col) {
+      for (int c = 0; c < this.columns.length; ++c)
+         if (this.columns[c].equalsIgnoreCase(col))
+            return c;
+      throw new IllegalArgumentException("no column " + col);
+   }//end findColumn
+
+   public boolean isNull(int row, int col) {
+      check(row);
+      return this.nulls[col].get(row);
+   }
+
+   /**
+    * @return the value of an integer column, 0 for SQL NULL; a boolean
+    *         column reads as 1 for true and 0 for false, as in the driver
+    * @throws java.sql.SQLException when the value is not a number
+    */
+   public int getInt(int row, int col) throws SQLException {
+      check(row);
+      switch (this.kinds[col]){
+         case INT: return ((int[]) this.data[col])[row];
+         case LONG: return (int) ((long[]) this.data[col])[row];
+         case FLOAT: return (int) ((float[]) this.data[col])[row];
+         case DOUBLE: return (int) ((double[]) this.data[col])[row];
+         case BOOLEAN: return ((boolean[]) this.data[col])[row] ? 1 : 0;
+         default:
+            if (isNull(row, col))
+               return 0;
+            try{
+               return Integer.parseInt(get(row, col).trim());
+            }catch (NumberFormatException e){
+               throw notNumber(row, col);
+            }//end try
+      }//end switch
+   }//end getInt
+
+   /**
+    * @return the value of an integer column, 0 for SQL NULL; a boolean
+    *         column reads as 1 for true and 0 for false, as in the driver
+    * @throws java.sql.SQLException when the value is not a number
+    */
+   public long getLong(int row, int col) throws SQLException {
+      check(row);
+      switch (this.kinds[col]){
+         case INT: return ((int[]) this.data[col])[row];
+         case LONG: return ((long[]) this.data[col])[row];
+         case FLOAT: return (long) ((float[]) this.data[col])[row];
+         case DOUBLE: return (long) ((double[]) this.data[col])[row];
+         case BOOLEAN: return ((boolean[]) this.data[col])[row] ? 1L : 0L;
+         default:
+            if (isNull(row, col))
+               return 0L;
+            try{
+               return Long.parseLong(get(row, col).trim());
+            }catch (NumberFormatException e){
+               throw notNumber(row, col);
+            }//end try
+      }//end switch
+   }//end getLong
+
+   /**
+    * @return the value of a numeric column, 0 for SQL NULL; a boolean
+    *         column reads as 1 for true and 0 for false, as in the driver
+    * @throws java.sql.SQLException when the value is not a number
+    */
+   public double getDouble(int row, int col) throws SQLException {
+      check(row);
+      switch (this.kinds[col]){
+         case INT: return ((int[]) this.data[col])[row];
+         case LONG: return ((long[]) this.data[col])[row];
+         case FLOAT: return ((float[]) this.data[col])[row];
+         case DOUBLE: return ((double[]) this.data[col])[row];
+         case BOOLEAN: return ((boolean[]) this.data[col])[row] ? 1.0 : 0.0;
+         default:
+            if (isNull(row, col))
+               return 0.0;
+            try{
+               return Double.parseDouble(get(row, col).trim());
+            }catch (NumberFormatException e){
+               throw notNumber(row, col);
+            }//end try
+      }//end switch
+   }//end getDouble
+
+   /**
+    * @return the value of a numeric column, 0 for SQL NULL
+    * @throws java.sql.SQLException when the value is not a number
+    */
+   public float getFloat(int row, int col) throws SQLException {
+      check(row);
+      if (this.kinds[col] == FLOAT)
+         return ((float[]) this.data[col])[row];
+      return (float) getDouble(row, col);
+   }
+
+   private SQLException notNumber(int row, int col) {
+      return new SQLException("Bad number " + get(row, col) + " in column " + this.columns[col] +
+                              " of row " + row);
+   }//end notNumber
+
+   /**
+    * @return the value of a boolean column, false for SQL NULL
+    */
+   public boolean getBoolean(int row, int col) {
+      check(row);
+      if (this.kinds[col] == BOOLEAN)
+         return ((boolean[]) this.data[col])[row];
+      String v = get(row, col);
+      return v != null && (v.startsWith("t") || v.startsWith("T") || v.equals("1"));
+   }//end getBoolean
+
+   /**
+    * @return the value of a date/time column, or null
+    */
+   public Timestamp getTimestamp(int row, int col) {
+      check(row);
+      if (this.kinds[col] == TIMESTAMP)
+         return ((Timestamp[]) this.data[col])[row];
+      String v = get(row, col);
+      return v == null ? null : Timestamp.valueOf(v.trim());
+   }//end getTimestamp
+
+   /**
+    * @param row zero-based row index
+    * @param col zero-based column index
+    * @return the value as a string, or null for SQL NULL
+    */
+   public String get(int row, int col) {
+      check(row);
+      if (this.nulls[col].get(row))
+         return null;
+      switch (this.kinds[col]){
+         case INT: return Integer.toString(((int[]) this.data[col])[row]);
+         case LONG: return Long.toString(((long[]) this.data[col])[row]);
+         case FLOAT: return Float.toString(((float[]) this.data[col])[row]);
+         case DOUBLE: return Double.toString(((double[]) this.data[col])[row]);
+         case BOOLEAN: return ((boolean[]) this.data[col])[row] ? "t" : "f";
+         case TIMESTAMP: return ((Timestamp[]) this.data[col])[row].toString();
+         default: return ((String[]) this.data[col])[row];
+      }//end switch
+   }//end get
+
+   private void check(int row) {
+      if (row < 0 || row >= this.rowCount)
+         throw new IndexOutOfBoundsException("row " + row + " of " + this.rowCount);
+   }
+
+   /**
+    * Outputs the result to standard out in the same layout as
+    * Cafe.executeQueryAndPrintResult: a header line and one line per row,
+    * nothing at all for an empty result.
+    *
+    * @return the number of rows printed
+    */
+   public int print() {
+      List<String[]> rows = new ArrayList<String[]>(this.rowCount);
+      for (int r = 0; r < this.rowCount; ++r){
+         String[] row = new String[this.columns.length];
+         for (int c = 0; c < this.columns.length; ++c)
+            row[c] = get(r, c);
+         rows.add(row);
+      }//end for
+      return Cafe.printer.print(this.columns, rows);
+   }//end print
+
+}//end QueryResult
@@ -0,0 +1,172 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Renders query results as aligned text columns through one reusable
+ * buffered writer.
+ *
+ * print(ResultSet) streams: column widths come from the result metadata,
+ * each row is written as it is fetched and the output is flushed once at the
+ * end, so a report of any length runs in constant memory. Materialized rows
+ * are sized from their actual values instead. Values wider than their column
+ * are written in full rather than cut.
+ *
+ */
+public class ResultPrinter {
+
+   // widest column, in characters, before values start to overflow.
+   static final int MAX_WIDTH = 40;
+   private static final String SEPARATOR = "  ";
+
+   private static final String NEWLINE = System.getProperty("line.separator");
+
+   private final OutputStream stream;
+   private final PrintWriter out;
+   private final StringBuilder line = new StringBuilder(256);
+
+   public ResultPrinter(OutputStream stream) {
+      this.stream = stream;
+      this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream), 8192));
+   }//end ResultPrinter
+
+   /**
+    * Streams every remaining row of rs, preceded by a header line. Prints
+    * nothing for an empty result.
+    *
+    * @param rs an open result set positioned before its first row
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result failed
+    */
+   public synchronized int print(ResultSet rs) throws SQLException {
+      return print(rs, true);
+   }//end print
+
+   /**
+    * Streams every remaining row of rs, e.g. one batch fetched from a
+    * cursor; the header line only when asked for.
+    *
+    * @param rs an open result set positioned before its first row
+    * @param header true to write the header line before the first row
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result failed
+    */
+   public synchronized int print(ResultSet rs, boolean header) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] labels = new String[numCol];
+      int[] widths = new int[numCol];
+      for (int i = 1; i <= numCol; ++i){
+         labels[i-1] = rsmd.getColumnName(i);
+         int size = rsmd.getColumnDisplaySize(i);
+         widths[i-1] = Math.min(MAX_WIDTH, Math.max(labels[i-1].length(), size > 0 ? size : MAX_WIDTH));
+      }//end for
+
+      String[] values = new String[numCol];
+      int rowCount = 0;
+      try{
+         while (rs.next()){
+            if (rowCount == 0 && header)
+               writeRow(labels, widths);
+            for (int i = 1; i <= numCol; ++i)
+               values[i-1] = rs.getString(i);
+            writeRow(values, widths);
+            ++rowCount;
+         }//end while
+      }finally{
+         this.out.flush();
+      }//end try
+      return rowCount;
+   }//end print
+
+   /**
+    * Prints materialized rows, sizing each column to its widest value.
+    *
+    * @param header the column labels
+    * @param rows the rows, one value per column
+    * @return the number of rows printed
+    */
+   public synchronized int print(String[] header, List<String[]> rows) {
+      this.line.setLength(0);
+      format(header, rows, this.line);
+      this.out.print(this.line);
+      this.out.flush();
+      return rows.size();
+   }//end print
+
+   /**
+    * Renders rows exactly as print(header, rows) would output them, e.g. to
+    * cache the text of a result that rarely changes.
+    *
+    * @param header the column labels
+    * @param rows the rows, one value per column
+    * @param sb receives the text, nothing for no rows
+    */
+   public static void format(String[] header, List<String[]> rows, StringBuilder sb) {
+      if (rows.isEmpty())
+         return;
+      int[] widths = new int[header.length];
+      for (int i = 0; i < header.length; ++i)
+         widths[i] = header[i].length();
+      for (String[] row : rows)
+         for (int i = 0; i < row.length; ++i)
+            widths[i] = Math.max(widths[i], Math.min(MAX_WIDTH, length(row[i])));
+
+      appendRow(header, widths, sb);
+      for (String[] row : rows)
+         appendRow(row, widths, sb);
+   }//end format
+
+   /**
+    * Writes text rendered beforehand, as is, after anything printed so far.
+    *
+    * @param rendered the encoded text
+    */
+   public synchronized void write(byte[] rendered) {
+      this.out.flush();
+      try{
+         this.stream.write(rendered);
+         this.stream.flush();
+      }catch (IOException e){
+         // like the PrintWriter, output errors are not reported.
+      }//end try
+   }//end write
+
+   private void writeRow(String[] values, int[] widths) {
+      this.line.setLength(0);
+      appendRow(values, widths, this.line);
+      this.out.print(this.line);
+   }//end writeRow
+
+   private static void appendRow(String[] values, int[] widths, StringBuilder sb) {
+      for (int i = 0; i < values.length; ++i){
+         String v = values[i] == null ? "null" : trimRight(values[i]);
+         sb.append(v);
+         if (i < values.length - 1){
+            for (int pad = v.length(); pad < widths[i]; ++pad)
+               sb.append(' ');
+            sb.append(SEPARATOR);
+         }//end if
+      }//end for
+      sb.append(NEWLINE);
+   }//end appendRow
+
+   private static int length(String v) {
+      return v == null ? 4 : trimRight(v).length();
+   }
+
+   // char(n) values arrive blank padded; the padding is not data.
+   private static String trimRight(String v) {
+      int end = v.length();
+      while (end > 0 && v.charAt(end - 1) == ' ')
+         --end;
+      return end == v.length() ? v : v.substring(0, end);
+   }//end trimRight
+
+}//end ResultPrinter
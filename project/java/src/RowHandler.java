@@ -0,0 +1,20 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the rows of a query one at a time, see
+ * Cafe.executeQueryAndHandleResult.
+ *
+ */
+public interface RowHandler {
+
+   /**
+    * Called once per row, with rs positioned on that row. The row is only
+    * valid for the duration of the call.
+    *
+    * @param rs the result set positioned on the current row
+    * @throws java.sql.SQLException to abort the query
+    */
+   void row(ResultSet rs) throws SQLException;
+
+}//end RowHandler
@@ -0,0 +1,18 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a result set into an object, see
+ * Cafe.queryForObject and Cafe.queryForList.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * @param rs the result set positioned on the row to map
+    * @return the mapped row
+    * @throws java.sql.SQLException when reading the row failed
+    */
+   T map(ResultSet rs) throws SQLException;
+
+}//end RowMapper
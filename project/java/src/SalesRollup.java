@@ -0,0 +1,286 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sales reporting from two rollup tables, so a report reads a few rows per
+ * hour or day of its range instead of every order in it:
+ *
+ *   SalesHourly     orders, revenue, paid orders and paid revenue per hour
+ *                   the orders were placed in
+ *   SalesItemDaily  units sold and revenue per menu item per day
+ *
+ * The rollups are kept up to date inside the transactions that change
+ * orders: placing one (OrderPlacement.place), discounting a line
+ * (OrderPlacement.discount), cancelling one (OrderPlacement.cancel) and
+ * marking one paid (Cafe.markOrderPaid). Each calls orderAdded(),
+ * orderRemoved() or orderPaid() after it has locked the order row, so the
+ * rollup rows are always locked after the order and, within an order, the
+ * hour before the items. The calls run as late in their transaction as
+ * they can, since every order of an hour waits on that hour's row.
+ *
+ * Orders written around Cafe (psql, load_data.sql, the benchmark seeder)
+ * are not counted until rebuild() or rebuildAll() recomputes the range
+ * from Orders and ItemStatus. Rollup rows outlive the orders they count:
+ * the months PartitionMaintenance archives keep their sales figures.
+ *
+ */
+public class SalesRollup {
+
+   public static final int DEFAULT_DAYS = 30;
+   public static final int DEFAULT_ITEMS = 20;
+
+   // adds an order to its hour: ? orders (1 or -1), ? paid orders (1 or -1,
+   // counted only when the order is paid), orderid
+   private static final String ADD_HOUR =
+      "INSERT INTO SalesHourly AS h (hour, orders, revenue, paidOrders, paidRevenue) " +
+      "SELECT date_trunc('hour', o.timeStampRecieved), d.orders, d.orders * o.total, " +
+      "CASE WHEN o.paid THEN d.paid ELSE 0 END, CASE WHEN o.paid THEN d.paid * o.total ELSE 0 END " +
+      "FROM ORDERS o, (SELECT CAST(? AS integer) AS orders, CAST(? AS integer) AS paid) d WHERE o.orderid = ? " +
+      "ON CONFLICT (hour) DO UPDATE SET orders = h.orders + EXCLUDED.orders, " +
+      "revenue = h.revenue + EXCLUDED.revenue, paidOrders = h.paidOrders + EXCLUDED.paidOrders, " +
+      "paidRevenue = h.paidRevenue + EXCLUDED.paidRevenue;";
+   // adds the items of an order to their day: ? sign (1 or -1), orderid
+   private static final String ADD_ITEMS =
+      "INSERT INTO SalesItemDaily AS d (day, itemName, units, revenue) " +
+      "SELECT CAST(o.timeStampRecieved AS date), s.itemName, g.sign * s.quantity, " +
+      "g.sign * (s.unitPrice * s.quantity - s.discount) " +
+      "FROM ORDERS o, ItemStatus s, (SELECT CAST(? AS integer) AS sign) g " +
+      "WHERE o.orderid = ? AND s.orderid = o.orderid AND s.orderTime = o.timeStampRecieved ORDER BY s.itemName " +
+      "ON CONFLICT (day, itemName) DO UPDATE SET units = d.units + EXCLUDED.units, " +
+      "revenue = d.revenue + EXCLUDED.revenue;";
+
+   // recompute [from, to) from the orders placed in it
+   private static final String REBUILD_HOURS =
+      "INSERT INTO SalesHourly (hour, orders, revenue, paidOrders, paidRevenue) " +
+      "SELECT date_trunc('hour', o.timeStampRecieved), count(*), SUM(o.total), " +
+      "SUM(CASE WHEN o.paid THEN 1 ELSE 0 END), SUM(CASE WHEN o.paid THEN o.total ELSE 0 END) " +
+      "FROM ORDERS o WHERE o.timeStampRecieved >= ? AND o.timeStampRecieved < ? GROUP BY 1";
+   private static final String REBUILD_ITEMS =
+      "INSERT INTO SalesItemDaily (day, itemName, units, revenue) " +
+      "SELECT CAST(o.timeStampRecieved AS date), s.itemName, SUM(s.quantity), " +
+      "SUM(s.unitPrice * s.quantity - s.discount) " +
+      "FROM ORDERS o, ItemStatus s WHERE o.timeStampRecieved >= ? AND o.timeStampRecieved < ? " +
+      "AND s.orderid = o.orderid AND s.orderTime = o.timeStampRecieved GROUP BY 1, 2";
+
+   private final Cafe esql;
+
+   public SalesRollup(Cafe esql) {
+      this.esql = esql;
+   }//end SalesRollup
+
+   /**
+    * Counts a new order and its items. Call it in the transaction that
+    * wrote them, after its last change to them.
+    */
+   static void orderAdded(Cafe esql, int orderId) throws SQLException {
+      esql.executeUpdate(ADD_HOUR, 1, 1, orderId);
+      esql.executeUpdate(ADD_ITEMS, 1, orderId);
+   }//end orderAdded
+
+   /**
+    * Takes an order and its items out of the rollups. Call it in the
+    * transaction that deletes or changes them, before the change.
+    */
+   static void orderRemoved(Cafe esql, int orderId) throws SQLException {
+      esql.executeUpdate(ADD_HOUR, -1, -1, orderId);
+      esql.executeUpdate(ADD_ITEMS, -1, orderId);
+   }//end orderRemoved
+
+   /**
+    * Counts an order as paid. Call it in the transaction that set paid,
+    * after the update, and only when paid was not set before.
+    */
+   static void orderPaid(Cafe esql, int orderId) throws SQLException {
+      esql.executeUpdate(ADD_HOUR, 0, 1, orderId);
+   }//end orderPaid
+
+   /**
+    * Recomputes the rollups of the orders placed in [from, to), days at a
+    * time, each step in its own transaction. A step locks the rollup tables
+    * against writes, so the orders committed meanwhile are either in the
+    * step's counts or added after it, never both. Reports keep running.
+    *
+    * @param from first day, rounded down to midnight
+    * @param to end of the range, exclusive, rounded up to midnight
+    * @param days days per transaction
+    * @return the number of steps
+    * @throws java.sql.SQLException when a step failed; the steps before it are kept
+    */
+   public int rebuild(Timestamp from, Timestamp to, int days) throws SQLException {
+      if (days < 1)
+         throw new IllegalArgumentException("days must be positive, got " + days);
+      Calendar day = midnight(from);
+      Calendar end = midnight(to);
+      if (end.getTimeInMillis() < to.getTime())
+         end.add(Calendar.DATE, 1);
+
+      int steps = 0;
+      while (day.before(end)){
+         Timestamp lo = new Timestamp(day.getTimeInMillis());
+         day.add(Calendar.DATE, days);
+         if (day.after(end))
+            day.setTimeInMillis(end.getTimeInMillis());
+         Timestamp hi = new Timestamp(day.getTimeInMillis());
+
+         this.esql.beginTransaction();
+         try{
+            this.esql.executeStatement("LOCK TABLE SalesHourly, SalesItemDaily IN EXCLUSIVE MODE");
+            this.esql.executeUpdate("DELETE FROM SalesHourly WHERE hour >= ? AND hour < ?", lo, hi);
+            this.esql.executeUpdate("DELETE FROM SalesItemDaily WHERE day >= CAST(? AS date) AND day < CAST(? AS date)",
+                                    lo, hi);
+            this.esql.executeUpdate(REBUILD_HOURS, lo, hi);
+            this.esql.executeUpdate(REBUILD_ITEMS, lo, hi);
+            this.esql.commit();
+         }catch (SQLException e){
+            this.esql.rollback();
+            throw e;
+         }//end try
+         ++steps;
+      }//end while
+      return steps;
+   }//end rebuild
+
+   /**
+    * Recomputes the rollups of every order, from the day of the first one
+    * to today. Rollup rows before that day are kept, as they count orders
+    * archived since.
+    *
+    * @param days days per transaction
+    * @return the number of steps
+    * @throws java.sql.SQLException when a step failed
+    */
+   public int rebuildAll(int days) throws SQLException {
+      Timestamp first = this.esql.queryForTimestamp("SELECT MIN(timeStampRecieved) FROM ORDERS");
+      Timestamp last = this.esql.queryForTimestamp("SELECT MAX(timeStampRecieved) FROM ORDERS");
+      long now = System.currentTimeMillis();
+      Timestamp from = first == null ? daysAgo(0) : new Timestamp(midnight(first).getTimeInMillis());
+      Timestamp to = new Timestamp(Math.max(now, last == null ? 0 : last.getTime()) + 1);
+      return rebuild(from, to, days);
+   }//end rebuildAll
+
+   private static Calendar midnight(Timestamp t) {
+      Calendar c = Calendar.getInstance();
+      c.setTimeInMillis(t.getTime());
+      c.set(Calendar.HOUR_OF_DAY, 0);
+      c.set(Calendar.MINUTE, 0);
+      c.set(Calendar.SECOND, 0);
+      c.set(Calendar.MILLISECOND, 0);
+      return c;
+   }//end midnight
+
+   /**
+    * @param days how many days back from the start of today
+    * @return the start of that day
+    */
+   public static Timestamp daysAgo(int days) {
+      Calendar c = midnight(new Timestamp(System.currentTimeMillis()));
+      c.add(Calendar.DATE, -days);
+      return new Timestamp(c.getTimeInMillis());
+   }//end daysAgo
+
+   /**
+    * @return orders, revenue and its paid and unpaid parts per day of [from, to)
+    */
+   public QueryResult revenueByDay(Timestamp from, Timestamp to) throws SQLException {
+      return report("sales_by_day",
+         "SELECT CAST(hour AS date) AS day, SUM(orders) AS orders, SUM(revenue) AS revenue, " +
+         "SUM(paidRevenue) AS paid, SUM(revenue - paidRevenue) AS unpaid " +
+         "FROM SalesHourly WHERE hour >= ? AND hour < ? GROUP BY 1 ORDER BY 1", from, to);
+   }//end revenueByDay
+
+   /**
+    * @return orders, revenue and its paid and unpaid parts per hour of [from, to)
+    */
+   public QueryResult revenueByHour(Timestamp from, Timestamp to) throws SQLException {
+      return report("sales_by_hour",
+         "SELECT hour, orders, revenue, paidRevenue AS paid, revenue - paidRevenue AS unpaid " +
+         "FROM SalesHourly WHERE hour >= ? AND hour < ? AND orders <> 0 ORDER BY hour", from, to);
+   }//end revenueByHour
+
+   /**
+    * @return units sold and revenue per menu item over the days of
+    *         [from, to), best sellers first
+    */
+   public QueryResult itemUnits(Timestamp from, Timestamp to, int limit) throws SQLException {
+      return report("sales_by_item",
+         "SELECT itemName, SUM(units) AS units, SUM(revenue) AS revenue FROM SalesItemDaily " +
+         "WHERE day >= CAST(? AS date) AND day < CAST(? AS date) GROUP BY itemName " +
+         "HAVING SUM(units) <> 0 ORDER BY SUM(units) DESC, itemName LIMIT ?", from, to, limit);
+   }//end itemUnits
+
+   /**
+    * @return the paid and unpaid orders and revenue of [from, to)
+    */
+   public QueryResult paidVsUnpaid(Timestamp from, Timestamp to) throws SQLException {
+      return report("sales_paid",
+         "SELECT COALESCE(SUM(paidOrders), 0) AS paid_orders, COALESCE(SUM(paidRevenue), 0) AS paid_revenue, " +
+         "COALESCE(SUM(orders - paidOrders), 0) AS unpaid_orders, " +
+         "COALESCE(SUM(revenue - paidRevenue), 0) AS unpaid_revenue " +
+         "FROM SalesHourly WHERE hour >= ? AND hour < ?", from, to);
+   }//end paidVsUnpaid
+
+   private QueryResult report(String operation, String sql, Object... params) throws SQLException {
+      Metrics.Span op = this.esql.metrics().begin(operation);
+      try{
+         QueryResult result = this.esql.query(sql, params);
+         op.ok();
+         return result;
+      }finally{
+         op.end();
+      }//end try
+   }//end report
+
+   /**
+    * Rebuilds the rollups from the orders. Run it after loading orders
+    * around Cafe.
+    *
+    * with from=<yyyy-mm-dd> and to=<yyyy-mm-dd> (exclusive) to rebuild a
+    * range only, all days when either is missing, and days=<per
+    * transaction> (7).
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SalesRollup.class.getName () +
+            " <dbname> <port> <user> [key=value ...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("from", "");
+      opts.put("to", "");
+      opts.put("days", "7");
+      for (int i = 3; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq < 0 || !opts.containsKey(args[i].substring(0, eq)))
+            throw new IllegalArgumentException("unknown setting " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+      System.setProperty("cafe.notify.enabled", "false");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         SalesRollup rollup = new SalesRollup(esql);
+         int days = Integer.parseInt(opts.get("days"));
+         long start = System.nanoTime();
+         int steps;
+         if (opts.get("from").isEmpty() || opts.get("to").isEmpty())
+            steps = rollup.rebuildAll(days);
+         else
+            steps = rollup.rebuild(Timestamp.valueOf(opts.get("from") + " 00:00:00"),
+                                   Timestamp.valueOf(opts.get("to") + " 00:00:00"), days);
+         System.out.println(String.format(Locale.ROOT, "Sales rollups rebuilt in %d step(s) of %d day(s) in %.1fs",
+            steps, days, (System.nanoTime() - start) / 1e9));
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end SalesRollup
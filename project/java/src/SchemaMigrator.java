@@ -0,0 +1,838 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Applies versioned schema changes to an existing database.
+ *
+ * Every migration has a version number; the versions applied are recorded
+ * in schema_version, and migrate() applies the missing ones in order, so
+ * running it again is harmless. A database created from the current
+ * create_tables.sql already records every version.
+ *
+ * Column type changes are made without rewriting a table under a lock:
+ *
+ *   1. each column gets a shadow column of the new type, and a trigger
+ *      keeps the shadow in step with every insert and update;
+ *   2. existing rows are copied into the shadows in batches of batchSize,
+ *      each batch its own transaction, by ranges of the table's batch key
+ *      (orderid for Orders and ItemStatus);
+ *   3. one short transaction drops the old columns, renames the shadows
+ *      into their place and recreates the constraints and indexes that
+ *      used them, under an exclusive lock.
+ *
+ * Each step checks the catalog for what is already done, so a migration
+ * interrupted in any step picks up where it stopped when run again. Only
+ * one migrator may run at a time.
+ *
+ * The copy leaves the old versions of the rows behind, and a dropped
+ * column keeps its bytes in the rows until they are rewritten. Tables are
+ * vacuumed every VACUUM_EVERY batches so the copy reuses the space it
+ * frees; compact() rewrites the tables (VACUUM FULL, which locks each
+ * table while it runs) to hand the space back at once.
+ *
+ */
+public class SchemaMigrator {
+
+   static final String SHADOW = "__new";
+   // batches between two plain VACUUMs of the table being copied
+   static final int VACUUM_EVERY = 20;
+   // the tables of create_tables.sql, lower case as in the catalog
+   static final List<String> TABLES =
+      Collections.unmodifiableList(Arrays.asList("users", "menu", "orders", "itemstatus", "userfavorites"));
+
+   /**
+    * One schema change, applied once and recorded in schema_version.
+    */
+   public static abstract class Migration {
+      public final int version;
+      public final String description;
+
+      Migration(int version, String description) {
+         this.version = version;
+         this.description = description;
+      }
+
+      /**
+       * Applies the change. May be interrupted and run again; it must then
+       * pick up where it stopped.
+       */
+      abstract void apply(SchemaMigrator migrator) throws SQLException;
+   }//end Migration
+
+   /**
+    * Changes the type of columns through shadow columns, see above.
+    */
+   static class ChangeColumnTypes extends Migration {
+      // format_type prefix of the columns still to change
+      private final String from;
+      // SQL converting a value, %s stands for the column
+      private final String convert;
+      // { table, column, new type }, lower case as in the catalog
+      private final String[][] columns;
+      // table -> integer column to batch by; tables without one are
+      // batched by ctid, which suits small tables only
+      private final Map<String, String> batchKeys;
+
+      ChangeColumnTypes(int version, String description, String from, String convert,
+                        String[][] columns, String... batchKeys) {
+         super(version, description);
+         this.from = from;
+         this.convert = convert;
+         this.columns = columns;
+         this.batchKeys = new HashMap<String, String>();
+         for (int i = 0; i + 1 < batchKeys.length; i += 2)
+            this.batchKeys.put(batchKeys[i], batchKeys[i + 1]);
+      }
+
+      void apply(SchemaMigrator m) throws SQLException {
+         // table -> { column, new type } still to change
+         Map<String, List<String[]>> pending = new LinkedHashMap<String, List<String[]>>();
+         for (String[] c : this.columns){
+            String type = m.typeOf(c[0], c[1]);
+            if (type == null)
+               throw new SQLException("Column " + c[0] + "." + c[1] + " does not exist");
+            if (!type.startsWith(this.from) && m.typeOf(c[0], c[1] + SHADOW) == null)
+               continue;
+            List<String[]> list = pending.get(c[0]);
+            if (list == null){
+               list = new ArrayList<String[]>();
+               pending.put(c[0], list);
+            }//end if
+            list.add(new String[] { c[1], c[2] });
+         }//end for
+         if (pending.isEmpty())
+            return;
+
+         for (Map.Entry<String, List<String[]>> e : pending.entrySet())
+            m.addShadows(e.getKey(), e.getValue(), this.convert);
+         for (Map.Entry<String, List<String[]>> e : pending.entrySet())
+            m.backfillShadows(e.getKey(), e.getValue(), this.convert, this.batchKeys.get(e.getKey()));
+         m.swap(pending);
+      }//end apply
+   }//end ChangeColumnTypes
+
+   /**
+    * Gives every ItemStatus row a quantity, a discount and the unit price it
+    * was sold at. quantity and discount come with constant defaults. New
+    * rows get unitPrice from the itemstatus_unit_price trigger (see
+    * create_triggers.sql) when they do not set it; existing rows get the
+    * current menu price, copied in batches of orderid, before the column is
+    * made NOT NULL.
+    */
+   static class AddLinePricing extends Migration {
+      AddLinePricing(int version, String description) {
+         super(version, description);
+      }
+
+      void apply(SchemaMigrator m) throws SQLException {
+         m.esql.beginTransaction();
+         try{
+            if (m.typeOf("itemstatus", "quantity") == null)
+               m.esql.executeStatement(
+                  "ALTER TABLE itemstatus ADD COLUMN quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0)");
+            if (m.typeOf("itemstatus", "discount") == null)
+               m.esql.executeStatement(
+                  "ALTER TABLE itemstatus ADD COLUMN discount numeric(10,2) NOT NULL DEFAULT 0 CHECK (discount >= 0)");
+            if (m.typeOf("itemstatus", "unitprice") == null)
+               m.esql.executeStatement("ALTER TABLE itemstatus ADD COLUMN unitPrice numeric(10,2)");
+            m.esql.executeStatement(
+               "CREATE OR REPLACE FUNCTION itemstatus_unit_price() RETURNS trigger AS $$ " +
+               "BEGIN IF NEW.unitPrice IS NULL THEN " +
+               "SELECT price INTO NEW.unitPrice FROM Menu WHERE itemName = NEW.itemName; " +
+               "END IF; RETURN NEW; END; $$ LANGUAGE plpgsql");
+            m.esql.executeStatement("DROP TRIGGER IF EXISTS itemstatus_unit_price ON itemstatus");
+            m.esql.executeStatement(
+               "CREATE TRIGGER itemstatus_unit_price BEFORE INSERT ON itemstatus " +
+               "FOR EACH ROW EXECUTE PROCEDURE itemstatus_unit_price()");
+            m.esql.commit();
+         }catch (SQLException e){
+            m.esql.rollback();
+            throw e;
+         }//end try
+
+         m.backfill("itemstatus",
+            "unitPrice = (SELECT p.price FROM menu p WHERE p.itemname = itemstatus.itemname)",
+            "unitPrice IS NULL", "orderid");
+
+         m.esql.beginTransaction();
+         try{
+            m.esql.executeStatement("ALTER TABLE itemstatus ALTER COLUMN unitPrice SET NOT NULL");
+            // not itemstatus_discount_check, the name of the discount >= 0 check
+            if (!m.esql.exists("SELECT 1 FROM pg_constraint WHERE conname = 'itemstatus_discount_max'"))
+               m.esql.executeStatement("ALTER TABLE itemstatus ADD CONSTRAINT itemstatus_discount_max " +
+                                       "CHECK (discount <= unitPrice * quantity)");
+            m.esql.commit();
+         }catch (SQLException e){
+            m.esql.rollback();
+            throw e;
+         }//end try
+         m.esql.executeStatement("ANALYZE itemstatus");
+      }//end apply
+   }//end AddLinePricing
+
+   /**
+    * Creates the sales rollup tables and fills them from the orders; see
+    * SalesRollup.
+    */
+   static class CreateSalesRollups extends Migration {
+      CreateSalesRollups(int version, String description) {
+         super(version, description);
+      }
+
+      void apply(SchemaMigrator m) throws SQLException {
+         m.esql.executeStatement(
+            "CREATE TABLE IF NOT EXISTS SalesHourly (hour timestamp PRIMARY KEY, orders integer NOT NULL, " +
+            "revenue numeric(14,2) NOT NULL, paidOrders integer NOT NULL, paidRevenue numeric(14,2) NOT NULL)");
+         m.esql.executeStatement(
+            "CREATE TABLE IF NOT EXISTS SalesItemDaily (day date NOT NULL, itemName varchar(50) NOT NULL, " +
+            "units bigint NOT NULL, revenue numeric(14,2) NOT NULL, PRIMARY KEY (day, itemName))");
+         System.out.println("  sales rollups rebuilt in " + new SalesRollup(m.esql).rebuildAll(7) + " step(s)");
+      }//end apply
+   }//end CreateSalesRollups
+
+   /**
+    * Partitions Orders and ItemStatus by month (see create_tables.sql)
+    * without copying their rows: the existing tables become one partition
+    * each, orders_legacy and itemstatus_legacy, holding every order before
+    * the month after next, and the months after that get partitions of
+    * their own. PartitionMaintenance archives the legacy pair once its last
+    * month is past the retention period.
+    *
+    * Everything the attach needs is prepared without blocking writes:
+    * ItemStatus gets orderTime, copied from its order in batches of orderid
+    * and set by a trigger on new rows meanwhile; the new keys are built
+    * concurrently; and CHECK constraints bounding the order times are
+    * validated, so attaching skips its scan. One short transaction under an
+    * exclusive lock then puts the partitioned tables in place, with the
+ * triggers of create_triggers.sql that keep orderid unique across
+ * partitions, since the keys now carry the order time. The foreign
+    * key from ItemStatus to Orders is added last, in its own statement; its
+    * check reads both tables and holds off writes, not reads, meanwhile.
+    */
+   static class PartitionOrders extends Migration {
+      PartitionOrders(int version, String description) {
+         super(version, description);
+      }
+
+      void apply(SchemaMigrator m) throws SQLException {
+         if (!m.esql.exists("SELECT 1 FROM pg_class WHERE oid = CAST('orders' AS regclass) AND relkind = 'p'")){
+            addOrderTime(m);
+            String bound = bound(m);
+            m.esql.executeStatement("ALTER TABLE orders VALIDATE CONSTRAINT orders_legacy_bound");
+            m.esql.executeStatement("ALTER TABLE itemstatus VALIDATE CONSTRAINT itemstatus_legacy_bound");
+            m.createIndexConcurrently("orders_legacy_key", "orders (orderid, timeStampRecieved)");
+            m.createIndexConcurrently("itemstatus_legacy_key", "itemstatus (orderid, orderTime, itemName)");
+            swap(m, bound);
+         }//end if
+         if (!m.esql.exists("SELECT 1 FROM pg_constraint WHERE conname = 'itemstatus_orderid_ordertime_fkey'"))
+            m.esql.executeStatement(
+               "ALTER TABLE itemstatus ADD CONSTRAINT itemstatus_orderid_ordertime_fkey " +
+               "FOREIGN KEY (orderid, orderTime) REFERENCES orders (orderid, timeStampRecieved)");
+         m.esql.executeStatement("ANALYZE orders");
+         m.esql.executeStatement("ANALYZE itemstatus");
+      }//end apply
+
+      private void addOrderTime(SchemaMigrator m) throws SQLException {
+         m.esql.beginTransaction();
+         try{
+            if (m.typeOf("itemstatus", "ordertime") == null)
+               m.esql.executeStatement("ALTER TABLE itemstatus ADD COLUMN orderTime timestamp");
+            m.esql.executeStatement(
+               "CREATE OR REPLACE FUNCTION itemstatus_order_time() RETURNS trigger AS $$ " +
+               "BEGIN IF NEW.orderTime IS NULL THEN " +
+               "SELECT timeStampRecieved INTO NEW.orderTime FROM Orders WHERE orderid = NEW.orderid; " +
+               "END IF; RETURN NEW; END; $$ LANGUAGE plpgsql");
+            m.esql.executeStatement("DROP TRIGGER IF EXISTS itemstatus_order_time ON itemstatus");
+            m.esql.executeStatement(
+               "CREATE TRIGGER itemstatus_order_time BEFORE INSERT OR UPDATE ON itemstatus " +
+               "FOR EACH ROW EXECUTE PROCEDURE itemstatus_order_time()");
+            m.esql.commit();
+         }catch (SQLException e){
+            m.esql.rollback();
+            throw e;
+         }//end try
+         m.backfill("itemstatus",
+            "orderTime = (SELECT o.timeStampRecieved FROM orders o WHERE o.orderid = itemstatus.orderid)",
+            "orderTime IS NULL", "orderid");
+      }//end addOrderTime
+
+      /*
+       * Adds, not yet validated, the CHECK constraints keeping every order
+       * before the upper bound of the legacy partition, and returns that
+       * bound. It is kept in the comment of orders_legacy_bound, and moved
+       * on a month when a resumed run finds it less than a month ahead.
+       */
+      private String bound(SchemaMigrator m) throws SQLException {
+         String bound = m.esql.queryForString(
+            "SELECT obj_description(oid, 'pg_constraint') FROM pg_constraint WHERE conname = 'orders_legacy_bound'");
+         if (bound != null && m.esql.exists(
+               "SELECT 1 WHERE CAST(? AS timestamp) >= now() + interval '1 month'", bound))
+            return bound;
+         bound = m.esql.queryForString("SELECT CAST(date_trunc('month', now()) + interval '2 months' AS text)");
+         m.esql.beginTransaction();
+         try{
+            m.esql.executeStatement("ALTER TABLE orders DROP CONSTRAINT IF EXISTS orders_legacy_bound");
+            m.esql.executeStatement("ALTER TABLE itemstatus DROP CONSTRAINT IF EXISTS itemstatus_legacy_bound");
+            m.esql.executeStatement("ALTER TABLE orders ADD CONSTRAINT orders_legacy_bound " +
+               "CHECK (timeStampRecieved < CAST('" + bound + "' AS timestamp)) NOT VALID");
+            m.esql.executeStatement("COMMENT ON CONSTRAINT orders_legacy_bound ON orders IS '" + bound + "'");
+            m.esql.executeStatement("ALTER TABLE itemstatus ADD CONSTRAINT itemstatus_legacy_bound " +
+               "CHECK (orderTime IS NOT NULL AND orderTime < CAST('" + bound + "' AS timestamp)) NOT VALID");
+            m.esql.commit();
+         }catch (SQLException e){
+            m.esql.rollback();
+            throw e;
+         }//end try
+         return bound;
+      }//end bound
+
+      /*
+       * Renames the tables to *_legacy, creates the partitioned tables in
+       * their place with the same checks, indexes, foreign keys to Menu and
+       * triggers, attaches the legacy tables and creates the partitions of
+       * the months after them.
+       */
+      private void swap(SchemaMigrator m, String bound) throws SQLException {
+         long start = System.nanoTime();
+         m.esql.beginTransaction();
+         try{
+            // give up rather than queue every query behind a long wait
+            m.esql.executeStatement("SET LOCAL lock_timeout = '10s'");
+            m.esql.executeStatement("LOCK TABLE orders, itemstatus IN ACCESS EXCLUSIVE MODE");
+
+            // { name, definition } of what the partitioned tables take over
+            List<String[]> indexes = new ArrayList<String[]>();
+            for (String table : new String[] { "orders", "itemstatus" })
+               indexes.addAll(m.esql.queryForList(
+                  "SELECT CAST(CAST(i.indexrelid AS regclass) AS text), pg_get_indexdef(i.indexrelid) " +
+                  "FROM pg_index i WHERE i.indrelid = CAST(? AS regclass) " +
+                  "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid) " +
+                  "AND CAST(CAST(i.indexrelid AS regclass) AS text) NOT LIKE '%_legacy_key'",
+                  STRINGS, table));
+            List<String[]> checks = m.esql.queryForList(
+               "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+               "WHERE conrelid = CAST('itemstatus' AS regclass) AND contype = 'c' " +
+               "AND conname <> 'itemstatus_legacy_bound'", STRINGS);
+            List<String[]> menuKeys = m.esql.queryForList(
+               "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+               "WHERE conrelid = CAST('itemstatus' AS regclass) AND contype = 'f' " +
+               "AND confrelid = CAST('menu' AS regclass)", STRINGS);
+
+            for (String name : m.esql.queryForList(
+                  "SELECT conname FROM pg_constraint WHERE conrelid = CAST('itemstatus' AS regclass) " +
+                  "AND contype = 'f' AND confrelid = CAST('orders' AS regclass)", NAME))
+               m.esql.executeStatement("ALTER TABLE itemstatus DROP CONSTRAINT " + name);
+            for (String table : new String[] { "orders", "itemstatus" }){
+               for (String name : m.esql.queryForList(
+                     "SELECT conname FROM pg_constraint WHERE conrelid = CAST(? AS regclass) AND contype = 'p'",
+                     NAME, table))
+                  m.esql.executeStatement("ALTER TABLE " + table + " DROP CONSTRAINT " + name);
+            }//end for
+            m.esql.executeStatement("ALTER TABLE itemstatus ALTER COLUMN orderTime SET NOT NULL");
+            m.esql.executeStatement(
+               "ALTER TABLE orders ADD CONSTRAINT orders_legacy_key PRIMARY KEY USING INDEX orders_legacy_key");
+            m.esql.executeStatement(
+               "ALTER TABLE itemstatus ADD CONSTRAINT itemstatus_legacy_key PRIMARY KEY USING INDEX itemstatus_legacy_key");
+            for (String trigger : new String[] { "itemstatus_order_time", "itemstatus_unit_price",
+                                                 "itemstatus_changed", "itemstatus_deleted" })
+               m.esql.executeStatement("DROP TRIGGER IF EXISTS " + trigger + " ON itemstatus");
+            m.esql.executeStatement("DROP FUNCTION IF EXISTS itemstatus_order_time()");
+            for (String[] idx : indexes)
+               m.esql.executeStatement("ALTER INDEX " + idx[0] + " RENAME TO " + idx[0] + "_legacy");
+            m.esql.executeStatement("ALTER TABLE orders RENAME TO orders_legacy");
+            m.esql.executeStatement("ALTER TABLE itemstatus RENAME TO itemstatus_legacy");
+
+            m.esql.executeStatement(
+               "CREATE TABLE orders (orderid integer NOT NULL DEFAULT nextval('orders_orderid_seq'), " +
+               "login varchar(50), paid boolean, timeStampRecieved timestamp NOT NULL, " +
+               "total numeric(10,2) NOT NULL, PRIMARY KEY (orderid, timeStampRecieved)) " +
+               "PARTITION BY RANGE (timeStampRecieved)");
+            m.esql.executeStatement("ALTER SEQUENCE orders_orderid_seq OWNED BY orders.orderid");
+            StringBuilder constraints = new StringBuilder();
+            for (String[] check : checks)
+               constraints.append(", CONSTRAINT ").append(check[0]).append(" ").append(check[1]);
+            m.esql.executeStatement(
+               "CREATE TABLE itemstatus (orderid integer NOT NULL, itemName varchar(50) NOT NULL, " +
+               "lastUpdated timestamp NOT NULL, status varchar(20), comments varchar(130), " +
+               "quantity integer NOT NULL DEFAULT 1, discount numeric(10,2) NOT NULL DEFAULT 0, " +
+               "unitPrice numeric(10,2) NOT NULL, orderTime timestamp NOT NULL" + constraints +
+               ", PRIMARY KEY (orderid, orderTime, itemName)) PARTITION BY RANGE (orderTime)");
+            // the definitions name the tables, which are now the partitioned ones
+            for (String[] idx : indexes)
+               m.esql.executeStatement(idx[1]);
+
+            // the attach takes over the keys, indexes and checks of the same
+            // definition, and the validated bounds spare it a scan
+            m.esql.executeStatement("ALTER TABLE orders ATTACH PARTITION orders_legacy " +
+               "FOR VALUES FROM (MINVALUE) TO ('" + bound + "')");
+            m.esql.executeStatement("ALTER TABLE itemstatus ATTACH PARTITION itemstatus_legacy " +
+               "FOR VALUES FROM (MINVALUE) TO ('" + bound + "')");
+            m.esql.executeStatement("ALTER TABLE orders_legacy DROP CONSTRAINT orders_legacy_bound");
+            m.esql.executeStatement("ALTER TABLE itemstatus_legacy DROP CONSTRAINT itemstatus_legacy_bound");
+            for (String[] key : menuKeys)
+               m.esql.executeStatement("ALTER TABLE itemstatus ADD CONSTRAINT " + key[0] + " " + key[1]);
+
+            m.esql.executeStatement(
+               "CREATE TRIGGER itemstatus_unit_price BEFORE INSERT ON itemstatus " +
+               "FOR EACH ROW EXECUTE PROCEDURE itemstatus_unit_price()");
+            m.esql.executeStatement(
+               "CREATE TRIGGER itemstatus_changed AFTER INSERT OR UPDATE ON itemstatus " +
+               "FOR EACH STATEMENT EXECUTE PROCEDURE itemstatus_notify()");
+            m.esql.executeStatement(
+               "CREATE TRIGGER itemstatus_deleted AFTER DELETE OR TRUNCATE ON itemstatus " +
+               "FOR EACH STATEMENT EXECUTE PROCEDURE itemstatus_notify()");
+
+            // the keys now carry the order time; keep orderid unique
+            m.esql.executeStatement(ORDERS_UNIQUE_ORDERID);
+            m.esql.executeStatement(
+               "CREATE TRIGGER orders_orderid_inserted AFTER INSERT ON orders REFERENCING NEW TABLE AS added " +
+               "FOR EACH STATEMENT EXECUTE PROCEDURE orders_unique_orderid()");
+            m.esql.executeStatement(
+               "CREATE TRIGGER orders_orderid_updated AFTER UPDATE OF orderid ON orders " +
+               "FOR EACH ROW WHEN (OLD.orderid IS DISTINCT FROM NEW.orderid) " +
+               "EXECUTE PROCEDURE orders_unique_orderid()");
+
+            m.esql.executeStatement(CREATE_MONTH_PARTITIONS);
+            m.esql.queryForInt("SELECT create_month_partitions(CAST(? AS timestamp), now() + interval '3 months')",
+                               bound);
+            m.esql.commit();
+         }catch (SQLException e){
+            m.esql.rollback();
+            throw e;
+         }//end try
+         System.out.println(String.format(Locale.ROOT, "  tables partitioned in %.1fs",
+            (System.nanoTime() - start) / 1e9));
+      }//end swap
+   }//end PartitionOrders
+
+   // create_month_partitions() of create_tables.sql
+   static final String CREATE_MONTH_PARTITIONS =
+      "CREATE OR REPLACE FUNCTION create_month_partitions(since timestamp, until timestamp) " +
+      "RETURNS integer AS $$ " +
+      "DECLARE m timestamp := date_trunc('month', since); created integer := 0; " +
+      "BEGIN " +
+      "WHILE m < until LOOP " +
+      "IF to_regclass('orders_' || to_char(m, '\"y\"YYYY\"m\"MM')) IS NULL THEN " +
+      "BEGIN " +
+      "EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)', " +
+      "'orders_' || to_char(m, '\"y\"YYYY\"m\"MM'), m, m + interval '1 month'); " +
+      "EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)', " +
+      "'itemstatus_' || to_char(m, '\"y\"YYYY\"m\"MM'), m, m + interval '1 month'); " +
+      "created := created + 1; " +
+      "EXCEPTION WHEN invalid_object_definition OR duplicate_table THEN " +
+      "END; " +
+      "END IF; " +
+      "m := m + interval '1 month'; " +
+      "END LOOP; " +
+      "RETURN created; " +
+      "END; $$ LANGUAGE plpgsql";
+
+   // orders_unique_orderid() of create_triggers.sql
+   static final String ORDERS_UNIQUE_ORDERID =
+      "CREATE OR REPLACE FUNCTION orders_unique_orderid() RETURNS trigger AS $$ " +
+      "DECLARE dup integer; " +
+      "BEGIN " +
+      "IF TG_LEVEL = 'ROW' THEN " +
+      "IF (SELECT count(*) FROM Orders WHERE orderid = NEW.orderid) > 1 THEN dup := NEW.orderid; END IF; " +
+      "ELSE " +
+      "SELECT c.orderid INTO dup FROM added c " +
+      "WHERE (SELECT count(*) FROM Orders o WHERE o.orderid = c.orderid) > 1 LIMIT 1; " +
+      "END IF; " +
+      "IF dup IS NOT NULL THEN " +
+      "RAISE EXCEPTION 'orderid % is held by more than one order', dup USING ERRCODE = 'unique_violation'; " +
+      "END IF; " +
+      "RETURN NULL; " +
+      "END; $$ LANGUAGE plpgsql";
+
+   /**
+    * Every migration, in version order.
+    */
+   static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.<Migration>asList(
+      new ChangeColumnTypes(1, "char(n) columns to varchar and text", "character(", "rtrim(%s)", new String[][] {
+            { "users", "login", "varchar(50)" },
+            { "users", "phonenum", "varchar(16)" },
+            { "users", "password", "varchar(50)" },
+            { "users", "favitems", "text" },
+            { "users", "type", "varchar(8)" },
+            { "menu", "itemname", "varchar(50)" },
+            { "menu", "type", "varchar(20)" },
+            { "menu", "description", "text" },
+            { "menu", "imageurl", "varchar(256)" },
+            { "orders", "login", "varchar(50)" },
+            { "itemstatus", "itemname", "varchar(50)" },
+            { "itemstatus", "status", "varchar(20)" },
+            { "itemstatus", "comments", "varchar(130)" },
+            { "userfavorites", "login", "varchar(50)" },
+            { "userfavorites", "itemname", "varchar(50)" } },
+         "orders", "orderid", "itemstatus", "orderid"),
+      new ChangeColumnTypes(2, "real prices and totals to numeric(10,2)", "real",
+         "round(CAST(%s AS numeric), 2)", new String[][] {
+            { "menu", "price", "numeric(10,2)" },
+            { "orders", "total", "numeric(10,2)" } },
+         "orders", "orderid"),
+      new AddLinePricing(3, "quantity, discount and unit price per order item"),
+      new CreateSalesRollups(4, "sales rollup tables"),
+      new PartitionOrders(5, "Orders and ItemStatus partitioned by month")
+   ));
+
+   // every constraint using a column, on its table or referencing it
+   private static final String CONSTRAINTS_SQL =
+      "SELECT c.conname, CAST(CAST(c.conrelid AS regclass) AS text), c.contype, pg_get_constraintdef(c.oid) " +
+      "FROM pg_constraint c, pg_attribute a " +
+      "WHERE a.attrelid = CAST(? AS regclass) AND a.attname = ? AND c.contype IN ('p', 'u', 'f') " +
+      "AND ((c.conrelid = a.attrelid AND a.attnum = ANY (c.conkey)) " +
+      "OR (c.confrelid = a.attrelid AND a.attnum = ANY (c.confkey)))";
+
+   // every index using a column that does not back a constraint
+   private static final String INDEXES_SQL =
+      "SELECT CAST(CAST(i.indexrelid AS regclass) AS text), pg_get_indexdef(i.indexrelid) " +
+      "FROM pg_index i, pg_attribute a " +
+      "WHERE a.attrelid = CAST(? AS regclass) AND a.attname = ? AND i.indrelid = a.attrelid " +
+      "AND a.attnum = ANY (i.indkey) " +
+      "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)";
+
+   private static final RowMapper<String[]> STRINGS = new RowMapper<String[]>() {
+      public String[] map(ResultSet rs) throws SQLException {
+         String[] row = new String[rs.getMetaData().getColumnCount()];
+         for (int i = 0; i < row.length; ++i)
+            row[i] = rs.getString(i + 1);
+         return row;
+      }
+   };
+
+   private static final RowMapper<String> NAME = new RowMapper<String>() {
+      public String map(ResultSet rs) throws SQLException {
+         return rs.getString(1);
+      }
+   };
+
+   private final Cafe esql;
+   private final int batchSize;
+   private final long pauseMillis;
+
+   /**
+    * @param esql the database to migrate
+    * @param batchSize rows, or batch key values, copied per transaction
+    * @param pauseMillis pause between two batches, to leave room for traffic
+    */
+   public SchemaMigrator(Cafe esql, int batchSize, long pauseMillis) {
+      if (batchSize < 1)
+         throw new IllegalArgumentException("batch size must be positive, got " + batchSize);
+      this.esql = esql;
+      this.batchSize = batchSize;
+      this.pauseMillis = pauseMillis;
+   }//end SchemaMigrator
+
+   /**
+    * @return the highest version applied, 0 for none
+    * @throws java.sql.SQLException when schema_version could not be read
+    */
+   public int currentVersion() throws SQLException {
+      createVersionTable();
+      return this.esql.queryForInt("SELECT COALESCE(MAX(version), 0) FROM schema_version");
+   }//end currentVersion
+
+   private void createVersionTable() throws SQLException {
+      this.esql.executeStatement(
+         "CREATE TABLE IF NOT EXISTS schema_version (version integer PRIMARY KEY, " +
+         "description text NOT NULL, appliedAt timestamp NOT NULL DEFAULT now())");
+   }//end createVersionTable
+
+   /**
+    * Applies every migration not yet recorded in schema_version, in
+    * version order.
+    *
+    * @return the number of migrations applied
+    * @throws java.sql.SQLException when a migration failed; it resumes on the next run
+    */
+   public int migrate() throws SQLException {
+      createVersionTable();
+      int applied = 0;
+      for (Migration m : MIGRATIONS){
+         if (this.esql.exists("SELECT 1 FROM schema_version WHERE version = ?", m.version))
+            continue;
+         System.out.println("Applying version " + m.version + ": " + m.description);
+         long start = System.nanoTime();
+         m.apply(this);
+         this.esql.executeUpdate("INSERT INTO schema_version (version, description) VALUES (?, ?)",
+                                 m.version, m.description);
+         System.out.println(String.format(Locale.ROOT, "Version %d applied in %.1fs",
+            m.version, (System.nanoTime() - start) / 1e9));
+         ++applied;
+      }//end for
+      return applied;
+   }//end migrate
+
+   /*
+    * @return the type of table.column as format_type shows it, or null if
+    *         there is no such column
+    */
+   String typeOf(String table, String column) throws SQLException {
+      return this.esql.queryForString(
+         "SELECT format_type(a.atttypid, a.atttypmod) FROM pg_attribute a " +
+         "WHERE a.attrelid = CAST(? AS regclass) AND a.attname = ? AND NOT a.attisdropped",
+         table, column);
+   }//end typeOf
+
+   /*
+    * Adds the missing shadow columns of table and the trigger that copies
+    * every written row into them, in one transaction so no write is missed.
+    */
+   void addShadows(String table, List<String[]> columns, String convert) throws SQLException {
+      StringBuilder body = new StringBuilder();
+      for (String[] c : columns)
+         body.append("NEW.").append(c[0]).append(SHADOW).append(" := ")
+             .append(String.format(convert, "NEW." + c[0])).append("; ");
+
+      this.esql.beginTransaction();
+      try{
+         for (String[] c : columns){
+            if (typeOf(table, c[0] + SHADOW) == null)
+               this.esql.executeStatement("ALTER TABLE " + table + " ADD COLUMN " + c[0] + SHADOW + " " + c[1]);
+         }//end for
+         this.esql.executeStatement(
+            "CREATE OR REPLACE FUNCTION " + table + "_shadow_sync() RETURNS trigger AS $$ " +
+            "BEGIN " + body + "RETURN NEW; END; $$ LANGUAGE plpgsql");
+         this.esql.executeStatement("DROP TRIGGER IF EXISTS " + table + "_shadow_sync ON " + table);
+         this.esql.executeStatement(
+            "CREATE TRIGGER " + table + "_shadow_sync BEFORE INSERT OR UPDATE ON " + table +
+            " FOR EACH ROW EXECUTE PROCEDURE " + table + "_shadow_sync()");
+         this.esql.commit();
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+   }//end addShadows
+
+   /*
+    * Copies the rows not yet copied into the shadow columns, batchSize at a
+    * time. Rows written meanwhile are copied by the trigger.
+    */
+   void backfillShadows(String table, List<String[]> columns, String convert, String key) throws SQLException {
+      StringBuilder set = new StringBuilder();
+      StringBuilder todo = new StringBuilder();
+      for (String[] c : columns){
+         set.append(set.length() == 0 ? "" : ", ")
+            .append(c[0]).append(SHADOW).append(" = ").append(String.format(convert, c[0]));
+         todo.append(todo.length() == 0 ? "(" : " OR ")
+             .append(c[0]).append(SHADOW).append(" IS NULL AND ").append(c[0]).append(" IS NOT NULL");
+      }//end for
+      todo.append(")");
+      backfill(table, set.toString(), todo.toString(), key);
+   }//end backfillShadows
+
+   /*
+    * Runs UPDATE table SET set on the rows matching todo, batchSize at a
+    * time, until none is left. set must make todo false.
+    */
+   void backfill(String table, String set, String todo, String key) throws SQLException {
+      String update = "UPDATE " + table + " SET " + set + " WHERE ";
+
+      long start = System.nanoTime();
+      long rows = 0;
+      int batches = 0;
+      if (key == null){
+         int n;
+         do{
+            n = this.esql.executeUpdate(update + "ctid = ANY (ARRAY(SELECT ctid FROM " + table +
+                                        " WHERE " + todo + " LIMIT ?))", this.batchSize);
+            rows += n;
+            if (++batches % VACUUM_EVERY == 0)
+               this.esql.executeStatement("VACUUM " + table);
+            pause();
+         }while (n > 0);
+      }else{
+         // resume at the first key with a row left to copy
+         long from = this.esql.queryForLong("SELECT COALESCE(MIN(" + key + "), 0) FROM " + table + " WHERE " + todo);
+         long last = this.esql.queryForLong("SELECT COALESCE(MAX(" + key + "), -1) FROM " + table);
+         for (long lo = from; lo <= last; lo += this.batchSize){
+            rows += this.esql.executeUpdate(update + key + " >= ? AND " + key + " < ? AND " + todo,
+                                            lo, lo + this.batchSize);
+            System.out.println(String.format(Locale.ROOT, "  %s: %d rows copied, %s %d of %d",
+               table, rows, key, Math.min(lo + this.batchSize - 1, last), last));
+            if (++batches % VACUUM_EVERY == 0)
+               this.esql.executeStatement("VACUUM " + table);
+            pause();
+         }//end for
+      }//end if
+      System.out.println(String.format(Locale.ROOT, "  %s: %d rows copied in %.1fs",
+         table, rows, (System.nanoTime() - start) / 1e9));
+   }//end backfill
+
+   /*
+    * Builds a unique index without blocking writes. A build interrupted
+    * before leaves an invalid index behind, which is dropped and built
+    * again.
+    */
+   void createIndexConcurrently(String name, String on) throws SQLException {
+      if (this.esql.exists("SELECT 1 FROM pg_index WHERE indexrelid = to_regclass(?) AND NOT indisvalid", name))
+         this.esql.executeStatement("DROP INDEX CONCURRENTLY " + name);
+      if (this.esql.exists("SELECT 1 WHERE to_regclass(?) IS NOT NULL", name))
+         return;
+      long start = System.nanoTime();
+      this.esql.executeStatement("CREATE UNIQUE INDEX CONCURRENTLY " + name + " ON " + on);
+      System.out.println(String.format(Locale.ROOT, "  %s built in %.1fs", name, (System.nanoTime() - start) / 1e9));
+   }//end createIndexConcurrently
+
+   private void pause() {
+      if (this.pauseMillis <= 0)
+         return;
+      try{
+         Thread.sleep(this.pauseMillis);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end pause
+
+   /*
+    * Puts every shadow column in place of its column, in one transaction.
+    * The constraints and indexes using the old columns go with them, and
+    * are recreated from their definitions on the new columns, which carry
+    * the same names: primary and unique keys first, then plain indexes,
+    * then the foreign keys that rely on those keys.
+    */
+   void swap(Map<String, List<String[]>> pending) throws SQLException {
+      long start = System.nanoTime();
+      this.esql.beginTransaction();
+      try{
+         StringBuilder tables = new StringBuilder();
+         for (String table : pending.keySet())
+            tables.append(tables.length() == 0 ? "" : ", ").append(table);
+         this.esql.executeStatement("LOCK TABLE " + tables + " IN ACCESS EXCLUSIVE MODE");
+
+         // name -> { name, table, type, definition } and { name, definition }
+         Map<String, String[]> constraints = new LinkedHashMap<String, String[]>();
+         Map<String, String[]> indexes = new LinkedHashMap<String, String[]>();
+         Map<String, Boolean> notNull = new HashMap<String, Boolean>();
+         for (Map.Entry<String, List<String[]>> e : pending.entrySet()){
+            for (String[] c : e.getValue()){
+               for (String[] con : this.esql.queryForList(CONSTRAINTS_SQL, STRINGS, e.getKey(), c[0]))
+                  constraints.put(con[1] + "." + con[0], con);
+               for (String[] idx : this.esql.queryForList(INDEXES_SQL, STRINGS, e.getKey(), c[0]))
+                  indexes.put(idx[0], idx);
+               notNull.put(e.getKey() + "." + c[0], this.esql.exists(
+                  "SELECT 1 FROM pg_attribute WHERE attrelid = CAST(? AS regclass) AND attname = ? AND attnotnull",
+                  e.getKey(), c[0]));
+            }//end for
+         }//end for
+
+         for (String[] con : constraints.values())
+            if (con[2].equals("f"))
+               this.esql.executeStatement("ALTER TABLE " + con[1] + " DROP CONSTRAINT " + con[0]);
+         for (Map.Entry<String, List<String[]>> e : pending.entrySet()){
+            String table = e.getKey();
+            for (String[] c : e.getValue()){
+               // drops the keys and indexes on the old column with it
+               this.esql.executeStatement("ALTER TABLE " + table + " DROP COLUMN " + c[0]);
+               this.esql.executeStatement("ALTER TABLE " + table + " RENAME COLUMN " + c[0] + SHADOW + " TO " + c[0]);
+               if (notNull.get(table + "." + c[0]))
+                  this.esql.executeStatement("ALTER TABLE " + table + " ALTER COLUMN " + c[0] + " SET NOT NULL");
+            }//end for
+            this.esql.executeStatement("DROP TRIGGER IF EXISTS " + table + "_shadow_sync ON " + table);
+            this.esql.executeStatement("DROP FUNCTION IF EXISTS " + table + "_shadow_sync()");
+         }//end for
+
+         for (String[] con : constraints.values())
+            if (!con[2].equals("f"))
+               this.esql.executeStatement("ALTER TABLE " + con[1] + " ADD CONSTRAINT " + con[0] + " " + con[3]);
+         // an index of a partitioned table reads ON ONLY, which would
+         // leave it without the indexes of its partitions
+         for (String[] idx : indexes.values())
+            this.esql.executeStatement(idx[1].replace(" ON ONLY ", " ON "));
+         for (String[] con : constraints.values())
+            if (con[2].equals("f"))
+               this.esql.executeStatement("ALTER TABLE " + con[1] + " ADD CONSTRAINT " + con[0] + " " + con[3]);
+         this.esql.commit();
+      }catch (SQLException e){
+         this.esql.rollback();
+         throw e;
+      }//end try
+      for (String table : pending.keySet())
+         this.esql.executeStatement("ANALYZE " + table);
+      System.out.println(String.format(Locale.ROOT, "  columns swapped in %.1fs", (System.nanoTime() - start) / 1e9));
+   }//end swap
+
+   /**
+    * Rewrites every Cafe table and its indexes, dropping dead rows and the
+    * bytes of dropped columns. Each table is locked while it is rewritten.
+    *
+    * @throws java.sql.SQLException when a table could not be rewritten
+    */
+   public void compact() throws SQLException {
+      for (String table : TABLES){
+         long start = System.nanoTime();
+         this.esql.executeStatement("VACUUM FULL " + table);
+         this.esql.executeStatement("ANALYZE " + table);
+         System.out.println(String.format(Locale.ROOT, "  %s rewritten in %.1fs",
+            table, (System.nanoTime() - start) / 1e9));
+      }//end for
+   }//end compact
+
+   /**
+    * Prints the heap (with TOAST) and index size of every Cafe table, the
+    * partitions of Orders and ItemStatus added up.
+    *
+    * @param esql the database
+    * @throws java.sql.SQLException when the sizes could not be read
+    */
+   public static void printSizes(Cafe esql) throws SQLException {
+      esql.executeQueryAndPrintResult(
+         "SELECT c.relname AS table, pg_size_pretty(s.t) AS table_size, pg_size_pretty(s.i) AS index_size, " +
+         "s.t AS table_bytes, s.i AS index_bytes FROM pg_class c, " +
+         "LATERAL (SELECT SUM(pg_table_size(p.oid)) AS t, SUM(pg_indexes_size(p.oid)) AS i FROM pg_class p " +
+         "WHERE p.oid = c.oid OR p.oid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = c.oid)) s " +
+         "WHERE c.relkind IN ('r', 'p') " +
+         "AND c.relname IN ('users', 'menu', 'orders', 'itemstatus', 'userfavorites') ORDER BY c.relname");
+   }//end printSizes
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SchemaMigrator.class.getName () +
+            " <dbname> <port> <user> [key=value ...]");
+         return;
+      }//end if
+
+      Map<String, String> opts = new HashMap<String, String>();
+      opts.put("batch", "10000");
+      opts.put("pauseMs", "0");
+      opts.put("sizes", "false");
+      opts.put("compact", "false");
+      for (int i = 3; i < args.length; ++i){
+         int eq = args[i].indexOf('=');
+         if (eq < 0 || !opts.containsKey(args[i].substring(0, eq)))
+            throw new IllegalArgumentException("unknown setting " + args[i]);
+         opts.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+      }//end for
+      System.setProperty("cafe.notify.enabled", "false");
+
+      Class.forName ("org.postgresql.Driver").newInstance ();
+      Cafe esql = new Cafe (args[0], args[1], args[2], "");
+      try{
+         SchemaMigrator migrator = new SchemaMigrator(esql, Integer.parseInt(opts.get("batch")),
+            Long.parseLong(opts.get("pauseMs")));
+         int applied = migrator.migrate();
+         if (Boolean.parseBoolean(opts.get("compact")))
+            migrator.compact();
+         System.out.println(applied == 0
+            ? "Schema is up to date at version " + migrator.currentVersion()
+            : applied + " migration(s) applied, now at version " + migrator.currentVersion());
+         // after migrating, so a failure to print never holds migrations back
+         if (Boolean.parseBoolean(opts.get("sizes")))
+            printSizes(esql);
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+}//end SchemaMigrator
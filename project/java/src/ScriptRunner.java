@@ -0,0 +1,349 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Headless driver for Cafe: runs scripts of named operations instead of the
+ * interactive menu, e.g. to replay a day of traffic or serve a kiosk.
+ *
+ * A script holds one operation per line, arguments separated by blanks and
+ * double-quoted when they contain blanks; empty lines and lines starting
+ * with # are skipped:
+ *
+ *   create_user <login> <password> <phone>
+ *   login <login> <password>
+ *   logout
+ *   place_order <item>[*<qty>] ...         (logged in) e.g. Latte*2 Donut
+ *   update_status <orderid> <status>       (Employee or Manager)
+ *   mark_paid <orderid>                    (Employee or Manager)
+ *   discount <orderid> <item> <amount>     (Employee or Manager) unpaid only
+ *   order_history [<page size>]            (logged in) latest orders
+ *   order_history_older                    next page of the last history
+ *   order_history_newer                    previous page of the last history
+ *   stats                                  latency, row and error counters
+ *
+ * Every operation produces one JSON line on the output carrying the stream
+ * name, line number, operation, outcome, elapsed milliseconds and result.
+ * Each script runs on its own thread with its own login, all sharing the
+ * one Cafe instance and its connection pool; once all have finished a
+ * summary line per operation is written.
+ *
+ */
+public class ScriptRunner {
+
+   private final Cafe esql;
+   private final PrintStream out;
+   // operation -> { count, errors, total nanos, max nanos }
+   private final Map<String, long[]> totals = new TreeMap<String, long[]>();
+
+   public ScriptRunner(Cafe esql, PrintStream out) {
+      this.esql = esql;
+      this.out = out;
+   }//end ScriptRunner
+
+   /**
+    * Runs every script concurrently and waits for all of them.
+    *
+    * @param scripts file names, - for standard input
+    */
+   public void run(List<String> scripts) {
+      List<Thread> threads = new ArrayList<Thread>();
+      for (final String script : scripts){
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               runStream(script);
+            }
+         }, "script-" + script);
+         threads.add(t);
+         t.start();
+      }//end for
+      for (Thread t : threads){
+         try{
+            t.join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+         }//end try
+      }//end for
+      summarize();
+   }//end run
+
+   private void runStream(String script) {
+      BufferedReader reader = null;
+      try{
+         reader = script.equals("-")
+            ? new BufferedReader(new InputStreamReader(System.in))
+            : new BufferedReader(new FileReader(script));
+         Session session = new Session();
+         String line;
+         int lineNo = 0;
+         while ((line = reader.readLine()) != null){
+            ++lineNo;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+               continue;
+            execute(script, lineNo, tokenize(line), session);
+         }//end while
+      }catch (IOException e){
+         emit(script, 0, "open", false, 0, null, e.getMessage());
+      }finally{
+         if (reader != null && !script.equals("-")){
+            try{
+               reader.close();
+            }catch (IOException e){
+               // ignored.
+            }//end try
+         }//end if
+      }//end try
+   }//end runStream
+
+   /*
+    * The login of one script stream.
+    */
+   static class Session {
+      // token of the Cafe session, null when logged out
+      String token = null;
+      OrderHistory history = null;
+      OrderHistory.Page page = null;
+   }//end Session
+
+   private void execute(String stream, int lineNo, List<String> tokens, Session session) {
+      String op = tokens.get(0);
+      List<String> args = tokens.subList(1, tokens.size());
+      long start = System.nanoTime();
+      String result = null;
+      String error = null;
+      try{
+         result = dispatch(op, args, session);
+      }catch (Exception e){
+         error = e.getMessage() == null ? e.toString() : e.getMessage();
+      }//end try
+      long nanos = System.nanoTime() - start;
+      record(op, nanos, error == null);
+      emit(stream, lineNo, op, error == null, nanos, result, error);
+   }//end execute
+
+   /*
+    * Runs one operation and returns its result as a JSON value.
+    */
+   private String dispatch(String op, List<String> args, Session session) throws Exception {
+      if (op.equals("create_user")){
+         expect(op, args, 3);
+         this.esql.createUser(args.get(0), args.get(1), args.get(2));
+         return "{\"login\":" + quote(args.get(0)) + "}";
+      }else if (op.equals("login")){
+         expect(op, args, 2);
+         UserSession user = this.esql.login(args.get(0), args.get(1));
+         if (user == null)
+            throw new IllegalArgumentException("invalid login or password");
+         this.esql.logout(session.token);
+         session.token = user.token;
+         session.history = null;
+         session.page = null;
+         return "{\"login\":" + quote(user.login) + ",\"type\":" + quote(user.role) + "}";
+      }else if (op.equals("logout")){
+         expect(op, args, 0);
+         this.esql.logout(session.token);
+         session.token = null;
+         session.history = null;
+         session.page = null;
+         return "{}";
+      }else if (op.equals("place_order")){
+         UserSession user = requireLogin(session);
+         if (args.isEmpty())
+            throw new IllegalArgumentException("usage: place_order <item>[*<quantity>] ...");
+         List<OrderPlacement.Line> lines = new ArrayList<OrderPlacement.Line>(args.size());
+         for (String arg : args)
+            lines.add(line(arg));
+         OrderPlacement.Receipt receipt = this.esql.placeOrderLines(user.login, lines);
+         return "{\"orderid\":" + receipt.orderId + ",\"total\":" + Money.format(receipt.total) +
+                ",\"items\":" + receipt.lines.size() + "}";
+      }else if (op.equals("update_status")){
+         requireStaff(session);
+         expect(op, args, 2);
+         int rows = this.esql.updateOrderStatus(Integer.parseInt(args.get(0)), args.get(1));
+         if (rows == 0)
+            throw new IllegalArgumentException("order " + args.get(0) + " not found");
+         return "{\"items\":" + rows + "}";
+      }else if (op.equals("mark_paid")){
+         requireStaff(session);
+         expect(op, args, 1);
+         if (!this.esql.markOrderPaid(Integer.parseInt(args.get(0))))
+            throw new IllegalArgumentException("order " + args.get(0) + " not found");
+         return "{}";
+      }else if (op.equals("discount")){
+         requireStaff(session);
+         expect(op, args, 3);
+         long total = this.esql.discountOrderItem(Integer.parseInt(args.get(0)), args.get(1),
+                                                  Money.parse(args.get(2)));
+         return "{\"total\":" + Money.format(total) + "}";
+      }else if (op.equals("order_history")){
+         UserSession user = requireLogin(session);
+         if (args.size() > 1)
+            throw new IllegalArgumentException("usage: order_history [<page size>]");
+         int size = args.isEmpty() ? OrderHistory.DEFAULT_PAGE_SIZE : Integer.parseInt(args.get(0));
+         session.history = this.esql.orderHistory(user.login, null, size);
+         session.page = session.history.latest();
+         return page(session.page);
+      }else if (op.equals("order_history_older") || op.equals("order_history_newer")){
+         requireLogin(session);
+         expect(op, args, 0);
+         if (session.history == null)
+            throw new IllegalStateException("no order_history to page through");
+         session.page = op.endsWith("older")
+            ? session.history.older(session.page)
+            : session.history.newer(session.page);
+         return page(session.page);
+      }else if (op.equals("stats")){
+         expect(op, args, 0);
+         return this.esql.metrics().json();
+      }//end if
+      throw new IllegalArgumentException("unknown operation " + op);
+   }//end dispatch
+
+   private static String page(OrderHistory.Page page) {
+      StringBuilder sb = new StringBuilder("{\"orders\":[");
+      for (int i = 0; i < page.orders.size(); ++i){
+         OrderHistory.Order o = page.orders.get(i);
+         sb.append(i == 0 ? "" : ",")
+           .append("{\"orderid\":").append(o.orderId)
+           .append(",\"paid\":").append(o.paid)
+           .append(",\"placed\":").append(quote(o.placedAt.toString()))
+           .append(",\"total\":").append(Money.format(o.total)).append('}');
+      }//end for
+      return sb.append("],\"has_older\":").append(page.hasOlder)
+               .append(",\"has_newer\":").append(page.hasNewer).append('}').toString();
+   }//end page
+
+   /*
+    * Reads item or item*quantity.
+    */
+   private static OrderPlacement.Line line(String arg) {
+      int star = arg.lastIndexOf('*');
+      if (star > 0 && star < arg.length() - 1){
+         String quantity = arg.substring(star + 1);
+         boolean digits = true;
+         for (int i = 0; i < quantity.length(); ++i)
+            digits &= Character.isDigit(quantity.charAt(i));
+         if (digits)
+            return new OrderPlacement.Line(arg.substring(0, star), Integer.parseInt(quantity), 0);
+      }//end if
+      return new OrderPlacement.Line(arg, 1, 0);
+   }//end line
+
+   private static void expect(String op, List<String> args, int n) {
+      if (args.size() != n)
+         throw new IllegalArgumentException(op + " takes " + n + " argument(s), got " + args.size());
+   }
+
+   private UserSession requireLogin(Session session) {
+      UserSession user = this.esql.session(session.token);
+      if (user == null)
+         throw new IllegalStateException(session.token == null ? "not logged in" : "session ended, log in again");
+      return user;
+   }
+
+   private UserSession requireStaff(Session session) {
+      UserSession user = requireLogin(session);
+      if (!user.isStaff())
+         throw new IllegalStateException("operation requires an Employee or Manager");
+      return user;
+   }
+
+   private synchronized void record(String op, long nanos, boolean ok) {
+      long[] t = this.totals.get(op);
+      if (t == null){
+         t = new long[4];
+         this.totals.put(op, t);
+      }//end if
+      t[0]++;
+      if (!ok)
+         t[1]++;
+      t[2] += nanos;
+      t[3] = Math.max(t[3], nanos);
+   }//end record
+
+   private synchronized void emit(String stream, int lineNo, String op, boolean ok,
+                                  long nanos, String result, String error) {
+      StringBuilder sb = new StringBuilder(128);
+      sb.append("{\"stream\":").append(quote(stream))
+        .append(",\"line\":").append(lineNo)
+        .append(",\"op\":").append(quote(op))
+        .append(",\"ok\":").append(ok)
+        .append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+      if (result != null)
+         sb.append(",\"result\":").append(result);
+      if (error != null)
+         sb.append(",\"error\":").append(quote(error));
+      sb.append('}');
+      this.out.println(sb);
+   }//end emit
+
+   private synchronized void summarize() {
+      for (Map.Entry<String, long[]> e : this.totals.entrySet()){
+         long[] t = e.getValue();
+         this.out.println(String.format(Locale.ROOT,
+            "{\"summary\":%s,\"count\":%d,\"errors\":%d,\"mean_ms\":%.3f,\"max_ms\":%.3f}",
+            quote(e.getKey()), t[0], t[1], t[2] / 1e6 / t[0], t[3] / 1e6));
+      }//end for
+      this.out.flush();
+   }//end summarize
+
+   /*
+    * Splits a line on blanks, keeping double-quoted runs together.
+    */
+   static List<String> tokenize(String line) {
+      List<String> tokens = new ArrayList<String>();
+      StringBuilder cur = new StringBuilder();
+      boolean quoted = false;
+      boolean any = false;
+      for (int i = 0; i < line.length(); ++i){
+         char c = line.charAt(i);
+         if (c == '"'){
+            quoted = !quoted;
+            any = true;
+         }else if (!quoted && Character.isWhitespace(c)){
+            if (any)
+               tokens.add(cur.toString());
+            cur.setLength(0);
+            any = false;
+         }else{
+            cur.append(c);
+            any = true;
+         }//end if
+      }//end for
+      if (any)
+         tokens.add(cur.toString());
+      return tokens;
+   }//end tokenize
+
+   static String quote(String s) {
+      if (s == null)
+         return "null";
+      StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+      for (int i = 0; i < s.length(); ++i){
+         char c = s.charAt(i);
+         switch (c){
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  sb.append(String.format("\\u%04x", (int) c));
+               else
+                  sb.append(c);
+         }//end switch
+      }//end for
+      return sb.append('"').toString();
+   }//end quote
+
+}//end ScriptRunner
@@ -0,0 +1,107 @@
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory table of open sessions keyed by an unguessable token.
+ *
+ * A session lives ttlMillis from its last use. Privilege checks read the
+ * role from here instead of querying Users again; when a role changes,
+ * closeUser() ends every session of that login so the new role applies at
+ * the next login.
+ *
+ */
+public class SessionStore {
+
+   // expired sessions are swept on every this many opens
+   private static final int SWEEP_EVERY = 256;
+
+   private final ConcurrentHashMap<String, UserSession> sessions = new ConcurrentHashMap<String, UserSession>();
+   private final SecureRandom random = new SecureRandom();
+   private final AtomicInteger opens = new AtomicInteger();
+   private final long ttlMillis;
+
+   public SessionStore(long ttlMillis) {
+      this.ttlMillis = ttlMillis;
+   }//end SessionStore
+
+   /**
+    * @param login the authenticated login
+    * @param role its role
+    * @return a new session
+    */
+   public UserSession open(String login, String role) {
+      if (this.opens.incrementAndGet() % SWEEP_EVERY == 0)
+         sweep();
+      byte[] bytes = new byte[16];
+      this.random.nextBytes(bytes);
+      StringBuilder token = new StringBuilder(32);
+      for (byte b : bytes)
+         token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      UserSession s = new UserSession(token.toString(), login, role, System.currentTimeMillis() + this.ttlMillis);
+      this.sessions.put(s.token, s);
+      return s;
+   }//end open
+
+   /**
+    * Looks a session up and extends its life.
+    *
+    * @param token the session token, may be null
+    * @return the session, or null if unknown, closed or expired
+    */
+   public UserSession get(String token) {
+      if (token == null)
+         return null;
+      UserSession s = this.sessions.get(token);
+      if (s == null)
+         return null;
+      long now = System.currentTimeMillis();
+      if (s.isExpired(now)){
+         this.sessions.remove(token, s);
+         return null;
+      }//end if
+      s.extend(now + this.ttlMillis);
+      return s;
+   }//end get
+
+   /**
+    * @param token the session to end, may be null
+    */
+   public void close(String token) {
+      if (token != null)
+         this.sessions.remove(token);
+   }//end close
+
+   /**
+    * Ends every session of login.
+    *
+    * @return the number of sessions ended
+    */
+   public int closeUser(String login) {
+      String key = login.trim();
+      int closed = 0;
+      for (Iterator<UserSession> it = this.sessions.values().iterator(); it.hasNext(); ){
+         if (it.next().login.equals(key)){
+            it.remove();
+            ++closed;
+         }//end if
+      }//end for
+      return closed;
+   }//end closeUser
+
+   /**
+    * @return the number of sessions held, expired ones included until swept
+    */
+   public int size() {
+      return this.sessions.size();
+   }
+
+   private void sweep() {
+      long now = System.currentTimeMillis();
+      for (Iterator<UserSession> it = this.sessions.values().iterator(); it.hasNext(); )
+         if (it.next().isExpired(now))
+            it.remove();
+   }//end sweep
+
+}//end SessionStore
@@ -0,0 +1,316 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Log of the statements that ran longer than a threshold, written as one
+ * JSON line per statement to a local file rotated by size.
+ *
+ * Each entry carries the SQL shape (see Metrics.shape), the bind values,
+ * the duration, the rows returned or changed and whether it failed. Values
+ * bound to a password column are written as "***".
+ *
+ * A sampled share of the slow SELECTs is also run again under
+ * EXPLAIN (ANALYZE, BUFFERS), at most once per shape per explainMillis, and
+ * the plan is appended as its own entry. Plans are captured on a daemon
+ * thread with a connection of its own, in a transaction that is rolled
+ * back, so the statement that was slow is not held up. Statements binding
+ * a password are never explained, since a plan shows its filter values.
+ *
+ */
+public class SlowQueryLog {
+
+   // longest bind value written, longer ones are cut
+   private static final int VALUE_LENGTH = 100;
+   // most plans waiting to be captured; more are dropped
+   private static final int EXPLAIN_QUEUE = 16;
+
+   // a ? preceded by password = or password <>
+   private static final Pattern PASSWORD_COMPARE =
+      Pattern.compile("(?i)password\\s*(=|<>|!=)\\s*$");
+   // INSERT INTO t (c1, c2, ...) VALUES (
+   private static final Pattern INSERT =
+      Pattern.compile("(?is)^\\s*INSERT\\s+INTO\\s+\\S+\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\(");
+
+   private final Cafe esql;
+   private final File file;
+   private final long thresholdNanos;
+   private final double explainSample;
+   private final long explainMillis;
+   private final long maxBytes;
+   private final int keep;
+
+   // shape -> when its plan was last queued
+   private final Map<String, Long> explained = new ConcurrentHashMap<String, Long>();
+   private final BlockingQueue<Object[]> explainQueue = new ArrayBlockingQueue<Object[]>(EXPLAIN_QUEUE);
+
+   // guarded by this
+   private OutputStream out = null;
+   private long size = 0;
+   private Thread explainer = null;
+   private volatile boolean running = true;
+
+   /**
+    * @param esql the database, for capturing plans
+    * @param file where to log
+    * @param thresholdMillis log statements running at least this long, negative to log none
+    * @param explainSample share of the slow SELECTs to explain, between 0 and 1
+    * @param explainMillis least time between two plans of the same shape
+    * @param maxBytes size at which the file is rotated
+    * @param keep rotated files kept, as file.1 (newest) to file.keep
+    */
+   public SlowQueryLog(Cafe esql, File file, long thresholdMillis, double explainSample,
+                       long explainMillis, long maxBytes, int keep) {
+      this.esql = esql;
+      this.file = file;
+      this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000L;
+      this.explainSample = explainSample;
+      this.explainMillis = explainMillis;
+      this.maxBytes = maxBytes;
+      this.keep = keep;
+   }//end SlowQueryLog
+
+   /**
+    * Logs sql if it ran for at least the threshold. Cheap when it did not.
+    *
+    * @param sql the statement as prepared
+    * @param params its bind values
+    * @param nanos how long it ran
+    * @param rows rows returned or changed, negative if it failed
+    */
+   public void statement(String sql, Object[] params, long nanos, long rows) {
+      if (nanos < this.thresholdNanos)
+         return;
+      boolean[] secret = secretParams(sql, params.length);
+      String shape = Metrics.shape(sql);
+
+      StringBuilder sb = new StringBuilder(256);
+      sb.append("{\"at\":").append(ScriptRunner.quote(new Timestamp(System.currentTimeMillis()).toString()))
+        .append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6))
+        .append(",\"rows\":").append(rows)
+        .append(",\"ok\":").append(rows >= 0)
+        .append(",\"thread\":").append(ScriptRunner.quote(Thread.currentThread().getName()))
+        .append(",\"sql\":").append(ScriptRunner.quote(shape))
+        .append(",\"params\":");
+      appendParams(params, secret, sb);
+      sb.append('}');
+      write(sb.toString());
+
+      if (rows >= 0 && !anySet(secret) && isSelect(sql) && sampled(shape)){
+         if (this.explainQueue.offer(new Object[] { sql, params.clone(), shape }))
+            startExplainer();
+      }//end if
+   }//end statement
+
+   /*
+    * Marks the bind values that go to a password column: those compared
+    * with password, and the one in the password position of an
+    * INSERT ... (columns) VALUES (?, ...).
+    */
+   static boolean[] secretParams(String sql, int count) {
+      boolean[] secret = new boolean[count];
+      if (count == 0 || sql.toLowerCase(Locale.ROOT).indexOf("password") < 0)
+         return secret;
+
+      Matcher insert = INSERT.matcher(sql);
+      if (insert.find()){
+         String[] columns = insert.group(1).split(",");
+         for (int i = 0; i < columns.length && i < count; ++i)
+            secret[i] = columns[i].trim().equalsIgnoreCase("password");
+      }//end if
+
+      int n = 0;
+      for (int i = 0; i < sql.length() && n < count; ++i){
+         char c = sql.charAt(i);
+         if (c == '\''){
+            // skip string literals, '' is an escaped quote
+            for (++i; i < sql.length() && sql.charAt(i) != '\''; ++i)
+               ;
+         }else if (c == '?'){
+            if (PASSWORD_COMPARE.matcher(sql.substring(Math.max(0, i - 40), i)).find())
+               secret[n] = true;
+            ++n;
+         }//end if
+      }//end for
+      return secret;
+   }//end secretParams
+
+   private static boolean anySet(boolean[] flags) {
+      for (boolean f : flags)
+         if (f)
+            return true;
+      return false;
+   }
+
+   private static boolean isSelect(String sql) {
+      String s = sql.trim();
+      return s.regionMatches(true, 0, "SELECT", 0, 6) && s.toLowerCase(Locale.ROOT).indexOf("nextval") < 0;
+   }
+
+   private boolean sampled(String shape) {
+      if (this.explainSample <= 0 || ThreadLocalRandom.current().nextDouble() >= this.explainSample)
+         return false;
+      long now = System.currentTimeMillis();
+      Long last = this.explained.get(shape);
+      if (last != null && now - last < this.explainMillis)
+         return false;
+      this.explained.put(shape, now);
+      return true;
+   }//end sampled
+
+   private static void appendParams(Object[] params, boolean[] secret, StringBuilder sb) {
+      sb.append('[');
+      for (int i = 0; i < params.length; ++i){
+         sb.append(i == 0 ? "" : ",");
+         Object p = params[i];
+         if (secret[i])
+            sb.append("\"***\"");
+         else if (p == null)
+            sb.append("null");
+         else if (p instanceof Number || p instanceof Boolean)
+            sb.append(p);
+         else{
+            String v = p.toString();
+            sb.append(ScriptRunner.quote(v.length() > VALUE_LENGTH ? v.substring(0, VALUE_LENGTH) + "..." : v));
+         }//end if
+      }//end for
+      sb.append(']');
+   }//end appendParams
+
+   private synchronized void startExplainer() {
+      if (this.explainer != null || !this.running)
+         return;
+      this.explainer = new Thread(new Runnable() {
+         public void run() {
+            while (running){
+               Object[] job;
+               try{
+                  job = explainQueue.take();
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+               explain((String) job[0], (Object[]) job[1], (String) job[2]);
+            }//end while
+         }
+      }, "cafe-slow-query-explain");
+      this.explainer.setDaemon(true);
+      this.explainer.start();
+   }//end startExplainer
+
+   /*
+    * Runs sql under EXPLAIN (ANALYZE, BUFFERS) and logs the plan. Called on
+    * the explain thread, which holds no transaction, so borrow() hands it a
+    * connection of its own.
+    */
+   private void explain(String sql, Object[] params, String shape) {
+      String body = sql.trim();
+      if (body.endsWith(";"))
+         body = body.substring(0, body.length() - 1);
+      List<String> plan = new ArrayList<String>();
+      String error = null;
+      String explain = "EXPLAIN (ANALYZE, BUFFERS) " + body;
+      PooledConnection conn = null;
+      ResultSet rs = null;
+      try{
+         conn = this.esql.borrow();
+         // ANALYZE runs the statement; keep whatever it does uncommitted
+         conn.getConnection().setAutoCommit(false);
+         rs = Cafe.prepare(conn, explain, params).executeQuery();
+         while (rs.next())
+            plan.add(rs.getString(1));
+      }catch (SQLException e){
+         error = (conn == null ? e : Cafe.failed(conn, explain, e)).getMessage();
+      }finally{
+         if (rs != null){
+            try{
+               rs.close();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end if
+         // release() rolls the transaction back
+         this.esql.release(conn);
+      }//end try
+
+      StringBuilder sb = new StringBuilder(512);
+      sb.append("{\"at\":").append(ScriptRunner.quote(new Timestamp(System.currentTimeMillis()).toString()))
+        .append(",\"explain\":").append(ScriptRunner.quote(shape))
+        .append(",\"params\":");
+      appendParams(params, new boolean[params.length], sb);
+      if (error != null){
+         sb.append(",\"error\":").append(ScriptRunner.quote(error));
+      }else{
+         sb.append(",\"plan\":[");
+         for (int i = 0; i < plan.size(); ++i)
+            sb.append(i == 0 ? "" : ",").append(ScriptRunner.quote(plan.get(i)));
+         sb.append(']');
+      }//end if
+      write(sb.append('}').toString());
+   }//end explain
+
+   /*
+    * Appends one line, rotating the file first when it is full.
+    */
+   private synchronized void write(String line) {
+      try{
+         if (this.out == null){
+            this.out = new FileOutputStream(this.file, true);
+            this.size = this.file.length();
+         }//end if
+         if (this.size >= this.maxBytes)
+            rotate();
+         byte[] bytes = (line + "\n").getBytes("UTF-8");
+         this.out.write(bytes);
+         this.out.flush();
+         this.size += bytes.length;
+      }catch (IOException e){
+         System.err.println("Slow query log " + this.file + " failed: " + e.getMessage());
+      }//end try
+   }//end write
+
+   private void rotate() throws IOException {
+      this.out.close();
+      this.out = null;
+      new File(this.file.getPath() + "." + this.keep).delete();
+      for (int i = this.keep - 1; i >= 1; --i)
+         new File(this.file.getPath() + "." + i).renameTo(new File(this.file.getPath() + "." + (i + 1)));
+      if (this.keep > 0)
+         this.file.renameTo(new File(this.file.getPath() + ".1"));
+      else
+         this.file.delete();
+      this.out = new FileOutputStream(this.file, true);
+      this.size = 0;
+   }//end rotate
+
+   /**
+    * Stops the explain thread and closes the file.
+    */
+   public synchronized void close() {
+      this.running = false;
+      if (this.explainer != null)
+         this.explainer.interrupt();
+      if (this.out != null){
+         try{
+            this.out.close();
+         }catch (IOException e){
+            // ignored.
+         }//end try
+         this.out = null;
+      }//end if
+   }//end close
+
+}//end SlowQueryLog
@@ -0,0 +1,147 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A least-recently-used cache of PreparedStatements belonging to one
+ * physical connection, keyed by SQL text.
+ *
+ * A SELECT, INSERT, UPDATE or DELETE that has been executed
+ * prepareThreshold times is switched to a server-side prepare, so Postgres
+ * parses and plans it once and reuses the plan for every later execution on
+ * this connection. Other statements (LOCK, SET, VACUUM, DDL ...) are never
+ * switched: the driver sends PREPARE ... AS <sql> without looking at the
+ * statement, which Postgres rejects for them. Statements handed out
+ * by the cache stay owned by it: callers close their ResultSets but never
+ * the statement itself.
+ *
+ * Hit/miss counters are shared by every cache in the JVM.
+ *
+ */
+public class StatementCache {
+
+   private static final AtomicLong hits = new AtomicLong();
+   private static final AtomicLong misses = new AtomicLong();
+   private static final AtomicLong evictions = new AtomicLong();
+   private static final AtomicLong serverPrepares = new AtomicLong();
+
+   private final Connection _connection;
+   private final int prepareThreshold;
+   private final LinkedHashMap<String, Cached> statements;
+
+   private static class Cached {
+      final PreparedStatement stmt;
+      // true when the statement may be prepared server-side
+      final boolean preparable;
+      int uses = 0;
+
+      Cached(PreparedStatement stmt, boolean preparable) {
+         this.stmt = stmt;
+         this.preparable = preparable;
+      }
+   }//end Cached
+
+   /**
+    * @param connection the connection statements are prepared on
+    * @param capacity maximum number of statements kept open
+    * @param prepareThreshold executions after which a statement is prepared server-side
+    */
+   public StatementCache(Connection connection, final int capacity, int prepareThreshold) {
+      this._connection = connection;
+      this.prepareThreshold = prepareThreshold;
+      this.statements = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            if (size() <= capacity)
+               return false;
+            ConnectionPool.closeQuietly(eldest.getValue().stmt);
+            evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for sql, preparing it on a miss.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return an open statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      Cached entry = this.statements.get(sql);
+      if (entry == null){
+         misses.incrementAndGet();
+         entry = new Cached(this._connection.prepareStatement(sql), preparable(sql));
+         this.statements.put(sql, entry);
+      }else{
+         hits.incrementAndGet();
+         entry.stmt.clearParameters();
+      }//end if
+
+      if (++entry.uses == this.prepareThreshold && entry.preparable && entry.stmt instanceof PGStatement){
+         ((PGStatement) entry.stmt).setUseServerPrepare(true);
+         serverPrepares.incrementAndGet();
+      }//end if
+      return entry.stmt;
+   }//end prepare
+
+   /**
+    * @param sql the SQL template
+    * @return true when sql is a SELECT, INSERT, UPDATE or DELETE, the
+    *         statements PREPARE accepts
+    */
+   static boolean preparable(String sql) {
+      int start = 0;
+      while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '('))
+         ++start;
+      int end = start;
+      while (end < sql.length() && Character.isLetter(sql.charAt(end)))
+         ++end;
+      String verb = sql.substring(start, end);
+      return verb.equalsIgnoreCase("SELECT") || verb.equalsIgnoreCase("INSERT")
+         || verb.equalsIgnoreCase("UPDATE") || verb.equalsIgnoreCase("DELETE");
+   }//end preparable
+
+   /**
+    * Drops and closes the statement cached for sql, e.g. after it failed.
+    *
+    * @param sql the SQL template
+    */
+   public void invalidate(String sql) {
+      Cached entry = this.statements.remove(sql);
+      if (entry != null)
+         ConnectionPool.closeQuietly(entry.stmt);
+   }//end invalidate
+
+   /**
+    * Closes every cached statement.
+    */
+   public void closeAll() {
+      Iterator<Cached> it = this.statements.values().iterator();
+      while (it.hasNext()){
+         ConnectionPool.closeQuietly(it.next().stmt);
+         it.remove();
+      }//end while
+   }//end closeAll
+
+   /**
+    * @return a one-line summary of the JVM-wide cache counters
+    */
+   public static String stats() {
+      long h = hits.get();
+      long m = misses.get();
+      return String.format(
+         "statements: hits=%d misses=%d hitRate=%.1f%% evictions=%d serverPrepared=%d",
+         h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions.get(), serverPrepares.get());
+   }//end stats
+
+   public static long getHitCount() { return hits.get(); }
+   public static long getMissCount() { return misses.get(); }
+
+}//end StatementCache
@@ -0,0 +1,47 @@
+/**
+ * An authenticated login: who it is, what role it has and until when it is
+ * valid. Sessions are handed out and looked up by SessionStore.
+ *
+ */
+public class UserSession {
+
+   public final String token;
+   public final String login;
+   // Customer, Employee or Manager
+   public final String role;
+   private volatile long expiresAt;
+
+   UserSession(String token, String login, String role, long expiresAt) {
+      this.token = token;
+      this.login = login;
+      this.role = role;
+      this.expiresAt = expiresAt;
+   }//end UserSession
+
+   public boolean isManager() {
+      return this.role.equals("Manager");
+   }
+
+   /**
+    * @return true for Employees and Managers
+    */
+   public boolean isStaff() {
+      return !this.role.equals("Customer");
+   }
+
+   /**
+    * @return the time, in epoch milliseconds, the session expires at unless used again
+    */
+   public long getExpiresAt() {
+      return this.expiresAt;
+   }
+
+   boolean isExpired(long now) {
+      return now >= this.expiresAt;
+   }
+
+   void extend(long expiresAt) {
+      this.expiresAt = expiresAt;
+   }
+
+}//end UserSession
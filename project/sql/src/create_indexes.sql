@@ -5,3 +5,19 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX index3
+ON UserFavorites
+( itemName, login );
+
+CREATE INDEX index4
+ON Orders
+( login, timeStampRecieved, orderid );
+
+CREATE INDEX index5
+ON ItemStatus
+( status, lastUpdated, orderid, itemName );
+
+CREATE INDEX index6
+ON ItemStatus
+( lastUpdated, orderid, itemName );
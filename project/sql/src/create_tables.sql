@@ -2,37 +2,124 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE UserFavorites;
+DROP TABLE schema_version;
+DROP TABLE SalesHourly;
+DROP TABLE SalesItemDaily;
 
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(50) NOT NULL,
+	favItems text,
+	type varchar(8) NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
-	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
+	price numeric(10,2) NOT NULL,
+	description text,
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
+-- Orders and ItemStatus are partitioned by month, ItemStatus on the time
+-- of its order, so an order and its items always sit in the same month.
+-- A key of a partitioned table must hold the partition column, so the keys
+-- carry the order time and orderid is kept unique across partitions by the
+-- orders_unique_orderid triggers of create_triggers.sql. New orders take
+-- their id from orders_orderid_seq; loads with ids of their own (BulkLoader,
+-- load_data.sql) move the sequence past the largest id loaded. The
+-- partitions are created by create_month_partitions below and archived by
+-- PartitionMaintenance.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	orderid serial NOT NULL,
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
-	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	total numeric(10,2) NOT NULL,
+	PRIMARY KEY(orderid,timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
 
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
-	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	status varchar(20), 
+	comments varchar(130), 
+	quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
+	discount numeric(10,2) NOT NULL DEFAULT 0 CHECK (discount >= 0),
+	unitPrice numeric(10,2) NOT NULL,
+	orderTime timestamp NOT NULL,
+	CONSTRAINT itemstatus_discount_max CHECK (discount <= unitPrice * quantity),
+	PRIMARY KEY(orderid,orderTime,itemName),
+	FOREIGN KEY(orderid,orderTime) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+	PARTITION BY RANGE (orderTime);
+
+CREATE TABLE UserFavorites(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE ON UPDATE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON DELETE CASCADE ON UPDATE CASCADE);
+
+-- sales rollups, kept up to date by the transactions that change orders;
+-- see SalesRollup
+CREATE TABLE SalesHourly(
+	hour timestamp NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(14,2) NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue numeric(14,2) NOT NULL,
+	PRIMARY KEY(hour));
+
+CREATE TABLE SalesItemDaily(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	units bigint NOT NULL,
+	revenue numeric(14,2) NOT NULL,
+	PRIMARY KEY(day,itemName));
+
+-- Creates the missing monthly partitions of Orders and ItemStatus for every
+-- month from the one holding since up to until, and returns how many pairs
+-- it created. A month already covered by another partition (orders_legacy,
+-- see SchemaMigrator) is skipped.
+CREATE OR REPLACE FUNCTION create_month_partitions(since timestamp, until timestamp) RETURNS integer AS $$
+DECLARE
+	m timestamp := date_trunc('month', since);
+	created integer := 0;
+BEGIN
+	WHILE m < until LOOP
+		IF to_regclass('orders_' || to_char(m, '"y"YYYY"m"MM')) IS NULL THEN
+			BEGIN
+				EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+					'orders_' || to_char(m, '"y"YYYY"m"MM'), m, m + interval '1 month');
+				EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+					'itemstatus_' || to_char(m, '"y"YYYY"m"MM'), m, m + interval '1 month');
+				created := created + 1;
+			EXCEPTION WHEN invalid_object_definition OR duplicate_table THEN
+				-- overlaps an existing partition, or created meanwhile
+			END;
+		END IF;
+		m := m + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT create_month_partitions(now(), now() + interval '3 months');
+
+-- schema versions applied; see SchemaMigrator. Tables created by this file
+-- are at the latest version.
+CREATE TABLE schema_version(
+	version integer NOT NULL,
+	description text NOT NULL,
+	appliedAt timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(version));
+
+INSERT INTO schema_version (version, description) VALUES (1, 'char(n) columns to varchar and text');
+INSERT INTO schema_version (version, description) VALUES (2, 'real prices and totals to numeric(10,2)');
+INSERT INTO schema_version (version, description) VALUES (3, 'quantity, discount and unit price per order item');
+INSERT INTO schema_version (version, description) VALUES (4, 'sales rollup tables');
+INSERT INTO schema_version (version, description) VALUES (5, 'Orders and ItemStatus partitioned by month');
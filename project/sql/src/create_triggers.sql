@@ -0,0 +1,85 @@
+CREATE OR REPLACE FUNCTION menu_notify()
+RETURNS trigger AS $$
+BEGIN
+	NOTIFY menu_changed;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS menu_changed ON Menu;
+CREATE TRIGGER menu_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Menu
+FOR EACH STATEMENT EXECUTE PROCEDURE menu_notify();
+
+CREATE OR REPLACE FUNCTION itemstatus_notify()
+RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' OR TG_OP = 'TRUNCATE' THEN
+		NOTIFY itemstatus_deleted;
+	ELSE
+		NOTIFY itemstatus_changed;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS itemstatus_changed ON ItemStatus;
+CREATE TRIGGER itemstatus_changed
+AFTER INSERT OR UPDATE ON ItemStatus
+FOR EACH STATEMENT EXECUTE PROCEDURE itemstatus_notify();
+
+DROP TRIGGER IF EXISTS itemstatus_deleted ON ItemStatus;
+CREATE TRIGGER itemstatus_deleted
+AFTER DELETE OR TRUNCATE ON ItemStatus
+FOR EACH STATEMENT EXECUTE PROCEDURE itemstatus_notify();
+
+-- an item inserted without a unit price is sold at the current menu price
+CREATE OR REPLACE FUNCTION itemstatus_unit_price()
+RETURNS trigger AS $$
+BEGIN
+	IF NEW.unitPrice IS NULL THEN
+		SELECT price INTO NEW.unitPrice FROM Menu WHERE itemName = NEW.itemName;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS itemstatus_unit_price ON ItemStatus;
+CREATE TRIGGER itemstatus_unit_price
+BEFORE INSERT ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE itemstatus_unit_price();
+
+-- the keys of the partitioned Orders carry the order time, so no index
+-- keeps orderid unique across partitions: a statement that inserts orders,
+-- or changes the id of one, fails if an id is then held by two orders. Each
+-- id is probed on its own, through the keys, whatever the size of the load
+CREATE OR REPLACE FUNCTION orders_unique_orderid()
+RETURNS trigger AS $$
+DECLARE
+	dup integer;
+BEGIN
+	IF TG_LEVEL = 'ROW' THEN
+		IF (SELECT count(*) FROM Orders WHERE orderid = NEW.orderid) > 1 THEN
+			dup := NEW.orderid;
+		END IF;
+	ELSE
+		SELECT c.orderid INTO dup FROM added c
+		WHERE (SELECT count(*) FROM Orders o WHERE o.orderid = c.orderid) > 1 LIMIT 1;
+	END IF;
+	IF dup IS NOT NULL THEN
+		RAISE EXCEPTION 'orderid % is held by more than one order', dup USING ERRCODE = 'unique_violation';
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS orders_orderid_inserted ON Orders;
+CREATE TRIGGER orders_orderid_inserted
+AFTER INSERT ON Orders REFERENCING NEW TABLE AS added
+FOR EACH STATEMENT EXECUTE PROCEDURE orders_unique_orderid();
+
+DROP TRIGGER IF EXISTS orders_orderid_updated ON Orders;
+CREATE TRIGGER orders_orderid_updated
+AFTER UPDATE OF orderid ON Orders
+FOR EACH ROW WHEN (OLD.orderid IS DISTINCT FROM NEW.orderid)
+EXECUTE PROCEDURE orders_unique_orderid();
@@ -1,17 +1,52 @@
-COPY MENU
+COPY MENU (itemName, type, price, description, imageURL)
 FROM 'menu.csv'
 WITH DELIMITER ';';
 
-COPY USERS
+COPY USERS (login, phoneNum, password, favItems, type)
 FROM 'users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+-- orders and their items go through staging tables: the monthly partitions
+-- for the orders loaded are created first, and every item takes the time
+-- of its order as its partition key
+CREATE TEMP TABLE orders_load(
+	orderid integer,
+	login varchar(50),
+	paid boolean,
+	timeStampRecieved timestamp,
+	total numeric(10,2));
+
+COPY orders_load (orderid, login, paid, timeStampRecieved, total)
 FROM 'orders.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+SELECT create_month_partitions(MIN(timeStampRecieved), MAX(timeStampRecieved) + interval '1 second')
+FROM orders_load;
+INSERT INTO ORDERS (orderid, login, paid, timeStampRecieved, total)
+SELECT orderid, login, paid, timeStampRecieved, total FROM orders_load;
+SELECT setval('orders_orderid_seq', (SELECT COALESCE(MAX(orderid), 0) + 1 FROM Orders), false);
+
+CREATE TEMP TABLE itemstatus_load(
+	orderid integer,
+	itemName varchar(50),
+	lastUpdated timestamp,
+	status varchar(20),
+	comments varchar(130));
 
-COPY ITEMSTATUS
+COPY itemstatus_load (orderid, itemName, lastUpdated, status, comments)
 FROM 'itemStatus.csv'
 WITH DELIMITER ';';
+INSERT INTO ITEMSTATUS (orderid, itemName, lastUpdated, status, comments, orderTime)
+SELECT s.orderid, s.itemName, s.lastUpdated, s.status, s.comments, o.timeStampRecieved
+FROM itemstatus_load s LEFT JOIN Orders o ON o.orderid = s.orderid;
+
+-- sales rollups of the orders loaded; see SalesRollup
+INSERT INTO SalesHourly (hour, orders, revenue, paidOrders, paidRevenue)
+SELECT date_trunc('hour', timeStampRecieved), count(*), SUM(total),
+       SUM(CASE WHEN paid THEN 1 ELSE 0 END), SUM(CASE WHEN paid THEN total ELSE 0 END)
+FROM Orders GROUP BY 1;
 
+INSERT INTO SalesItemDaily (day, itemName, units, revenue)
+SELECT CAST(o.timeStampRecieved AS date), s.itemName, SUM(s.quantity),
+       SUM(s.unitPrice * s.quantity - s.discount)
+FROM Orders o, ItemStatus s
+WHERE s.orderid = o.orderid AND s.orderTime = o.timeStampRecieved GROUP BY 1, 2;
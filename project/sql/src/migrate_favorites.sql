@@ -0,0 +1,16 @@
+-- Moves the comma separated Users.favItems lists into UserFavorites.
+-- Names are matched to menu items ignoring case and blanks; names that
+-- match no item are dropped. Migrated lists are cleared, so running this
+-- again only picks up lists written since.
+BEGIN;
+
+INSERT INTO UserFavorites (login, itemName)
+SELECT DISTINCT f.login, m.itemName
+FROM (SELECT login, lower(trim(regexp_split_to_table(favItems, ','))) AS name
+      FROM Users WHERE favItems IS NOT NULL) f, Menu m
+WHERE lower(trim(m.itemName)) = f.name
+AND NOT EXISTS (SELECT 1 FROM UserFavorites x WHERE x.login = f.login AND x.itemName = m.itemName);
+
+UPDATE Users SET favItems = NULL WHERE favItems IS NOT NULL;
+
+COMMIT;